@@ -16,6 +16,8 @@
 
 #include <jni.h>
 #include <math.h>
+#include <stdint.h>
+#include <string.h>
 #include <android/bitmap.h>
 
 #include "jpegutil.h"
@@ -165,3 +167,334 @@ Java_com_android_camera_util_JpegUtilNative_copyImagePlaneToBitmap(
 
   AndroidBitmap_unlockPixels(env, outBitmap);
 }
+
+namespace {
+
+// Fixed-point YUV to RGB coefficients. These must stay identical to the
+// constants in TaskConvertImageToRGBPreview so that both conversions produce
+// bit-exact results.
+const int kShiftApproximation = 8;
+const int kVFactorForR = 358;   // (int) (1.402 * 256)
+const int kUFactorForG = -88;   // (int) (-0.344 * 256)
+const int kVFactorForG = -182;  // (int) (-0.714 * 256)
+const int kUFactorForB = 453;   // (int) (1.772 * 256)
+
+const uint32_t kOutOfBoundsColor = 0x00000000;
+const uint32_t kOpaqueAlpha = 255u << 24;
+const uint32_t kFeatherAlpha = 128u << 24;
+
+struct YuvPlanes {
+  const uint8_t* y;
+  const uint8_t* u;
+  const uint8_t* v;
+  int yRowStride, yPixelStride;
+  int uRowStride, uPixelStride;
+  int vRowStride, vPixelStride;
+  jlong yCapacity, uCapacity, vCapacity;
+};
+
+/**
+ * The output region of a thumbnail, in pixels of the subsampled image. See
+ * TaskConvertImageToRGBPreview for how these values are derived from the crop.
+ */
+struct ThumbnailRegion {
+  int subsample;
+  int inputHorizontalOffset, inputVerticalOffset;
+  int xMin, xMax, yMin, yMax;
+  int outputPixelStride;
+  bool circular;
+  int centerX, centerY, radius;
+};
+
+inline int Clamp255(int value) {
+  return value < 0 ? 0 : (value > 255 ? 255 : value);
+}
+
+inline uint32_t PackArgb(int y, int redDiff, int greenDiff, int blueDiff,
+                         uint32_t alpha) {
+  return (uint32_t)Clamp255(y + redDiff) << 16 |
+         (uint32_t)Clamp255(y + greenDiff) << 8 |
+         (uint32_t)Clamp255(y + blueDiff) | alpha;
+}
+
+/**
+ * Mirrors TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets.
+ */
+inline jlong MemoryOffset(int xMin, int yMin, int subsample, int colorSubsample,
+                          int byteStride, int pixelStride,
+                          int horizontalOffset, int verticalOffset) {
+  return (jlong)verticalOffset * (byteStride / subsample) +
+         (jlong)horizontalOffset * (pixelStride / subsample) +
+         (jlong)(yMin / colorSubsample) * byteStride +
+         (jlong)(xMin / colorSubsample) * pixelStride;
+}
+
+/**
+ * Half width of the inscribed circle on the raster line at distance dy from
+ * the center, rounded the same way as the Java implementation (which yields 0
+ * for lines outside of the circle).
+ */
+inline int CircleHalfWidth(int radius, int dy) {
+  int squared = radius * radius - dy * dy;
+  if (squared < 0) {
+    return 0;
+  }
+  return (int)(sqrt((double)(float)squared) + 0.5);
+}
+
+/**
+ * Writes un-premultiplied ARGB pixels to a packed int[], in the layout used by
+ * Bitmap.createBitmap(int[], ...).
+ */
+class ArgbArrayWriter {
+ public:
+  ArgbArrayWriter(uint32_t* out, int stride) : out_(out), stride_(stride) {}
+
+  inline void Put(int row, int col, uint32_t argb) {
+    out_[row * stride_ + col] = argb;
+  }
+
+ private:
+  uint32_t* out_;
+  const int stride_;
+};
+
+/**
+ * Checks that every sample read and every pixel written by
+ * ConvertYuvToArgb is in bounds.
+ */
+bool RegionIsSafe(const YuvPlanes& planes, const ThumbnailRegion& region,
+                  jlong outputPixels) {
+  if (region.subsample <= 0 || region.inputHorizontalOffset < 0 ||
+      region.inputVerticalOffset < 0 || region.xMin < 0 || region.yMin < 0 ||
+      region.outputPixelStride <= 0) {
+    return false;
+  }
+  if (region.xMax <= region.xMin || region.yMax <= region.yMin) {
+    return true;
+  }
+  int lastJ = region.yMin + ((region.yMax - region.yMin - 1) / 2) * 2;
+  int lastBlock = (region.xMax - region.xMin - 1) / 2;
+  int lastI = region.xMin + lastBlock * 2;
+
+  int yByteStride = planes.yRowStride * region.subsample;
+  int yPixelStride = planes.yPixelStride * region.subsample;
+  int uByteStride = planes.uRowStride * region.subsample;
+  int uPixelStride = planes.uPixelStride * region.subsample;
+  int vByteStride = planes.vRowStride * region.subsample;
+  int vPixelStride = planes.vPixelStride * region.subsample;
+
+  jlong lastY = MemoryOffset(region.xMin, lastJ, region.subsample, 1,
+                             yByteStride, yPixelStride,
+                             region.inputHorizontalOffset,
+                             region.inputVerticalOffset) +
+                (jlong)lastBlock * 2 * yPixelStride + yByteStride +
+                yPixelStride;
+  jlong lastU = MemoryOffset(region.xMin, lastJ, region.subsample, 2,
+                             uByteStride, uPixelStride,
+                             region.inputHorizontalOffset / 2,
+                             region.inputVerticalOffset / 2) +
+                (jlong)lastBlock * uPixelStride;
+  jlong lastV = MemoryOffset(region.xMin, lastJ, region.subsample, 2,
+                             vByteStride, vPixelStride,
+                             region.inputHorizontalOffset / 2,
+                             region.inputVerticalOffset / 2) +
+                (jlong)lastBlock * vPixelStride;
+  jlong lastOut = (jlong)(lastJ - region.yMin + 1) * region.outputPixelStride +
+                  (lastI - region.xMin) + 1;
+
+  return lastY < planes.yCapacity && lastU < planes.uCapacity &&
+         lastV < planes.vCapacity && lastOut < outputPixels;
+}
+
+/**
+ * Single pass subsample, crop, color conversion and (optionally) circular
+ * mask. This is a port of the loops in TaskConvertImageToRGBPreview, and
+ * produces the same pixels. Output pixels outside of the region must already
+ * be cleared by the caller.
+ */
+void ConvertYuvToArgb(const YuvPlanes& planes, const ThumbnailRegion& region,
+                      ArgbArrayWriter* writer) {
+  const int subsample = region.subsample;
+  const int yByteStride = planes.yRowStride * subsample;
+  const int uByteStride = planes.uRowStride * subsample;
+  const int vByteStride = planes.vRowStride * subsample;
+  const int yPixelStride = planes.yPixelStride * subsample;
+  const int uPixelStride = planes.uPixelStride * subsample;
+  const int vPixelStride = planes.vPixelStride * subsample;
+
+  for (int j = region.yMin; j < region.yMax; j += 2) {
+    const int row = j - region.yMin;
+    const uint8_t* y = planes.y +
+        MemoryOffset(region.xMin, j, subsample, 1, yByteStride, yPixelStride,
+                     region.inputHorizontalOffset, region.inputVerticalOffset);
+    const uint8_t* u = planes.u +
+        MemoryOffset(region.xMin, j, subsample, 2, uByteStride, uPixelStride,
+                     region.inputHorizontalOffset / 2,
+                     region.inputVerticalOffset / 2);
+    const uint8_t* v = planes.v +
+        MemoryOffset(region.xMin, j, subsample, 2, vByteStride, vPixelStride,
+                     region.inputHorizontalOffset / 2,
+                     region.inputVerticalOffset / 2);
+
+    // Without a circular mask, every pixel is in bounds and opaque.
+    int circleMin0 = region.xMin;
+    int circleMax0 = region.xMax;
+    int circleMin1 = region.xMin;
+    int circleMax1 = region.xMax;
+    if (region.circular) {
+      int halfWidth0 = CircleHalfWidth(region.radius, j - region.centerY);
+      circleMin0 = region.centerX - halfWidth0;
+      circleMax0 = region.centerX + halfWidth0;
+      int halfWidth1 = CircleHalfWidth(region.radius, j + 1 - region.centerY);
+      circleMin1 = region.centerX - halfWidth1;
+      circleMax1 = region.centerX + halfWidth1;
+    }
+
+    for (int i = region.xMin; i < region.xMax; i += 2, y += 2 * yPixelStride,
+             u += uPixelStride, v += vPixelStride) {
+      const int col = i - region.xMin;
+      if (region.circular &&
+          ((i > circleMax0 && i > circleMax1) ||
+           (i + 1 < circleMin0 && i < circleMin1))) {
+        writer->Put(row, col, kOutOfBoundsColor);
+        writer->Put(row, col + 1, kOutOfBoundsColor);
+        writer->Put(row + 1, col, kOutOfBoundsColor);
+        writer->Put(row + 1, col + 1, kOutOfBoundsColor);
+        continue;
+      }
+
+      // Calculate the RGB component of the u/v channels and use it for all
+      // pixels in the 2x2 block.
+      int uValue = (int)u[0] - 128;
+      int vValue = (int)v[0] - 128;
+      int redDiff = (vValue * kVFactorForR) >> kShiftApproximation;
+      int greenDiff = (uValue * kUFactorForG + vValue * kVFactorForG) >>
+                      kShiftApproximation;
+      int blueDiff = (uValue * kUFactorForB) >> kShiftApproximation;
+
+      if (!region.circular) {
+        writer->Put(row, col,
+                    PackArgb(y[0], redDiff, greenDiff, blueDiff, kOpaqueAlpha));
+        writer->Put(row, col + 1,
+                    PackArgb(y[yPixelStride], redDiff, greenDiff, blueDiff,
+                             kOpaqueAlpha));
+        writer->Put(row + 1, col,
+                    PackArgb(y[yByteStride], redDiff, greenDiff, blueDiff,
+                             kOpaqueAlpha));
+        writer->Put(row + 1, col + 1,
+                    PackArgb(y[yByteStride + yPixelStride], redDiff, greenDiff,
+                             blueDiff, kOpaqueAlpha));
+        continue;
+      }
+
+      // Feather the edges of the circle with 50% alpha.
+      if (i > circleMax0 || i < circleMin0) {
+        writer->Put(row, col, kOutOfBoundsColor);
+      } else {
+        uint32_t alpha = (i == circleMax0 || i == circleMin0) ? kFeatherAlpha
+                                                              : kOpaqueAlpha;
+        writer->Put(row, col,
+                    PackArgb(y[0], redDiff, greenDiff, blueDiff, alpha));
+      }
+      if (i + 1 > circleMax0 || i + 1 < circleMin0) {
+        writer->Put(row, col + 1, kOutOfBoundsColor);
+      } else {
+        uint32_t alpha = (i + 1 == circleMax0 || i + 1 == circleMin0)
+                             ? kFeatherAlpha
+                             : kOpaqueAlpha;
+        writer->Put(row, col + 1, PackArgb(y[yPixelStride], redDiff,
+                                           greenDiff, blueDiff, alpha));
+      }
+      if (i > circleMax1 || i < circleMin1) {
+        writer->Put(row + 1, col, kOutOfBoundsColor);
+      } else {
+        uint32_t alpha = (i == circleMax1 || i == circleMin1) ? kFeatherAlpha
+                                                              : kOpaqueAlpha;
+        writer->Put(row + 1, col, PackArgb(y[yByteStride], redDiff, greenDiff,
+                                           blueDiff, alpha));
+      }
+      if (i + 1 > circleMax1 || i + 1 < circleMin1) {
+        writer->Put(row + 1, col + 1, kOutOfBoundsColor);
+      } else {
+        uint32_t alpha = (i + 1 == circleMax1 || i + 1 == circleMin1)
+                             ? kFeatherAlpha
+                             : kOpaqueAlpha;
+        writer->Put(row + 1, col + 1,
+                    PackArgb(y[yByteStride + yPixelStride], redDiff, greenDiff,
+                             blueDiff, alpha));
+      }
+    }
+  }
+}
+
+bool GetPlanes(JNIEnv* env, jobject yBuf, jint yPStride, jint yRStride,
+               jobject uBuf, jint uPStride, jint uRStride, jobject vBuf,
+               jint vPStride, jint vRStride, YuvPlanes* planes) {
+  planes->y = (const uint8_t*)env->GetDirectBufferAddress(yBuf);
+  planes->u = (const uint8_t*)env->GetDirectBufferAddress(uBuf);
+  planes->v = (const uint8_t*)env->GetDirectBufferAddress(vBuf);
+  if (planes->y == NULL || planes->u == NULL || planes->v == NULL) {
+    return false;
+  }
+  planes->yCapacity = env->GetDirectBufferCapacity(yBuf);
+  planes->uCapacity = env->GetDirectBufferCapacity(uBuf);
+  planes->vCapacity = env->GetDirectBufferCapacity(vBuf);
+  planes->yPixelStride = yPStride;
+  planes->yRowStride = yRStride;
+  planes->uPixelStride = uPStride;
+  planes->uRowStride = uRStride;
+  planes->vPixelStride = vPStride;
+  planes->vRowStride = vRStride;
+  return true;
+}
+
+}  // namespace
+
+/**
+ * Converts a subsampled, cropped region of a YUV_420_888 image to packed
+ * un-premultiplied ARGB_8888, optionally masked to an inscribed circle, in a
+ * single pass into a caller-supplied int[].
+ *
+ * The region parameters are computed by TaskConvertImageToRGBPreview, and the
+ * output is bit-exact with its Java conversion loops.
+ *
+ * @return 0 on success, -1 if the region would read or write out of bounds.
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_convertYuv420ToArgbNative(
+    JNIEnv* env, jclass clazz __unused,
+    /** Planes */
+    jobject yBuf, jint yPStride, jint yRStride,
+    jobject uBuf, jint uPStride, jint uRStride,
+    jobject vBuf, jint vPStride, jint vRStride,
+    /** Region */
+    jint subsample, jint inputHorizontalOffset, jint inputVerticalOffset,
+    jint xMin, jint xMax, jint yMin, jint yMax, jint outputPixelStride,
+    jboolean circular, jint centerX, jint centerY, jint radius,
+    /** Output */
+    jintArray outArray, jint outLength) {
+  YuvPlanes planes;
+  if (!GetPlanes(env, yBuf, yPStride, yRStride, uBuf, uPStride, uRStride, vBuf,
+                 vPStride, vRStride, &planes)) {
+    return -1;
+  }
+  ThumbnailRegion region = {subsample, inputHorizontalOffset,
+                            inputVerticalOffset, xMin, xMax, yMin, yMax,
+                            outputPixelStride, circular == JNI_TRUE, centerX,
+                            centerY, radius};
+  if (outLength > env->GetArrayLength(outArray) ||
+      !RegionIsSafe(planes, region, outLength)) {
+    return -1;
+  }
+
+  uint32_t* out = (uint32_t*)env->GetPrimitiveArrayCritical(outArray, NULL);
+  if (out == NULL) {
+    return -1;
+  }
+  memset(out, 0, (size_t)outLength * sizeof(uint32_t));
+  ArgbArrayWriter writer(out, outputPixelStride);
+  ConvertYuvToArgb(planes, region, &writer);
+  env->ReleasePrimitiveArrayCritical(outArray, out, 0);
+  return 0;
+}
@@ -93,6 +93,7 @@ import com.android.camera.data.FilmstripItem;
 import com.android.camera.data.FilmstripItemData;
 import com.android.camera.data.FilmstripItemType;
 import com.android.camera.data.FilmstripItemUtils;
+import com.android.camera.data.FilmstripMetadataCache;
 import com.android.camera.data.FixedLastProxyAdapter;
 import com.android.camera.data.GlideFilmstripManager;
 import com.android.camera.data.LocalFilmstripDataAdapter;
@@ -266,6 +267,7 @@ public class CameraActivity extends QuickActivity
 
     private FilmstripContentObserver mLocalImagesObserver;
     private FilmstripContentObserver mLocalVideosObserver;
+    private FilmstripMetadataCache mMetadataCache;
 
     private boolean mPendingDeletion = false;
 
@@ -1643,8 +1645,9 @@ public class CameraActivity extends QuickActivity
 
         ContentResolver appContentResolver = mAppContext.getContentResolver();
         GlideFilmstripManager glideManager = new GlideFilmstripManager(mAppContext);
+        mMetadataCache = FilmstripMetadataCache.getInstance(mAppContext);
         mPhotoItemFactory = new PhotoItemFactory(mAppContext, glideManager, appContentResolver,
-              new PhotoDataFactory());
+              new PhotoDataFactory(mMetadataCache));
         mVideoItemFactory = new VideoItemFactory(mAppContext, glideManager, appContentResolver,
               new VideoDataFactory());
         mCameraAppUI.getFilmstripContentPanel().setFilmstripListener(mFilmstripListener);
@@ -1665,8 +1668,8 @@ public class CameraActivity extends QuickActivity
 
         setupNfcBeamPush();
 
-        mLocalImagesObserver = new FilmstripContentObserver();
-        mLocalVideosObserver = new FilmstripContentObserver();
+        mLocalImagesObserver = new FilmstripContentObserver(mMetadataCache);
+        mLocalVideosObserver = new FilmstripContentObserver(mMetadataCache);
 
         getContentResolver().registerContentObserver(
                 MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true,
@@ -1861,6 +1864,7 @@ public class CameraActivity extends QuickActivity
         mLocalImagesObserver.setForegroundChangeListener(null);
         mLocalImagesObserver.setActivityPaused(true);
         mLocalVideosObserver.setActivityPaused(true);
+        mMetadataCache.saveAsync();
         if (mPreloader != null) {
             mPreloader.cancelAllLoads();
         }
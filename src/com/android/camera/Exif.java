@@ -18,6 +18,7 @@ package com.android.camera;
 
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.LazyExifReader;
 
 import java.io.IOException;
 
@@ -47,7 +48,14 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        // Only the orientation tag is indexed, so the thumbnail and the
+        // other IFDs are never decoded.
+        LazyExifReader exif = new LazyExifReader(jpegData, ExifInterface.TAG_ORIENTATION);
+        Integer val = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        if (val == null) {
+            return 0;
+        } else {
+            return ExifInterface.getRotationForOrientationValue(val.shortValue());
+        }
     }
 }
@@ -21,48 +21,148 @@ import android.content.ContentValues;
 import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore.Video;
 
 import com.android.camera.app.MediaSaver;
+import com.android.camera.app.MemoryManager;
+import com.android.camera.async.AndroidPriorityThread;
+import com.android.camera.async.MainThreadExecutor;
 import com.android.camera.data.FilmstripItemData;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A class implementing {@link com.android.camera.app.MediaSaver}.
+ * <p>
+ * Saves run on a dedicated pool of background threads, so that they neither
+ * wait behind nor hold up other work on the shared AsyncTask executor, and
+ * several images of a burst can be written at once. Listeners are called on
+ * the main thread.
  */
 public class MediaSaverImpl implements MediaSaver {
     private static final Log.Tag TAG = new Log.Tag("MediaSaverImpl");
     private static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
-    /** The memory limit for unsaved image is 30MB. */
+    /**
+     * The default memory limit for unsaved images is 30MB. This is also the
+     * least {@link #setMemoryLimit(MemoryManager)} will set.
+     */
     // TODO: Revert this back to 20 MB when CaptureSession API supports saving
     // bursts.
     private static final int SAVE_TASK_MEMORY_LIMIT = 30 * 1024 * 1024;
 
+    /**
+     * The share of {@link MemoryManager#getMaxAllowedNativeMemoryAllocation()}
+     * that unsaved images may use.
+     */
+    private static final float NATIVE_MEMORY_SHARE = 0.25f;
+
+    /**
+     * Writing to storage and inserting into the media store don't scale much
+     * beyond this.
+     */
+    private static final int DEFAULT_WORKER_COUNT = 2;
+
     private final ContentResolver mContentResolver;
+    private final ExecutorService mSaveExecutor;
+    private final Executor mMainThreadExecutor;
+
+    private final Object mLock = new Object();
 
     /** Memory used by the total queued save request, in bytes. */
+    @GuardedBy("mLock")
     private long mMemoryUse;
 
+    @GuardedBy("mLock")
+    private long mMemoryLimit;
+
+    /**
+     * Guards the listener and the status it was last told about, which are
+     * also read when the listener is set.
+     */
+    private final Object mQueueStatusLock = new Object();
+
+    @GuardedBy("mQueueStatusLock")
     private QueueListener mQueueListener;
 
+    /** The queue status the listener was last told about. */
+    @GuardedBy("mQueueStatusLock")
+    private boolean mReportedFull;
+
     /**
      * @param contentResolver The {@link android.content.ContentResolver} to be
      *                 updated.
      */
     public MediaSaverImpl(ContentResolver contentResolver) {
+        this(contentResolver, DEFAULT_WORKER_COUNT, SAVE_TASK_MEMORY_LIMIT);
+    }
+
+    /**
+     * @param contentResolver The {@link android.content.ContentResolver} to be
+     *                 updated.
+     * @param workerCount The number of images which may be saved at once.
+     * @param memoryLimit The number of bytes of unsaved images at which the
+     *                 queue is full.
+     */
+    public MediaSaverImpl(ContentResolver contentResolver, int workerCount, long memoryLimit) {
         mContentResolver = contentResolver;
+        mSaveExecutor = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new AndroidPriorityThread(Process.THREAD_PRIORITY_BACKGROUND,
+                        runnable);
+                thread.setName("MediaSaver-" + mCount.getAndIncrement());
+                return thread;
+            }
+        });
+        mMainThreadExecutor = MainThreadExecutor.create();
         mMemoryUse = 0;
+        mMemoryLimit = memoryLimit;
+    }
+
+    /**
+     * Sizes the queue to a share of the native memory the app may use, but
+     * no less than the default.
+     */
+    public void setMemoryLimit(MemoryManager memoryManager) {
+        long nativeMemoryBytes =
+                memoryManager.getMaxAllowedNativeMemoryAllocation() * 1024L * 1024L;
+        setMemoryLimit(Math.max(SAVE_TASK_MEMORY_LIMIT,
+                (long) (nativeMemoryBytes * NATIVE_MEMORY_SHARE)));
+    }
+
+    /**
+     * @param memoryLimit The number of bytes of unsaved images at which the
+     *                 queue is full.
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        synchronized (mLock) {
+            mMemoryLimit = memoryLimit;
+        }
+        Log.d(TAG, "Memory limit: " + memoryLimit / 1024 / 1024 + " MB");
+        updateQueueStatus();
     }
 
     @Override
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        synchronized (mLock) {
+            return (mMemoryUse >= mMemoryLimit);
+        }
     }
 
     @Override
@@ -76,27 +176,63 @@ public class MediaSaverImpl implements MediaSaver {
     public void addImage(final byte[] data, String title, long date, Location loc, int width,
             int height, int orientation, ExifInterface exif, OnMediaSavedListener l,
             String mimeType) {
-        if (isQueueFull()) {
+        if (!reserveMemory(data.length)) {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
-        ImageSaveTask t = new ImageSaveTask(data, title, date,
-                (loc == null) ? null : new Location(loc),
-                width, height, orientation, mimeType, exif, mContentResolver, l);
+        try {
+            ImageSaveTask t = new ImageSaveTask(data, title, date,
+                    (loc == null) ? null : new Location(loc),
+                    width, height, orientation, mimeType, exif, mContentResolver, l);
+            mSaveExecutor.execute(t);
+        } catch (RuntimeException e) {
+            // The task won't run to give the memory back.
+            releaseMemory(data.length);
+            throw e;
+        }
+    }
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
+    @Override
+    public void addImage(final ByteBuffer data, String title, long date, Location loc, int width,
+            int height, int orientation, ExifInterface exif, OnMediaSavedListener l) {
+        if (!reserveMemory(data.remaining())) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            // The caller holds on to the buffer until it hears back from us.
+            if (l != null) {
+                l.onMediaSaved(null);
+            }
+            return;
+        }
+        int size = data.remaining();
+        try {
+            ImageSaveTask t = new ImageSaveTask(data, title, date,
+                    (loc == null) ? null : new Location(loc),
+                    width, height, orientation, exif, mContentResolver, l);
+            mSaveExecutor.execute(t);
+        } catch (RuntimeException e) {
+            // The task won't run to give the memory back.
+            releaseMemory(size);
+            throw e;
         }
-        t.execute();
     }
 
     @Override
     public void addImage(final byte[] data, String title, long date, Location loc, int orientation,
             ExifInterface exif, OnMediaSavedListener l) {
-        // When dimensions are unknown, pass 0 as width and height,
-        // and decode image for width and height later in a background thread
-        addImage(data, title, date, loc, 0, 0, orientation, exif, l,
+        // Take the dimensions from the EXIF data if it has them. Otherwise,
+        // pass 0 as width and height, and decode image for width and height
+        // later in a background thread.
+        Integer width = null;
+        Integer height = null;
+        if (exif != null) {
+            width = exif.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION);
+            height = exif.getTagIntValue(ExifInterface.TAG_PIXEL_Y_DIMENSION);
+        }
+        if (width == null || height == null) {
+            width = 0;
+            height = 0;
+        }
+        addImage(data, title, date, loc, width, height, orientation, exif, l,
                 FilmstripItemData.MIME_TYPE_JPEG);
     }
     @Override
@@ -110,32 +246,82 @@ public class MediaSaverImpl implements MediaSaver {
     public void addVideo(String path, ContentValues values, OnMediaSavedListener l) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, values, l, mContentResolver).execute();
+        mSaveExecutor.execute(new VideoSaveTask(path, values, l, mContentResolver));
     }
 
     @Override
     public void setQueueListener(QueueListener l) {
-        mQueueListener = l;
-        if (l == null) {
-            return;
+        boolean full;
+        synchronized (mQueueStatusLock) {
+            mQueueListener = l;
+            if (l == null) {
+                return;
+            }
+            full = isQueueFull();
+            mReportedFull = full;
         }
-        l.onQueueStatus(isQueueFull());
+        l.onQueueStatus(full);
     }
 
-    private void onQueueFull() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(true);
+    /**
+     * Accounts for an image about to be queued.
+     *
+     * @return false if the queue is full.
+     */
+    private boolean reserveMemory(long size) {
+        synchronized (mLock) {
+            if (isQueueFull()) {
+                return false;
+            }
+            mMemoryUse += size;
         }
+        updateQueueStatus();
+        return true;
     }
 
-    private void onQueueAvailable() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(false);
+    private void releaseMemory(long size) {
+        synchronized (mLock) {
+            mMemoryUse -= size;
         }
+        updateQueueStatus();
+    }
+
+    /**
+     * Tells the listener on the main thread if the queue status has changed
+     * by then. Images are added from background threads, and the listener
+     * updates the UI.
+     */
+    private void updateQueueStatus() {
+        mMainThreadExecutor.execute(mNotifyQueueStatus);
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    /**
+     * Reads the status when it runs, rather than when it was posted, so the
+     * last notification always carries the current status.
+     */
+    private final Runnable mNotifyQueueStatus = new Runnable() {
+        @Override
+        public void run() {
+            QueueListener listener;
+            boolean full;
+            synchronized (mQueueStatusLock) {
+                full = isQueueFull();
+                if (full == mReportedFull) {
+                    return;
+                }
+                mReportedFull = full;
+                listener = mQueueListener;
+            }
+            if (listener != null) {
+                listener.onQueueStatus(full);
+            }
+        }
+    };
+
+    private class ImageSaveTask implements Runnable {
         private final byte[] data;
+        private final ByteBuffer buffer;
+        private final int size;
         private final String title;
         private final long date;
         private final Location loc;
@@ -145,12 +331,15 @@ public class MediaSaverImpl implements MediaSaver {
         private final ExifInterface exif;
         private final ContentResolver resolver;
         private final OnMediaSavedListener listener;
+        private final long queuedNanos;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, String mimeType,
                              ExifInterface exif, ContentResolver resolver,
                              OnMediaSavedListener listener) {
             this.data = data;
+            this.buffer = null;
+            this.size = data.length;
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -161,24 +350,70 @@ public class MediaSaverImpl implements MediaSaver {
             this.exif = exif;
             this.resolver = resolver;
             this.listener = listener;
+            this.queuedNanos = SystemClock.elapsedRealtimeNanos();
         }
 
-        @Override
-        protected void onPreExecute() {
-            // do nothing.
+        /**
+         * Saves a JPEG that is held in a ByteBuffer, so that it can be written
+         * to disk without an intermediate copy.
+         */
+        public ImageSaveTask(ByteBuffer buffer, String title, long date, Location loc,
+                             int width, int height, int orientation, ExifInterface exif,
+                             ContentResolver resolver, OnMediaSavedListener listener) {
+            this.data = null;
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+            this.title = title;
+            this.date = date;
+            this.loc = loc;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.mimeType = FilmstripItemData.MIME_TYPE_JPEG;
+            this.exif = exif;
+            this.resolver = resolver;
+            this.listener = listener;
+            this.queuedNanos = SystemClock.elapsedRealtimeNanos();
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            final Uri uri = save();
+            long endNanos = SystemClock.elapsedRealtimeNanos();
+            logSaveStats(startNanos, endNanos);
+
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (listener != null) {
+                        listener.onMediaSaved(uri);
+                    }
+                    releaseMemory(size);
+                }
+            });
+        }
+
+        private Uri save() {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                if (data != null) {
+                    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                } else if (buffer.hasArray()) {
+                    BitmapFactory.decodeByteArray(buffer.array(),
+                            buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+                            options);
+                }
                 width = options.outWidth;
                 height = options.outHeight;
             }
             try {
+                if (buffer != null) {
+                    return Storage.addImage(
+                            resolver, title, date, loc, orientation, exif, buffer, width, height);
+                }
                 return Storage.addImage(
                         resolver, title, date, loc, orientation, exif, data, width, height,
                         mimeType);
@@ -188,20 +423,21 @@ public class MediaSaverImpl implements MediaSaver {
             }
         }
 
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) {
-                listener.onMediaSaved(uri);
-            }
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) {
-                onQueueAvailable();
-            }
+        /**
+         * Logs how long the image waited for a worker and how fast it was
+         * written.
+         */
+        private void logSaveStats(long startNanos, long endNanos) {
+            long queuedMillis = (startNanos - queuedNanos) / 1000000;
+            long savingMillis = (endNanos - startNanos) / 1000000;
+            double megabytesPerSecond = (endNanos > startNanos)
+                    ? (size / (1024.0 * 1024.0)) / ((endNanos - startNanos) / 1e9) : 0;
+            Log.v(TAG, String.format("Saved %s: %d KB, %d ms queued, %d ms saving, %.1f MB/s",
+                    title, size / 1024, queuedMillis, savingMillis, megabytesPerSecond));
         }
     }
 
-    private class VideoSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class VideoSaveTask implements Runnable {
         private String path;
         private final ContentValues values;
         private final OnMediaSavedListener listener;
@@ -216,7 +452,19 @@ public class MediaSaverImpl implements MediaSaver {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
+            final Uri uri = save();
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (listener != null) {
+                        listener.onMediaSaved(uri);
+                    }
+                }
+            });
+        }
+
+        private Uri save() {
             Uri uri = null;
             try {
                 Uri videoTable = Uri.parse(VIDEO_BASE_URI);
@@ -241,12 +489,5 @@ public class MediaSaverImpl implements MediaSaver {
             }
             return uri;
         }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) {
-                listener.onMediaSaved(uri);
-            }
-        }
     }
 }
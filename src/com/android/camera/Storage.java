@@ -27,11 +27,11 @@ import android.os.StatFs;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
-import android.util.LruCache;
 
 import com.android.camera.data.FilmstripItemData;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.session.SessionUriRegistry;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.Size;
 import com.google.common.base.Optional;
@@ -39,7 +39,8 @@ import com.google.common.base.Optional;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -56,26 +57,15 @@ public class Storage {
     public static final String CAMERA_SESSION_SCHEME = "camera_session";
     private static final Log.Tag TAG = new Log.Tag("Storage");
     private static final String GOOGLE_COM = "google.com";
-    private static HashMap<Uri, Uri> sSessionsToContentUris = new HashMap<>();
-    private static HashMap<Uri, Uri> sContentUrisToSessions = new HashMap<>();
-    private static LruCache<Uri, Bitmap> sSessionsToPlaceholderBitmap =
+    /** Placeholders and content URIs of capture sessions. */
+    private static final SessionUriRegistry sSessions =
             // 20MB cache as an upper bound for session bitmap storage
-            new LruCache<Uri, Bitmap>(20 * 1024 * 1024) {
-                @Override
-                protected int sizeOf(Uri key, Bitmap value) {
-                    return value.getByteCount();
-                }
-            };
-    private static HashMap<Uri, Point> sSessionsToSizes = new HashMap<>();
-    private static HashMap<Uri, Integer> sSessionsToPlaceholderVersions = new HashMap<>();
+            new SessionUriRegistry(20 * 1024 * 1024);
     private static String sRoot = Environment.getExternalStorageDirectory().toString();
 
     public static void setRoot(String root) {
         if (!root.equals(sRoot)) {
-            sSessionsToContentUris.clear();
-            sContentUrisToSessions.clear();
-            sSessionsToSizes.clear();
-            sSessionsToPlaceholderVersions.clear();
+            sSessions.clear();
         }
         sRoot = root;
     }
@@ -137,6 +127,38 @@ public class Storage {
         return null;
     }
 
+    /**
+     * Saves a JPEG held in a ByteBuffer and adds it to the MediaStore. The
+     * buffer contents are written to disk without being copied onto the heap,
+     * which makes this the preferred variant for pooled direct buffers.
+     *
+     * @param resolver The The content resolver to use.
+     * @param title The title of the media file.
+     * @param date The date for the media file.
+     * @param location The location of the media file.
+     * @param orientation The orientation of the media file.
+     * @param exif The EXIF info. Can be {@code null}.
+     * @param jpeg The JPEG data between position and limit.
+     * @param width The width of the media file after the orientation is
+     *            applied.
+     * @param height The height of the media file after the orientation is
+     *            applied.
+     * @return The URI of the added image, or null if the image could not be
+     *         added.
+     */
+    public static Uri addImage(ContentResolver resolver, String title, long date,
+            Location location, int orientation, ExifInterface exif, ByteBuffer jpeg, int width,
+            int height) throws IOException {
+
+        String path = generateFilepath(title, FilmstripItemData.MIME_TYPE_JPEG);
+        long fileLength = writeFile(path, jpeg, exif);
+        if (fileLength >= 0) {
+            return addImageToMediaStore(resolver, title, date, location, orientation, fileLength,
+                    path, width, height, FilmstripItemData.MIME_TYPE_JPEG);
+        }
+        return null;
+    }
+
     /**
      * Add the entry for the media file to media store.
      *
@@ -219,9 +241,7 @@ public class Storage {
      * Remove a placeholder from in memory storage.
      */
     public static void removePlaceholder(Uri uri) {
-        sSessionsToSizes.remove(uri);
-        sSessionsToPlaceholderBitmap.remove(uri);
-        sSessionsToPlaceholderVersions.remove(uri);
+        sSessions.removePlaceholder(uri);
     }
 
     /**
@@ -233,12 +253,8 @@ public class Storage {
      * @return A URI used to reference this placeholder
      */
     public static void replacePlaceholder(Uri uri, Bitmap placeholder) {
-        Log.v(TAG, "session bitmap cache size: " + sSessionsToPlaceholderBitmap.size());
-        Point size = new Point(placeholder.getWidth(), placeholder.getHeight());
-        sSessionsToSizes.put(uri, size);
-        sSessionsToPlaceholderBitmap.put(uri, placeholder);
-        Integer currentVersion = sSessionsToPlaceholderVersions.get(uri);
-        sSessionsToPlaceholderVersions.put(uri, currentVersion == null ? 0 : currentVersion + 1);
+        Log.v(TAG, "session registry: " + sSessions);
+        sSessions.putPlaceholder(uri, placeholder);
     }
 
     /**
@@ -250,10 +266,7 @@ public class Storage {
     @Nonnull
     public static Uri addEmptyPlaceholder(@Nonnull Size size) {
         Uri uri = generateUniquePlaceholderUri();
-        sSessionsToSizes.put(uri, new Point(size.getWidth(), size.getHeight()));
-        sSessionsToPlaceholderBitmap.remove(uri);
-        Integer currentVersion = sSessionsToPlaceholderVersions.get(uri);
-        sSessionsToPlaceholderVersions.put(uri, currentVersion == null ? 0 : currentVersion + 1);
+        sSessions.putEmptyPlaceholder(uri, new Point(size.getWidth(), size.getHeight()));
         return uri;
     }
 
@@ -282,6 +295,25 @@ public class Storage {
                 width, height, mimeType);
     }
 
+    /**
+     * Same as {@link #updateImage(Uri, ContentResolver, String, long, Location,
+     * int, ExifInterface, byte[], int, int, String)}, but writes the JPEG
+     * straight from a ByteBuffer.
+     *
+     * @param jpeg bytes of the image between position and limit
+     */
+    public static Uri updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
+           Location location, int orientation, ExifInterface exif,
+           ByteBuffer jpeg, int width, int height, String mimeType) throws IOException {
+        String path = generateFilepath(title, mimeType);
+        long fileLength = writeFile(path, jpeg, exif);
+        if (fileLength < 0) {
+            throw new IOException("Failed to write file: " + path);
+        }
+        return updateImage(imageUri, resolver, title, date, location, orientation,
+                (int) fileLength, path, width, height, mimeType);
+    }
+
     private static Uri generateUniquePlaceholderUri() {
         Uri.Builder builder = new Uri.Builder();
         String uuid = UUID.randomUUID().toString();
@@ -322,6 +354,50 @@ public class Storage {
 //        return -1;
     }
 
+    /**
+     * Writes the JPEG data held in a ByteBuffer to a file with a single
+     * gathering write. If there's EXIF info, the EXIF header will be added.
+     * The position of the buffer is not changed.
+     *
+     * @param path The path to the target file.
+     * @param jpeg The JPEG data between position and limit.
+     * @param exif The EXIF info. Can be {@code null}.
+     *
+     * @return The size of the file. -1 if failed.
+     */
+    public static long writeFile(String path, ByteBuffer jpeg, ExifInterface exif)
+            throws IOException {
+        if (!createDirectoryIfNeeded(path)) {
+            Log.e(TAG, "Failed to create parent directory for file: " + path);
+            return -1;
+        }
+        if (exif != null) {
+            return exif.writeExif(jpeg, path);
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(path);
+            FileChannel channel = out.getChannel();
+            ByteBuffer data = jpeg.duplicate();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            return jpeg.remaining();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to close file after write", e);
+            }
+        }
+        return -1;
+    }
+
     /**
      * Renames a file.
      *
@@ -413,8 +489,7 @@ public class Storage {
             // If this is a session uri, then we need to add the image
             resultUri = addImageToMediaStore(resolver, title, date, location, orientation,
                     jpegLength, path, width, height, mimeType);
-            sSessionsToContentUris.put(imageUri, resultUri);
-            sContentUrisToSessions.put(resultUri, imageUri);
+            sSessions.putContentUri(imageUri, resultUri);
         } else {
             // Update the MediaStore
             resolver.update(imageUri, values, null, null);
@@ -453,7 +528,7 @@ public class Storage {
      * @return The bitmap or null
      */
     public static Optional<Bitmap> getPlaceholderForSession(Uri uri) {
-        return Optional.fromNullable(sSessionsToPlaceholderBitmap.get(uri));
+        return Optional.fromNullable(sSessions.getPlaceholder(uri));
     }
 
     /**
@@ -461,7 +536,7 @@ public class Storage {
      *         exists.
      */
     public static boolean containsPlaceholderSize(Uri uri) {
-        return sSessionsToSizes.containsKey(uri);
+        return sSessions.getPlaceholderSize(uri) != null;
     }
 
     /**
@@ -471,7 +546,7 @@ public class Storage {
      * @return The size
      */
     public static Point getSizeForSession(Uri uri) {
-        return sSessionsToSizes.get(uri);
+        return sSessions.getPlaceholderSize(uri);
     }
 
     /**
@@ -481,7 +556,7 @@ public class Storage {
      * @return The uri of the new media item, if it exists, or null.
      */
     public static Uri getContentUriForSessionUri(Uri uri) {
-        return sSessionsToContentUris.get(uri);
+        return sSessions.getContentUri(uri);
     }
 
     /**
@@ -491,7 +566,7 @@ public class Storage {
      * @return The session uri of the original session, if it exists, or null.
      */
     public static Uri getSessionUriFromContentUri(Uri contentUri) {
-        return sContentUrisToSessions.get(contentUri);
+        return sSessions.getSessionUri(contentUri);
     }
 
     /**
@@ -22,7 +22,6 @@ import com.android.camera.MediaSaverImpl;
 import com.android.camera.Storage;
 import com.android.camera.async.MainThread;
 import com.android.camera.remote.RemoteShutterListener;
-import com.android.camera.session.CaptureSessionFactory;
 import com.android.camera.session.CaptureSessionFactoryImpl;
 import com.android.camera.session.CaptureSessionManager;
 import com.android.camera.session.CaptureSessionManagerImpl;
@@ -61,17 +60,20 @@ public class CameraServicesImpl implements CameraServices {
     private final SettingsManager mSettingsManager;
 
     private CameraServicesImpl(Context context) {
-        mMediaSaver = new MediaSaverImpl(context.getContentResolver());
+        MediaSaverImpl mediaSaver = new MediaSaverImpl(context.getContentResolver());
+        mMediaSaver = mediaSaver;
         PlaceholderManager mPlaceHolderManager = new PlaceholderManager(context);
         SessionStorageManager mSessionStorageManager = SessionStorageManagerImpl.create(context);
 
         StackSaverFactory mStackSaverFactory = new StackSaverFactory(Storage.generateDirectory(),
               context.getContentResolver());
-        CaptureSessionFactory captureSessionFactory = new CaptureSessionFactoryImpl(
+        CaptureSessionFactoryImpl captureSessionFactory = new CaptureSessionFactoryImpl(
                 mMediaSaver, mPlaceHolderManager, mSessionStorageManager, mStackSaverFactory);
+        captureSessionFactory.recoverInterruptedSessions();
         mSessionManager = new CaptureSessionManagerImpl(
                 captureSessionFactory, mSessionStorageManager, MainThread.create());
         mMemoryManager = MemoryManagerImpl.create(context, mMediaSaver);
+        mediaSaver.setMemoryLimit(mMemoryManager);
         mRemoteShutterListener = RemoteShutterHelper.create(context);
         mSettingsManager = new SettingsManager(context);
 
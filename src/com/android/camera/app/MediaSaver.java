@@ -22,6 +22,8 @@ import android.net.Uri;
 
 import com.android.camera.exif.ExifInterface;
 
+import java.nio.ByteBuffer;
+
 /**
  * An interface defining the media saver which saves media files in the
  * background.
@@ -146,6 +148,31 @@ public interface MediaSaver {
     void addImage(byte[] data, String title, Location loc, int width, int height, int orientation,
             ExifInterface exif, OnMediaSavedListener l);
 
+    /**
+     * Adds a JPEG image held in a ByteBuffer into
+     * {@link android.content.ContentResolver} and also saves the file to the
+     * storage in the background. The buffer is written to disk as is, without
+     * being copied, so its contents must not change until the listener has
+     * been called. The listener is also called, with a {@code null} Uri, if
+     * the image could not be queued.
+     *
+     * @param data The JPEG image data between position and limit.
+     * @param title The title of the image.
+     * @param date The date when the image is created.
+     * @param loc The location where the image is created. Can be {@code null}.
+     * @param width The width of the image data before the orientation is
+     *              applied.
+     * @param height The height of the image data before the orientation is
+     *               applied.
+     * @param orientation The orientation of the image. The value should be a
+     *                    degree of rotation in clockwise. Valid values are
+     *                    0, 90, 180 and 270.
+     * @param exif The EXIF data of this image.
+     * @param l A callback object used when the saving is done.
+     */
+    void addImage(ByteBuffer data, String title, long date, Location loc, int width, int height,
+            int orientation, ExifInterface exif, OnMediaSavedListener l);
+
     /**
      * Adds the video data into the {@link android.content.ContentResolver} in
      * the background. Only the database is updated here. The file should
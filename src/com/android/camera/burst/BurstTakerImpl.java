@@ -91,7 +91,7 @@ public class BurstTakerImpl implements BurstTaker {
                 mBurstLifetime, evictionHandler, burstController, mRestorePreviewCommand,
                 mMaxImageCount);
 
-        mCameraCommandExecutor.execute(burstCommand);
+        mCameraCommandExecutor.execute(burstCommand, CameraCommandExecutor.Lane.CAPTURE);
     }
 
     @Override
@@ -20,6 +20,7 @@ import android.graphics.Bitmap;
 import android.location.Location;
 import android.net.Uri;
 
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.session.CaptureSession;
@@ -33,6 +34,8 @@ import com.google.common.base.Optional;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 
 /**
@@ -153,6 +156,17 @@ public class CaptureIntentSession implements CaptureSession {
         return Futures.immediateFuture(Optional.<Uri> absent());
     }
 
+    @Override
+    public synchronized ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width,
+            int height, int orientation, ExifInterface exif, SafeCloseable dataRelease) {
+        // The intent result is handed over in memory, so the bytes are needed
+        // on the heap anyway.
+        byte[] jpeg = new byte[data.remaining()];
+        data.duplicate().get(jpeg);
+        dataRelease.close();
+        return saveAndFinish(jpeg, width, height, orientation, exif);
+    }
+
     @Override
     public StackSaver getStackSaver() {
         return null;
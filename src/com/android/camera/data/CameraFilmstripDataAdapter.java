@@ -57,6 +57,9 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     private FilmstripItem mFilmstripItemToDelete;
 
+    /** The task loading the camera roll, while it is publishing pages. */
+    private QueryTask mQueryTask;
+
     public CameraFilmstripDataAdapter(Context context,
             PhotoItemFactory photoItemFactory, VideoItemFactory videoItemFactory) {
         mContext = context;
@@ -78,8 +81,9 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void requestLoad(Callback<Void> onDone) {
-        QueryTask qtask = new QueryTask(onDone);
-        qtask.execute(mContext);
+        cancelQuery();
+        mQueryTask = new QueryTask(onDone);
+        mQueryTask.execute(mContext);
     }
 
     @Override
@@ -187,9 +191,7 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public int findByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // FilmstripItemList looks this up in O(1).
         return mFilmstripItems.indexOf(uri);
     }
 
@@ -218,6 +220,7 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void clear() {
+        cancelQuery();
         replaceItemList(new FilmstripItemList());
     }
 
@@ -261,6 +264,41 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         }
     }
 
+    /**
+     * Appends older items, as loaded by a {@link QueryTask}. Items which have
+     * been added in the meantime are skipped.
+     */
+    private void appendItems(List<FilmstripItem> items) {
+        final int firstIndex = mFilmstripItems.size();
+        for (FilmstripItem item : items) {
+            if (mFilmstripItems.indexOf(item.getData().getUri()) == -1) {
+                mFilmstripItems.add(item);
+            }
+        }
+        if (mFilmstripItems.size() == firstIndex || mListener == null) {
+            return;
+        }
+        mListener.onFilmstripItemUpdated(new UpdateReporter() {
+            @Override
+            public boolean isDataRemoved(int index) {
+                return false;
+            }
+
+            @Override
+            public boolean isDataUpdated(int index) {
+                return index >= firstIndex;
+            }
+        });
+    }
+
+    /** Stops publishing pages of a load in progress. */
+    private void cancelQuery() {
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+            mQueryTask = null;
+        }
+    }
+
     /** Update all the data */
     private void replaceItemList(FilmstripItemList list) {
         if (list.size() == 0 && mFilmstripItems.size() == 0) {
@@ -360,75 +398,83 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     }
 
     private class QueryTaskResult {
-        public FilmstripItemList mFilmstripItemList;
+        public List<FilmstripItem> mOutOfOrderItems;
         public long mLastPhotoId;
 
-        public QueryTaskResult(FilmstripItemList filmstripItemList, long lastPhotoId) {
-            mFilmstripItemList = filmstripItemList;
+        public QueryTaskResult(List<FilmstripItem> outOfOrderItems, long lastPhotoId) {
+            mOutOfOrderItems = outOfOrderItems;
             mLastPhotoId = lastPhotoId;
         }
     }
 
-    private class QueryTask extends AsyncTask<Context, Void, QueryTaskResult> {
+    private class QueryTask extends AsyncTask<Context, List<FilmstripItem>, QueryTaskResult> {
         // The maximum number of data to load metadata for in a single task.
         private static final int MAX_METADATA = 5;
+        // Enough to fill the filmstrip, so it can be shown right away.
+        private static final int FIRST_PAGE_SIZE = 32;
+        private static final int PAGE_SIZE = 512;
 
         private final Callback<Void> mDoneCallback;
+        private boolean mFirstPagePublished = false;
 
         public QueryTask(Callback<Void> doneCallback) {
             mDoneCallback = doneCallback;
         }
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads all the photo and video data in the camera folder in background,
+         * newest first, publishing it a page at a time.
          *
          * @param contexts {@link Context} to load all the data.
          * @return An {@link CameraFilmstripDataAdapter.QueryTaskResult} containing
-         *  all loaded data and the highest photo id in the dataset.
+         *  the items which still have to be inserted and the highest photo id in
+         *  the dataset.
          */
         @Override
+        @SuppressWarnings("unchecked")
         protected QueryTaskResult doInBackground(Context... contexts) {
             final Context context = contexts[0];
-            FilmstripItemList l = new FilmstripItemList();
-            // Photos and videos
-            List<PhotoItem> photoData = mPhotoItemFactory.queryAll();
-            List<VideoItem> videoData = mVideoItemFactory.queryAll();
-
-            long lastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
-            if (photoData != null && !photoData.isEmpty()) {
-                // This relies on {@link LocalMediaData.QUERY_ORDER} returning
-                // items sorted descending by ID, as such we can just pull the
-                // ID from the first item in the result to establish the last
-                // (max) photo ID.
-                FilmstripItemData firstPhotoData = photoData.get(0).getData();
-
-                if(firstPhotoData != null) {
-                    lastPhotoId = firstPhotoData.getContentId();
+            FilmstripItemPageLoader loader = new FilmstripItemPageLoader(
+                  context.getContentResolver(), mPhotoItemFactory, mVideoItemFactory);
+            try {
+                List<FilmstripItem> page = loader.nextPage(FIRST_PAGE_SIZE);
+                Log.v(TAG, "retrieved first page of metadata, number of items: " + page.size());
+                // Load enough metadata so it's already loaded when we open the filmstrip.
+                for (int i = 0; i < MAX_METADATA && i < page.size(); i++) {
+                    MetadataLoader.loadMetadata(context, page.get(i));
                 }
-            }
+                publishProgress(page);
 
-            if (photoData != null) {
-                Log.v(TAG, "retrieved photo metadata, number of items: " + photoData.size());
-                l.addAll(photoData);
+                int count = page.size();
+                while (loader.hasNextPage() && !isCancelled()) {
+                    page = loader.nextPage(PAGE_SIZE);
+                    count += page.size();
+                    publishProgress(page);
+                }
+                Log.v(TAG, "retrieved photo and video metadata, number of items: " + count);
+                return new QueryTaskResult(loader.getOutOfOrderItems(), loader.getLastPhotoId());
+            } finally {
+                loader.close();
             }
-            if (videoData != null) {
-                Log.v(TAG, "retrieved video metadata, number of items: " + videoData.size());
-                l.addAll(videoData);
+        }
+
+        @Override
+        protected void onProgressUpdate(List<FilmstripItem>... pages) {
+            if (isCancelled()) {
+                return;
             }
-            Log.v(TAG, "sorting video/photo metadata");
-            // Photos should be sorted within photo/video by ID, which in most
-            // cases should correlate well to the date taken/modified. This sort
-            // operation makes all photos/videos sorted by date in one list.
-            l.sort(new NewestFirstComparator(new Date()));
-            Log.v(TAG, "sorted video/photo metadata");
-
-            // Load enough metadata so it's already loaded when we open the filmstrip.
-            for (int i = 0; i < MAX_METADATA && i < l.size(); i++) {
-                FilmstripItem data = l.get(i);
-                MetadataLoader.loadMetadata(context, data);
+            List<FilmstripItem> page = pages[0];
+            if (!mFirstPagePublished) {
+                mFirstPagePublished = true;
+                FilmstripItemList list = new FilmstripItemList();
+                list.addAll(page);
+                replaceItemList(list);
+                if (mDoneCallback != null) {
+                    mDoneCallback.onCallback(null);
+                }
+            } else {
+                appendItems(page);
             }
-            return new QueryTaskResult(l, lastPhotoId);
         }
 
         @Override
@@ -436,9 +482,11 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
             // Since we're wiping away all of our data, we should always replace any existing last
             // photo id with the new one we just obtained so it matches the data we're showing.
             mLastPhotoId = result.mLastPhotoId;
-            replaceItemList(result.mFilmstripItemList);
-            if (mDoneCallback != null) {
-                mDoneCallback.onCallback(null);
+            for (FilmstripItem item : result.mOutOfOrderItems) {
+                addOrUpdate(item);
+            }
+            if (mQueryTask == this) {
+                mQueryTask = null;
             }
             // Now check for any photos added since this task was kicked off
             LoadNewPhotosTask ltask = new LoadNewPhotosTask(mContext, mLastPhotoId);
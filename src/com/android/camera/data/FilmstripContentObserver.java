@@ -17,6 +17,7 @@
 package com.android.camera.data;
 
 import android.database.ContentObserver;
+import android.net.Uri;
 
 /**
  * Listening to the changes to the local image and video data. onChange will
@@ -24,6 +25,7 @@ import android.database.ContentObserver;
  */
 public class FilmstripContentObserver extends ContentObserver {
 
+    private final FilmstripMetadataCache mMetadataCache;
     private ChangeListener mChangeListener;
 
     public interface ChangeListener {
@@ -33,8 +35,13 @@ public class FilmstripContentObserver extends ContentObserver {
     private boolean mActivityPaused = false;
     private boolean mMediaDataChangedDuringPause = false;
 
-    public FilmstripContentObserver() {
+    /**
+     * @param metadataCache the cache to drop the entries of changed items
+     *            from.
+     */
+    public FilmstripContentObserver(FilmstripMetadataCache metadataCache) {
         super(null);
+        mMetadataCache = metadataCache;
     }
 
     public void setForegroundChangeListener(ChangeListener changeListener) {
@@ -45,6 +52,14 @@ public class FilmstripContentObserver extends ContentObserver {
         mChangeListener = null;
     }
 
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        if (uri != null) {
+            mMetadataCache.invalidate(uri);
+        }
+        onChange(selfChange);
+    }
+
     /**
      * When the activity is paused and MediaObserver get onChange() call, then
      * we would like to set a dirty bit to reload the data at onResume().
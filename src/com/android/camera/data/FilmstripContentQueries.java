@@ -61,11 +61,8 @@ public class FilmstripContentQueries {
     public static <I extends FilmstripItem> List<I> forCameraPath(ContentResolver contentResolver,
           Uri contentUri, String[] projection, long minimumId, String orderBy,
           CursorToFilmstripItemFactory<I> factory) {
-        String selection = SELECT_BY_PATH + " AND " + MediaStore.MediaColumns._ID + " > ?";
-        String[] selectionArgs = new String[] { CAMERA_PATH, Long.toString(minimumId) };
-
-        Cursor cursor = contentResolver.query(contentUri, projection,
-              selection, selectionArgs, orderBy);
+        Cursor cursor = queryCameraPath(contentResolver, contentUri, projection, minimumId,
+              orderBy);
         List<I> result = new ArrayList<>();
         if (cursor != null) {
             while (cursor.moveToNext()) {
@@ -82,4 +79,23 @@ public class FilmstripContentQueries {
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Query the camera storage directory, leaving it to the caller to convert
+     * and close the cursor, so that it can be consumed incrementally.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param projection the columns to extract
+     * @param minimumId the lower bound of results
+     * @param orderBy the order by clause
+     * @return The cursor, or null if the query failed.
+     */
+    public static Cursor queryCameraPath(ContentResolver contentResolver, Uri contentUri,
+          String[] projection, long minimumId, String orderBy) {
+        String selection = SELECT_BY_PATH + " AND " + MediaStore.MediaColumns._ID + " > ?";
+        String[] selectionArgs = new String[] { CAMERA_PATH, Long.toString(minimumId) };
+
+        return contentResolver.query(contentUri, projection, selection, selectionArgs, orderBy);
+    }
+}
@@ -21,42 +21,49 @@ import android.net.Uri;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ * <p>
+ * Items are kept in a circular array, so access by index is O(1), as are
+ * inserting and removing at either end. Inserting and removing elsewhere
+ * moves the items on the shorter side of the position. Every item has an
+ * entry which stores its position relative to a moving base, and a map from
+ * URI to entry makes {@link #get(Uri)} and {@link #indexOf(Uri)} O(1) as
+ * well: the entries only have to be updated for the items that move.
  */
 public class FilmstripItemList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof FilmstripItem)) {
-                return false;
-            }
-            return mUri.equals(((FilmstripItem) o).getData().getUri());
+    private static class Entry {
+        public FilmstripItem item;
+        /** The index of the item plus {@link #mBase}. */
+        public int position;
+
+        public Entry(FilmstripItem item, int position) {
+            this.item = item;
+            this.position = position;
         }
     }
 
     private static final Tag TAG = new Tag("LocalDataList");
-    private final LinkedList<FilmstripItem> mList = new LinkedList<FilmstripItem>();
-    private final HashMap<Uri, FilmstripItem> mUriMap = new HashMap<Uri, FilmstripItem>();
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** A circular array of entries, its length always a power of two. */
+    private Entry[] mEntries = new Entry[INITIAL_CAPACITY];
+    /** The array index of the first item. */
+    private int mHead = 0;
+    private int mSize = 0;
+    /** The position of the first item. */
+    private int mBase = 0;
+    private final HashMap<Uri, Entry> mUriMap = new HashMap<Uri, Entry>();
 
     public FilmstripItem get(int index) {
-        return mList.get(index);
+        checkIndex(index, mSize);
+        return entryAt(index).item;
     }
 
     /**
@@ -68,32 +75,79 @@ public class FilmstripItemList {
      */
     public synchronized FilmstripItem remove(int index) {
         try {
-            FilmstripItem removedItem = mList.remove(index);
-            mUriMap.remove(removedItem);
-            return removedItem;
+            checkIndex(index, mSize);
         } catch (IndexOutOfBoundsException ex) {
             Log.w(TAG, "Could not remove item. Not found: " + index, ex);
             return null;
         }
+        Entry removed = entryAt(index);
+        unmap(removed);
+        if (index < mSize / 2) {
+            // Move the items before it one up.
+            for (int i = index; i > 0; i--) {
+                Entry entry = entryAt(i - 1);
+                entry.position++;
+                setEntryAt(i, entry);
+            }
+            setEntryAt(0, null);
+            mHead = (mHead + 1) & (mEntries.length - 1);
+            mBase++;
+        } else {
+            // Move the items after it one down.
+            for (int i = index; i < mSize - 1; i++) {
+                Entry entry = entryAt(i + 1);
+                entry.position--;
+                setEntryAt(i, entry);
+            }
+            setEntryAt(mSize - 1, null);
+        }
+        mSize--;
+        return removed.item;
     }
 
     public FilmstripItem get(Uri uri) {
-        return mUriMap.get(uri);
+        Entry entry = mUriMap.get(uri);
+        return entry == null ? null : entry.item;
     }
 
     public void set(int pos, FilmstripItem data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        checkIndex(pos, mSize);
+        Entry entry = entryAt(pos);
+        unmap(entry);
+        entry.item = data;
+        mUriMap.put(data.getData().getUri(), entry);
     }
 
     public void add(FilmstripItem data) {
-        mList.add(data);
-        mUriMap.put(data.getData().getUri(), data);
+        add(mSize, data);
     }
 
     public void add(int pos, FilmstripItem data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        checkIndex(pos, mSize + 1);
+        if (mSize == mEntries.length) {
+            grow();
+        }
+        if (pos < mSize / 2) {
+            // Move the items before it one down.
+            mHead = (mHead - 1) & (mEntries.length - 1);
+            mBase--;
+            for (int i = 0; i < pos; i++) {
+                Entry entry = entryAt(i + 1);
+                entry.position--;
+                setEntryAt(i, entry);
+            }
+        } else {
+            // Move the items after it one up.
+            for (int i = mSize; i > pos; i--) {
+                Entry entry = entryAt(i - 1);
+                entry.position++;
+                setEntryAt(i, entry);
+            }
+        }
+        Entry entry = new Entry(data, mBase + pos);
+        setEntryAt(pos, entry);
+        mSize++;
+        mUriMap.put(data.getData().getUri(), entry);
     }
 
     public void addAll(List<? extends FilmstripItem> filmstripItemList) {
@@ -103,22 +157,63 @@ public class FilmstripItemList {
     }
 
     public int size() {
-        return mList.size();
+        return mSize;
     }
 
     public void sort(Comparator<FilmstripItem> comparator) {
-        Collections.sort(mList, comparator);
+        List<FilmstripItem> items = new ArrayList<FilmstripItem>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            items.add(entryAt(i).item);
+        }
+        Collections.sort(items, comparator);
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = entryAt(i);
+            entry.item = items.get(i);
+            mUriMap.put(entry.item.getData().getUri(), entry);
+        }
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the index of the item with the given URI, or -1 if the list
+     * doesn't contain it. This is a hash lookup.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
-            return -1;
+        Entry entry = mUriMap.get(uri);
+        return entry == null ? -1 : entry.position - mBase;
+    }
+
+    private Entry entryAt(int index) {
+        return mEntries[(mHead + index) & (mEntries.length - 1)];
+    }
+
+    private void setEntryAt(int index, Entry entry) {
+        mEntries[(mHead + index) & (mEntries.length - 1)] = entry;
+    }
+
+    /**
+     * Removes the URI of the given entry's item from the map, unless it now
+     * maps to another entry.
+     */
+    private void unmap(Entry entry) {
+        Uri uri = entry.item.getData().getUri();
+        if (mUriMap.get(uri) == entry) {
+            mUriMap.remove(uri);
+        }
+    }
+
+    /** Doubles the capacity, moving the first item to the array start. */
+    private void grow() {
+        Entry[] entries = new Entry[mEntries.length * 2];
+        int firstPart = Math.min(mSize, mEntries.length - mHead);
+        System.arraycopy(mEntries, mHead, entries, 0, firstPart);
+        System.arraycopy(mEntries, 0, entries, firstPart, mSize - firstPart);
+        mEntries = entries;
+        mHead = 0;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
         }
-        return mList.indexOf(new UriWrapper(uri));
     }
 }
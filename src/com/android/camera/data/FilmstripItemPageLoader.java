@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import com.android.camera.data.FilmstripContentQueries.CursorToFilmstripItemFactory;
+import com.android.camera.debug.Log;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Loads the photos and videos in the camera folder newest first, a page at a
+ * time, so that the newest items can be shown before the whole camera roll
+ * has been read.
+ * <p>
+ * Photos and videos are queried ordered by the date they were taken and the
+ * two cursors are merged with a {@link NewestFirstComparator}, so nothing has
+ * to be sorted. The few items the comparator orders by modification date,
+ * since their creation date is in the future, can't be merged that way; they
+ * are collected separately and have to be inserted once loading is done.
+ * <p>
+ * Not thread-safe, and must be used off the main thread.
+ */
+class FilmstripItemPageLoader {
+    private static final Log.Tag TAG = new Log.Tag("FilmstripPageLoad");
+
+    private static final String PHOTO_QUERY_ORDER = MediaStore.Images.ImageColumns.DATE_TAKEN
+          + " DESC, " + MediaStore.Images.ImageColumns._ID + " DESC";
+    private static final String VIDEO_QUERY_ORDER = MediaStore.Video.VideoColumns.DATE_TAKEN
+          + " DESC, " + MediaStore.Video.VideoColumns._ID + " DESC";
+
+    /** The items of one cursor, converted one at a time. */
+    private class Source {
+        private final Cursor mCursor;
+        private final CursorToFilmstripItemFactory<? extends FilmstripItem> mFactory;
+        private final boolean mIsPhoto;
+        /** The newest item not returned yet, or null if there is none. */
+        private FilmstripItem mHead;
+
+        public Source(Cursor cursor,
+              CursorToFilmstripItemFactory<? extends FilmstripItem> factory, boolean isPhoto) {
+            mCursor = cursor;
+            mFactory = factory;
+            mIsPhoto = isPhoto;
+            advance();
+        }
+
+        public FilmstripItem getHead() {
+            return mHead;
+        }
+
+        public void advance() {
+            mHead = null;
+            if (mCursor == null) {
+                return;
+            }
+            while (mCursor.moveToNext()) {
+                FilmstripItem item = mFactory.get(mCursor);
+                if (item == null) {
+                    final int dataIndex =
+                          mCursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+                    Log.e(TAG, "Error loading data:" + mCursor.getString(dataIndex));
+                    continue;
+                }
+                if (mIsPhoto) {
+                    mLastPhotoId = Math.max(mLastPhotoId, item.getData().getContentId());
+                }
+                if (mComparator.isSortedByModificationDate(item)) {
+                    mOutOfOrderItems.add(item);
+                    continue;
+                }
+                mHead = item;
+                return;
+            }
+        }
+
+        public void close() {
+            if (mCursor != null) {
+                mCursor.close();
+            }
+        }
+    }
+
+    private final NewestFirstComparator mComparator = new NewestFirstComparator(new Date());
+    private final List<FilmstripItem> mOutOfOrderItems = new ArrayList<>();
+    private long mLastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+    private final Source mPhotos;
+    private final Source mVideos;
+
+    /**
+     * Queries all photos and videos in the camera folder. The items are read
+     * from the cursors as pages are requested.
+     */
+    public FilmstripItemPageLoader(ContentResolver contentResolver,
+          PhotoItemFactory photoItemFactory, VideoItemFactory videoItemFactory) {
+        mPhotos = new Source(FilmstripContentQueries.queryCameraPath(contentResolver,
+              PhotoDataQuery.CONTENT_URI, PhotoDataQuery.QUERY_PROJECTION,
+              FilmstripItemBase.QUERY_ALL_MEDIA_ID, PHOTO_QUERY_ORDER),
+              photoItemFactory, true);
+        mVideos = new Source(FilmstripContentQueries.queryCameraPath(contentResolver,
+              VideoDataQuery.CONTENT_URI, VideoDataQuery.QUERY_PROJECTION,
+              FilmstripItemBase.QUERY_ALL_MEDIA_ID, VIDEO_QUERY_ORDER),
+              videoItemFactory, false);
+    }
+
+    /**
+     * @return whether there are more items to load.
+     */
+    public boolean hasNextPage() {
+        return mPhotos.getHead() != null || mVideos.getHead() != null;
+    }
+
+    /**
+     * Loads the next newest items.
+     *
+     * @param size the maximum number of items to load.
+     * @return the items, sorted newest first, all older than those of the
+     *         previous pages.
+     */
+    public List<FilmstripItem> nextPage(int size) {
+        List<FilmstripItem> page = new ArrayList<>(size);
+        while (page.size() < size) {
+            FilmstripItem photo = mPhotos.getHead();
+            FilmstripItem video = mVideos.getHead();
+            if (photo == null && video == null) {
+                break;
+            }
+            if (video == null || (photo != null && mComparator.compare(photo, video) <= 0)) {
+                page.add(photo);
+                mPhotos.advance();
+            } else {
+                page.add(video);
+                mVideos.advance();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @return the items which could not be merged into the pages so far and
+     *         have to be inserted at their position.
+     */
+    public List<FilmstripItem> getOutOfOrderItems() {
+        return mOutOfOrderItems;
+    }
+
+    /**
+     * @return the highest ID of the photos loaded so far.
+     */
+    public long getLastPhotoId() {
+        return mLastPhotoId;
+    }
+
+    public void close() {
+        mPhotos.close();
+        mVideos.close();
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.AtomicFile;
+
+import com.android.camera.debug.Log;
+import com.android.camera.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An on-disk cache of what {@link PhotoDataFactory} and {@link MetadataLoader}
+ * find out by reading media files: the dimensions of photos the MediaStore
+ * has none for, and the panorama, RGBZ and video rotation metadata.
+ * <p>
+ * Entries are looked up by MediaStore ID and are only used if the path hash,
+ * size and modification time the MediaStore reports still match, so a file
+ * which was changed is read again. Entries of items which change are dropped
+ * through {@link #invalidate(Uri)}, and the least recently used ones are
+ * evicted beyond {@link #MAX_ENTRIES}.
+ * <p>
+ * The cache is read on first use, which must be off the main thread, and is
+ * written back by {@link #saveAsync()} as one binary file of fixed size
+ * records.
+ */
+public class FilmstripMetadataCache {
+    private static final Log.Tag TAG = new Log.Tag("FilmstripMetaCache");
+
+    private static final String FILE_NAME = "filmstrip_metadata_cache";
+    private static final int FILE_MAGIC = 0x464d4331;
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_ENTRIES = 20000;
+
+    private static final int FLAG_DIMENSIONS = 1;
+    private static final int FLAG_METADATA = 1 << 1;
+    private static final int FLAG_PANORAMA = 1 << 2;
+    private static final int FLAG_PANORAMA_360 = 1 << 3;
+    private static final int FLAG_USE_PANORAMA_VIEWER = 1 << 4;
+    private static final int FLAG_RGBZ = 1 << 5;
+
+    private static class Entry {
+        public int pathHash;
+        public long sizeInBytes;
+        public long modifiedMillis;
+        public int flags;
+        public int width;
+        public int height;
+        /** The video rotation in degrees, or -1 if unknown. */
+        public int videoRotation = -1;
+        public int videoWidth = -1;
+        public int videoHeight = -1;
+
+        public Entry copy() {
+            Entry copy = new Entry();
+            copy.pathHash = pathHash;
+            copy.sizeInBytes = sizeInBytes;
+            copy.modifiedMillis = modifiedMillis;
+            copy.flags = flags;
+            copy.width = width;
+            copy.height = height;
+            copy.videoRotation = videoRotation;
+            copy.videoWidth = videoWidth;
+            copy.videoHeight = videoHeight;
+            return copy;
+        }
+
+        public boolean matches(String path, long size, long modifiedMillis) {
+            return pathHash == path.hashCode() && sizeInBytes == size
+                    && this.modifiedMillis == modifiedMillis;
+        }
+    }
+
+    private static FilmstripMetadataCache sInstance;
+
+    /**
+     * @return the cache of this process.
+     */
+    public static synchronized FilmstripMetadataCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new FilmstripMetadataCache(
+                    new File(context.getApplicationContext().getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private final AtomicFile mFile;
+
+    /** Held while the file is read, so it is only read once. */
+    private final Object mLoadLock = new Object();
+    private final Object mLock = new Object();
+
+    /** The entries by key, least recently used first. */
+    @GuardedBy("mLock")
+    private LinkedHashMap<Long, Entry> mEntries = createMap();
+
+    /** Whether the file has been read into {@link #mEntries}. */
+    @GuardedBy("mLock")
+    private boolean mLoaded = false;
+
+    /** Keys invalidated before the file was read. */
+    @GuardedBy("mLock")
+    private final List<Long> mPendingInvalidations = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private boolean mDirty = false;
+
+    private final AtomicBoolean mSavePending = new AtomicBoolean(false);
+
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            mSavePending.set(false);
+            save();
+        }
+    };
+
+    private FilmstripMetadataCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * @return the cached dimensions of the photo with the given MediaStore
+     *         ID, or null if they aren't cached.
+     */
+    @Nullable
+    public Size getPhotoDimensions(long contentId, String path, long sizeInBytes,
+            long modifiedMillis) {
+        Entry entry = getEntry(getKey(contentId, false), path, sizeInBytes, modifiedMillis);
+        if (entry == null || (entry.flags & FLAG_DIMENSIONS) == 0) {
+            return null;
+        }
+        return new Size(entry.width, entry.height);
+    }
+
+    /**
+     * Caches the dimensions of the photo with the given MediaStore ID.
+     */
+    public void putPhotoDimensions(long contentId, String path, long sizeInBytes,
+            long modifiedMillis, Size dimensions) {
+        ensureLoaded();
+        synchronized (mLock) {
+            Entry entry = getOrCreateEntry(getKey(contentId, false), path, sizeInBytes,
+                    modifiedMillis);
+            entry.flags |= FLAG_DIMENSIONS;
+            entry.width = dimensions.getWidth();
+            entry.height = dimensions.getHeight();
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Fills the metadata of the item from the cache, if it is cached.
+     *
+     * @return whether the metadata was cached.
+     */
+    public boolean restoreMetadata(FilmstripItem item) {
+        FilmstripItemData data = item.getData();
+        if (!isCacheable(item)) {
+            return false;
+        }
+        Entry entry = getEntry(getKey(data.getContentId(), item.getAttributes().isVideo()),
+                data.getFilePath(), data.getSizeInBytes(), data.getLastModifiedDate().getTime());
+        if (entry == null || (entry.flags & FLAG_METADATA) == 0) {
+            return false;
+        }
+        Metadata metadata = item.getMetadata();
+        if (item.getAttributes().isVideo()) {
+            metadata.setVideoOrientation(entry.videoRotation < 0 ? null
+                    : Integer.toString(entry.videoRotation));
+            metadata.setVideoWidth(entry.videoWidth);
+            metadata.setVideoHeight(entry.videoHeight);
+        } else {
+            metadata.setPanorama((entry.flags & FLAG_PANORAMA) != 0);
+            metadata.setPanorama360((entry.flags & FLAG_PANORAMA_360) != 0);
+            metadata.setUsePanoramaViewer((entry.flags & FLAG_USE_PANORAMA_VIEWER) != 0);
+            metadata.setHasRgbzData((entry.flags & FLAG_RGBZ) != 0);
+        }
+        return true;
+    }
+
+    /**
+     * Caches the metadata which was loaded for the item.
+     */
+    public void putMetadata(FilmstripItem item) {
+        if (!isCacheable(item)) {
+            return;
+        }
+        FilmstripItemData data = item.getData();
+        Metadata metadata = item.getMetadata();
+        ensureLoaded();
+        synchronized (mLock) {
+            Entry entry = getOrCreateEntry(
+                    getKey(data.getContentId(), item.getAttributes().isVideo()),
+                    data.getFilePath(), data.getSizeInBytes(),
+                    data.getLastModifiedDate().getTime());
+            int flags = (entry.flags & FLAG_DIMENSIONS) | FLAG_METADATA;
+            if (item.getAttributes().isVideo()) {
+                entry.videoRotation = parseRotation(metadata.getVideoOrientation());
+                entry.videoWidth = metadata.getVideoWidth();
+                entry.videoHeight = metadata.getVideoHeight();
+            } else {
+                flags |= metadata.isPanorama() ? FLAG_PANORAMA : 0;
+                flags |= metadata.isPanorama360() ? FLAG_PANORAMA_360 : 0;
+                flags |= metadata.isUsePanoramaViewer() ? FLAG_USE_PANORAMA_VIEWER : 0;
+                flags |= metadata.isHasRgbzData() ? FLAG_RGBZ : 0;
+            }
+            entry.flags = flags;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drops the entry of the MediaStore item with the given URI, which has
+     * changed. URIs of whole collections are ignored; entries of items which
+     * changed are still recognized as stale by their size and modification
+     * time. May be called on any thread.
+     */
+    public void invalidate(Uri uri) {
+        long contentId;
+        try {
+            contentId = ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException ex) {
+            return;
+        }
+        if (contentId < 0) {
+            return;
+        }
+        String uriString = uri.toString();
+        boolean isVideo;
+        if (uriString.startsWith(VideoDataQuery.CONTENT_URI.toString())) {
+            isVideo = true;
+        } else if (uriString.startsWith(PhotoDataQuery.CONTENT_URI.toString())) {
+            isVideo = false;
+        } else {
+            return;
+        }
+        Long key = getKey(contentId, isVideo);
+        synchronized (mLock) {
+            if (!mLoaded) {
+                mPendingInvalidations.add(key);
+            }
+            if (mEntries.remove(key) != null) {
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the cache back to disk on a background thread, if it changed.
+     */
+    public void saveAsync() {
+        synchronized (mLock) {
+            if (!mDirty) {
+                return;
+            }
+        }
+        if (mSavePending.compareAndSet(false, true)) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mSaveTask);
+        }
+    }
+
+    private static boolean isCacheable(FilmstripItem item) {
+        FilmstripItemData data = item.getData();
+        // Only items which are in the MediaStore, and not changing anymore.
+        return data.getContentId() > 0 && data.getFilePath() != null
+                && (item.getAttributes().isImage() || item.getAttributes().isVideo());
+    }
+
+    private static Long getKey(long contentId, boolean isVideo) {
+        // Images and videos are numbered separately.
+        return (contentId << 1) | (isVideo ? 1 : 0);
+    }
+
+    private static int parseRotation(String rotation) {
+        if (rotation == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(rotation);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private Entry getEntry(Long key, String path, long sizeInBytes, long modifiedMillis) {
+        ensureLoaded();
+        synchronized (mLock) {
+            Entry entry = mEntries.get(key);
+            if (entry == null || !entry.matches(path, sizeInBytes, modifiedMillis)) {
+                return null;
+            }
+            return entry.copy();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Entry getOrCreateEntry(Long key, String path, long sizeInBytes,
+            long modifiedMillis) {
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.matches(path, sizeInBytes, modifiedMillis)) {
+            entry = new Entry();
+            entry.pathHash = path.hashCode();
+            entry.sizeInBytes = sizeInBytes;
+            entry.modifiedMillis = modifiedMillis;
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static LinkedHashMap<Long, Entry> createMap() {
+        return new LinkedHashMap<Long, Entry>(16, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    private void ensureLoaded() {
+        synchronized (mLoadLock) {
+            synchronized (mLock) {
+                if (mLoaded) {
+                    return;
+                }
+            }
+            LinkedHashMap<Long, Entry> entries = createMap();
+            try {
+                read(entries);
+                Log.v(TAG, "read " + entries.size() + " entries");
+            } catch (FileNotFoundException ex) {
+                // Nothing cached yet.
+            } catch (IOException ex) {
+                Log.w(TAG, "Could not read metadata cache", ex);
+                entries.clear();
+            }
+            synchronized (mLock) {
+                for (Long key : mPendingInvalidations) {
+                    entries.remove(key);
+                }
+                mPendingInvalidations.clear();
+                mEntries = entries;
+                mLoaded = true;
+            }
+        }
+    }
+
+    private void read(Map<Long, Entry> entries) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+        try {
+            if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring metadata cache of another format");
+                return;
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = input.readLong();
+                Entry entry = new Entry();
+                entry.pathHash = input.readInt();
+                entry.sizeInBytes = input.readLong();
+                entry.modifiedMillis = input.readLong();
+                entry.flags = input.readInt();
+                entry.width = input.readInt();
+                entry.height = input.readInt();
+                entry.videoRotation = input.readShort();
+                entry.videoWidth = input.readInt();
+                entry.videoHeight = input.readInt();
+                entries.put(key, entry);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void save() {
+        ensureLoaded();
+        // Snapshot the entries, least recently used first, so that the order
+        // is kept when they are read back. They are modified in place, so
+        // they are copied.
+        long[] keys;
+        Entry[] entries;
+        synchronized (mLock) {
+            if (!mDirty) {
+                return;
+            }
+            keys = new long[mEntries.size()];
+            entries = new Entry[mEntries.size()];
+            int i = 0;
+            for (Map.Entry<Long, Entry> mapEntry : mEntries.entrySet()) {
+                keys[i] = mapEntry.getKey();
+                entries[i++] = mapEntry.getValue().copy();
+            }
+            mDirty = false;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                Entry entry = entries[i];
+                output.writeLong(keys[i]);
+                output.writeInt(entry.pathHash);
+                output.writeLong(entry.sizeInBytes);
+                output.writeLong(entry.modifiedMillis);
+                output.writeInt(entry.flags);
+                output.writeInt(entry.width);
+                output.writeInt(entry.height);
+                output.writeShort(entry.videoRotation);
+                output.writeInt(entry.videoWidth);
+                output.writeInt(entry.videoHeight);
+            }
+            output.flush();
+            mFile.finishWrite(stream);
+            Log.v(TAG, "wrote " + keys.length + " entries");
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not write metadata cache", ex);
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+            synchronized (mLock) {
+                mDirty = true;
+            }
+        }
+    }
+}
@@ -28,7 +28,8 @@ public class MetadataLoader {
      * Adds information to the data's metadata bundle if any is available and returns
      * true if metadata was added and false otherwise. In either case, sets
      * a flag indicating that we've cached any available metadata and don't need to
-     * load metadata again for this particular item.
+     * load metadata again for this particular item. Metadata found before for the
+     * same unchanged file is taken from the {@link FilmstripMetadataCache}.
      *
      * TODO: Replace with more explicit polymorphism.
      *
@@ -37,6 +38,15 @@ public class MetadataLoader {
      * @return true if any metadata was added to the data, false otherwise.
      */
     public static boolean loadMetadata(final Context context, final FilmstripItem data) {
+        FilmstripMetadataCache cache = FilmstripMetadataCache.getInstance(context);
+        if (cache.restoreMetadata(data)) {
+            data.getMetadata().setLoaded(true);
+            // What the loaders below would have returned.
+            Metadata metadata = data.getMetadata();
+            return data.getAttributes().isVideo()
+                    || metadata.isPanorama() || metadata.isHasRgbzData();
+        }
+
         boolean metadataAdded = false;
         if (data.getAttributes().isImage()) {
             metadataAdded |= PanoramaMetadataLoader.loadPanoramaMetadata(
@@ -47,6 +57,7 @@ public class MetadataLoader {
             metadataAdded = VideoRotationMetadataLoader.loadRotationMetadata(data);
         }
         data.getMetadata().setLoaded(true);
+        cache.putMetadata(data);
         return metadataAdded;
     }
 }
@@ -66,6 +66,14 @@ public class NewestFirstComparator implements Comparator<FilmstripItem> {
         return cmp;
     }
 
+    /**
+     * @return whether the item is sorted by its modification date rather than
+     *         its creation date, since the latter is in the future.
+     */
+    public boolean isSortedByModificationDate(FilmstripItem item) {
+        return isFuture(item.getData().getCreationDate());
+    }
+
     /**
      * Normal date comparison will sort these oldest first,
      * so invert the order by multiplying by -1.
@@ -29,6 +29,16 @@ import java.util.Date;
 public class PhotoDataFactory {
     private static final Log.Tag TAG = new Log.Tag("PhotoDataFact");
 
+    private final FilmstripMetadataCache mMetadataCache;
+
+    /**
+     * @param metadataCache caches the dimensions which have to be decoded
+     *            from the files.
+     */
+    public PhotoDataFactory(FilmstripMetadataCache metadataCache) {
+        mMetadataCache = metadataCache;
+    }
+
     public FilmstripItemData fromCursor(Cursor c) {
         long id = c.getLong(PhotoDataQuery.COL_ID);
         String title = c.getString(PhotoDataQuery.COL_TITLE);
@@ -43,26 +53,32 @@ public class PhotoDataFactory {
         int width = c.getInt(PhotoDataQuery.COL_WIDTH);
         int height = c.getInt(PhotoDataQuery.COL_HEIGHT);
 
+        long sizeInBytes = c.getLong(PhotoDataQuery.COL_SIZE);
+
         Size dimensions;
         // If the width or height is unknown, attempt to decode it from
-        // the physical bitmaps.
+        // the physical bitmaps, unless that was done before.
         if (width <= 0 || height <= 0) {
-
-            Log.w(TAG, "Zero dimension in ContentResolver for "
-                  + filePath + ":" + width + "x" + height);
-
-            dimensions = decodeBitmapDimensions(filePath);
+            dimensions = mMetadataCache.getPhotoDimensions(id, filePath, sizeInBytes,
+                  lastModifiedDate.getTime());
             if (dimensions == null) {
-                // If we are unable to decode non-zero bitmap dimensions
-                // we should not create a filmstrip item data for this
-                // entry in the media store.
-                return null;
+                Log.w(TAG, "Zero dimension in ContentResolver for "
+                      + filePath + ":" + width + "x" + height);
+
+                dimensions = decodeBitmapDimensions(filePath);
+                if (dimensions == null) {
+                    // If we are unable to decode non-zero bitmap dimensions
+                    // we should not create a filmstrip item data for this
+                    // entry in the media store.
+                    return null;
+                }
+                mMetadataCache.putPhotoDimensions(id, filePath, sizeInBytes,
+                      lastModifiedDate.getTime(), dimensions);
             }
         } else {
             dimensions = new Size(width, height);
         }
 
-        long sizeInBytes = c.getLong(PhotoDataQuery.COL_SIZE);
         double latitude = c.getDouble(PhotoDataQuery.COL_LATITUDE);
         double longitude = c.getDouble(PhotoDataQuery.COL_LONGITUDE);
         Location location = Location.from(latitude, longitude);
@@ -38,6 +38,8 @@ public class DebugPropertyHelper {
     private static final String PROP_WRITE_CAPTURE_DATA = PREFIX + ".capture_write";
     /** Is RAW support enabled. */
     private static final String PROP_CAPTURE_DNG = PREFIX + ".capture_dng";
+    /** Log the time spent in each capture response listener. */
+    private static final String PROP_LISTENER_COSTS = PREFIX + ".listener_costs";
 
     private static boolean isPropertyOn(String property) {
         return ON_VALUE.equals(SystemProperties.get(property, OFF_VALUE));
@@ -58,4 +60,8 @@ public class DebugPropertyHelper {
     public static boolean isCaptureDngEnabled() {
         return isPropertyOn(PROP_CAPTURE_DNG);
     }
+
+    public static boolean measureResponseListenerCosts() {
+        return isPropertyOn(PROP_LISTENER_COSTS);
+    }
 }
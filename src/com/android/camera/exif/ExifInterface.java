@@ -35,6 +35,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -932,6 +933,90 @@ public class ExifInterface {
         is.close();
     }
 
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image held in
+     * a ByteBuffer, removing prior exif tags. Only the new exif header is
+     * assembled on the heap; the image data is handed to the file channel in a
+     * single gathering write, so a direct buffer is never copied.
+     *
+     * @param jpeg a ByteBuffer containing a jpeg compressed image between its
+     *            position and limit. The position of the buffer is not
+     *            changed.
+     * @param exifOutFileName a String containing the filepath to which the jpeg
+     *            image with added exif tags will be written.
+     * @return the number of bytes written to the file.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public long writeExif(ByteBuffer jpeg, String exifOutFileName)
+            throws FileNotFoundException, IOException {
+        if (jpeg == null || exifOutFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ByteBuffer[] segments = getExifWriterSegments(jpeg);
+
+        FileOutputStream out = new FileOutputStream(exifOutFileName);
+        try {
+            FileChannel channel = out.getChannel();
+            long remaining = 0;
+            for (ByteBuffer segment : segments) {
+                remaining += segment.remaining();
+            }
+            long written = 0;
+            while (written < remaining) {
+                written += channel.write(segments);
+            }
+            out.close();
+            return written;
+        } finally {
+            closeSilently(out);
+        }
+    }
+
+    /**
+     * Splits a jpeg image into the buffers that make up the same image with
+     * this object's exif header: SOI and the new APP1 segment, followed by
+     * views into the original data that leave out its first APP1 segment.
+     * This uses the same segment handling as {@link ExifOutputStream}.
+     */
+    private ByteBuffer[] getExifWriterSegments(ByteBuffer jpeg) throws IOException {
+        ByteBuffer src = jpeg.duplicate();
+        src.order(ByteOrder.BIG_ENDIAN);
+        final int start = src.position();
+        final int limit = src.limit();
+        if (limit - start < 2 || src.getShort(start) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+
+        ByteArrayOutputStream exifHeader = new ByteArrayOutputStream();
+        OutputStream s = getExifWriterStream(exifHeader);
+        s.write(new byte[] {
+                (byte) (JpegHeader.SOI >> 8), (byte) JpegHeader.SOI
+        });
+        s.flush();
+        ByteBuffer headerBuffer = ByteBuffer.wrap(exifHeader.toByteArray());
+
+        int[] header = ExifOutputStream.scanHeaderSegments(src, start + 2, limit);
+        if (header == null) {
+            // No APP1 or SOF segment, everything after SOI is kept.
+            return new ByteBuffer[] {
+                    headerBuffer, sliceOf(src, start + 2, limit)
+            };
+        }
+        return new ByteBuffer[] {
+                headerBuffer,
+                sliceOf(src, start + 2, header[0]),
+                sliceOf(src, header[1], limit)
+        };
+    }
+
+    private static ByteBuffer sliceOf(ByteBuffer src, int from, int to) {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(to);
+        slice.position(from);
+        return slice;
+    }
+
     /**
      * Wraps an OutputStream object with an ExifOutputStream. Exif tags in this
      * ExifInterface object will be added to a jpeg image written to this
@@ -116,6 +116,10 @@ class ExifOutputStream extends FilterOutputStream {
      */
     @Override
     public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (mState == STATE_SOI && mBuffer.position() == 0
+                && writeWholeHeader(buffer, offset, length)) {
+            return;
+        }
         while ((mByteToSkip > 0 || mByteToCopy > 0 || mState != STATE_JPEG_DATA)
                 && length > 0) {
             if (mByteToSkip > 0) {
@@ -159,7 +163,9 @@ class ExifOutputStream extends FilterOutputStream {
                     length -= byteRead;
                     // Check if this image data doesn't contain SOF.
                     if (mBuffer.position() == 2) {
-                        short tag = mBuffer.getShort();
+                        // Peek without moving the position, which counts
+                        // the bytes buffered so far.
+                        short tag = mBuffer.getShort(0);
                         if (tag == JpegHeader.EOI) {
                             out.write(mBuffer.array(), 0, 2);
                             mBuffer.rewind();
@@ -188,6 +194,69 @@ class ExifOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Fast path for the common case where the first write holds everything
+     * up to the first APP1 or SOF segment: the header segments are located
+     * with a single scan and the image is written out in three bulk writes,
+     * with the new APP1 in between. The output is identical to what the
+     * state machine in {@link #write(byte[], int, int)} produces.
+     *
+     * @return false if nothing was written because the header is not
+     *         complete in this buffer.
+     */
+    private boolean writeWholeHeader(byte[] buffer, int offset, int length)
+            throws IOException {
+        if (length < 2) {
+            return false;
+        }
+        ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+        data.order(ByteOrder.BIG_ENDIAN);
+        if (data.getShort(offset) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        int[] header = scanHeaderSegments(data, offset + 2, offset + length);
+        if (header == null) {
+            return false;
+        }
+
+        out.write(buffer, offset, 2);
+        mState = STATE_FRAME_HEADER;
+        writeExifData();
+        out.write(buffer, offset + 2, header[0] - offset - 2);
+        mState = STATE_JPEG_DATA;
+        out.write(buffer, header[1], offset + length - header[1]);
+        return true;
+    }
+
+    /**
+     * Walks the segments of a jpeg image that follow SOI the way
+     * {@link #write(byte[], int, int)} does: segments are kept up to the first
+     * APP1 segment, which is dropped, or up to the first SOF marker. All data
+     * from there on is kept as is.
+     *
+     * @param data the jpeg image, accessed by absolute index.
+     * @param start the index just after SOI.
+     * @param limit the end of the available data.
+     * @return the index where the kept header segments end and the index
+     *         where the remaining data starts, or null if the available data
+     *         ends before that could be decided.
+     */
+    static int[] scanHeaderSegments(ByteBuffer data, int start, int limit) {
+        int offset = start;
+        while (offset + 4 <= limit) {
+            short marker = data.getShort(offset);
+            int segmentEnd = offset + 4 + Math.max(0, (data.getShort(offset + 2) & 0xffff) - 2);
+            if (marker == JpegHeader.APP1) {
+                return segmentEnd <= limit ? new int[] { offset, segmentEnd } : null;
+            }
+            if (JpegHeader.isSofMarker(marker)) {
+                return new int[] { offset, offset };
+            }
+            offset = segmentEnd;
+        }
+        return null;
+    }
+
     /**
      * Writes the one bytes out. The input data should be a valid JPEG format.
      * After writing, it's Exif header will be replaced by the given header.
@@ -16,19 +16,25 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD. Tags are kept in parallel arrays
+ * sorted by their unsigned tag id, which is also the order in which TIFF
+ * requires them to be written, so lookups are a binary search over a short[]
+ * and no tag id is ever boxed.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
+    private static final int INITIAL_CAPACITY = 8;
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mExifTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -52,10 +58,11 @@ class IfdData {
     }
 
     /**
-     * Get a array the contains all {@link ExifTag} in this IFD.
+     * Get a array the contains all {@link ExifTag} in this IFD, in ascending
+     * order of tag id.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mExifTags, mTagCount);
     }
 
     /**
@@ -76,7 +83,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index >= 0 ? mExifTags[index] : null;
     }
 
     /**
@@ -84,25 +92,52 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        int index = indexOf(tag.getTagId());
+        if (index >= 0) {
+            ExifTag previous = mExifTags[index];
+            mExifTags[index] = tag;
+            return previous;
+        }
+
+        // Tags are mostly added in ascending order while parsing, so this
+        // is usually an append.
+        index = -index - 1;
+        if (mTagCount == mTagIds.length) {
+            int capacity = mTagCount * 2;
+            mTagIds = Arrays.copyOf(mTagIds, capacity);
+            mExifTags = Arrays.copyOf(mExifTags, capacity);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mExifTags, index, mExifTags, index + 1, mTagCount - index);
+        mTagIds[index] = tag.getTagId();
+        mExifTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mExifTags, index + 1, mExifTags, index, mTagCount - index);
+        mExifTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
     }
 
     /**
@@ -134,12 +169,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0; i < data.mTagCount; i++) {
+                    ExifTag tag = data.mExifTags[i];
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
@@ -149,4 +184,27 @@ class IfdData {
         }
         return false;
     }
+
+    /**
+     * Binary search over the unsigned tag ids.
+     *
+     * @return the index of the tag, or (-(insertion point) - 1) if absent.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads selected EXIF tags from a jpeg image without building an
+ * {@link ExifInterface}. While walking the IFDs with {@link ExifParser}, only
+ * the type, count and location of each tag are recorded in a primitive
+ * table; values are decoded from the image bytes when they are asked for.
+ * <p>
+ * If a whitelist of tags is given, only the IFDs that hold them are visited
+ * and parsing stops as soon as all of them have been found, so reading the
+ * orientation of a large image only touches the first few hundred bytes of
+ * its APP1 segment.
+ * <p>
+ * Tags are identified by the same constants as in {@link ExifInterface}, for
+ * example {@link ExifInterface#TAG_ORIENTATION}.
+ */
+public class LazyExifReader {
+    private static final Log.Tag TAG = new Log.Tag("LazyExifReader");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int ALL_IFDS = ExifParser.OPTION_IFD_0 | ExifParser.OPTION_IFD_1
+            | ExifParser.OPTION_IFD_EXIF | ExifParser.OPTION_IFD_GPS
+            | ExifParser.OPTION_IFD_INTEROPERABILITY;
+
+    /**
+     * The parser looks up tag definitions while following IFD links. They are
+     * never modified here, so one instance is shared by all readers.
+     */
+    private static final ExifInterface sTagDefinitions = new ExifInterface();
+    static {
+        // Build the definitions now, while class initialization is
+        // single-threaded.
+        sTagDefinitions.getTagInfo();
+    }
+
+    private final byte[] mJpeg;
+    private ByteBuffer mValues;
+
+    /** Tag constants, values of {@link ExifInterface#defineTag}. */
+    private int[] mTags = new int[INITIAL_CAPACITY];
+    private short[] mTypes = new short[INITIAL_CAPACITY];
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+    /** Position of the first value byte within {@link #mJpeg}. */
+    private int[] mValueOffsets = new int[INITIAL_CAPACITY];
+    private int mTagCount;
+
+    /**
+     * Indexes the EXIF tags of a jpeg image. If the image cannot be parsed,
+     * the reader is empty and every getter returns null.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image. It is not
+     *            copied and must not change while this reader is in use.
+     * @param tags the tags to index. If none are given, every tag in every
+     *            IFD is indexed.
+     */
+    public LazyExifReader(byte[] jpeg, int... tags) {
+        if (jpeg == null) {
+            throw new IllegalArgumentException("Argument is null");
+        }
+        mJpeg = jpeg;
+        try {
+            index(tags);
+        } catch (IOException | ExifInvalidFormatException e) {
+            Log.w(TAG, "Failed to read EXIF data", e);
+        }
+    }
+
+    private void index(int[] tags) throws IOException, ExifInvalidFormatException {
+        int options = 0;
+        if (tags.length == 0) {
+            options = ALL_IFDS;
+        }
+        for (int tag : tags) {
+            options |= getOptionForIfd(ExifInterface.getTrueIfd(tag));
+        }
+
+        ExifParser parser = ExifParser.parse(new ByteArrayInputStream(mJpeg), options,
+                sTagDefinitions);
+        int event = parser.next();
+        if (event == ExifParser.EVENT_END) {
+            return;
+        }
+        mValues = ByteBuffer.wrap(mJpeg);
+        mValues.order(parser.getByteOrder());
+        final int tiffStart = parser.getTiffStartPosition();
+
+        int missingTags = countDistinct(tags);
+        while (event != ExifParser.EVENT_END) {
+            if (event == ExifParser.EVENT_NEW_TAG) {
+                ExifTag tag = parser.getTag();
+                int tagConstant = ExifInterface.defineTag(tag.getIfd(), tag.getTagId());
+                // Values that the parser copied from before IFD0 have no
+                // usable offset, those are left out.
+                boolean hasOffset = !tag.hasValue() || tag.getDataSize() <= 4;
+                if (hasOffset && indexOf(tagConstant) < 0
+                        && (tags.length == 0 || contains(tags, tagConstant))) {
+                    add(tagConstant, tag.getDataType(), tag.getComponentCount(),
+                            tiffStart + tag.getOffset());
+                    missingTags--;
+                    if (tags.length > 0 && missingTags == 0) {
+                        return;
+                    }
+                }
+            }
+            event = parser.next();
+        }
+    }
+
+    /**
+     * @return true if the tag is present in the image and was indexed.
+     */
+    public boolean hasTag(int tag) {
+        return indexOf(tag) >= 0;
+    }
+
+    /**
+     * @return the number of tags that were indexed.
+     */
+    public int getTagCount() {
+        return mTagCount;
+    }
+
+    /**
+     * Returns the first value of a SHORT, LONG or SLONG tag as an int, the
+     * same as {@link ExifInterface#getTagIntValue(int)}.
+     *
+     * @return the value, or null if the tag is absent or of another type.
+     */
+    public Integer getTagIntValue(int tag) {
+        Long value = getTagLongValue(tag);
+        return value == null ? null : (int) value.longValue();
+    }
+
+    /**
+     * Returns the first value of a SHORT, LONG or SLONG tag.
+     *
+     * @return the value, or null if the tag is absent or of another type.
+     */
+    public Long getTagLongValue(int tag) {
+        int i = indexOf(tag);
+        if (i < 0 || mCounts[i] < 1 || !inBounds(i)) {
+            return null;
+        }
+        switch (mTypes[i]) {
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return (long) (mValues.getShort(mValueOffsets[i]) & 0xffff);
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return mValues.getInt(mValueOffsets[i]) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return (long) mValues.getInt(mValueOffsets[i]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the value of an ASCII tag, without the terminating NUL.
+     *
+     * @return the value, or null if the tag is absent or of another type.
+     */
+    public String getTagStringValue(int tag) {
+        int i = indexOf(tag);
+        if (i < 0 || mTypes[i] != ExifTag.TYPE_ASCII || !inBounds(i)) {
+            return null;
+        }
+        int length = mCounts[i];
+        while (length > 0 && mJpeg[mValueOffsets[i] + length - 1] == 0) {
+            length--;
+        }
+        return new String(mJpeg, mValueOffsets[i], length, US_ASCII);
+    }
+
+    /**
+     * Returns the first value of a RATIONAL or SRATIONAL tag.
+     *
+     * @return the value, or null if the tag is absent or of another type.
+     */
+    public Rational getTagRationalValue(int tag) {
+        int i = indexOf(tag);
+        if (i < 0 || mCounts[i] < 1 || !inBounds(i)) {
+            return null;
+        }
+        int offset = mValueOffsets[i];
+        switch (mTypes[i]) {
+            case ExifTag.TYPE_UNSIGNED_RATIONAL:
+                return new Rational(mValues.getInt(offset) & 0xffffffffL,
+                        mValues.getInt(offset + 4) & 0xffffffffL);
+            case ExifTag.TYPE_RATIONAL:
+                return new Rational(mValues.getInt(offset), mValues.getInt(offset + 4));
+            default:
+                return null;
+        }
+    }
+
+    private boolean inBounds(int i) {
+        long end = (long) mValueOffsets[i]
+                + (long) ExifTag.getElementSize(mTypes[i]) * mCounts[i];
+        return mValueOffsets[i] >= 0 && end <= mJpeg.length;
+    }
+
+    /**
+     * The table only holds the handful of tags that were asked for, or one
+     * IFD's worth at most, so a linear scan is fine.
+     */
+    private int indexOf(int tag) {
+        for (int i = 0; i < mTagCount; i++) {
+            if (mTags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void add(int tag, short type, int count, int valueOffset) {
+        if (mTagCount == mTags.length) {
+            int capacity = mTagCount * 2;
+            mTags = Arrays.copyOf(mTags, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mCounts = Arrays.copyOf(mCounts, capacity);
+            mValueOffsets = Arrays.copyOf(mValueOffsets, capacity);
+        }
+        mTags[mTagCount] = tag;
+        mTypes[mTagCount] = type;
+        mCounts[mTagCount] = count;
+        mValueOffsets[mTagCount] = valueOffset;
+        mTagCount++;
+    }
+
+    private static boolean contains(int[] tags, int tag) {
+        for (int t : tags) {
+            if (t == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countDistinct(int[] tags) {
+        int distinct = 0;
+        for (int i = 0; i < tags.length; i++) {
+            boolean seen = false;
+            for (int j = 0; j < i && !seen; j++) {
+                seen = tags[j] == tags[i];
+            }
+            if (!seen) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    private static int getOptionForIfd(int ifd) {
+        switch (ifd) {
+            case IfdId.TYPE_IFD_0:
+                return ExifParser.OPTION_IFD_0;
+            case IfdId.TYPE_IFD_1:
+                return ExifParser.OPTION_IFD_1;
+            case IfdId.TYPE_IFD_EXIF:
+                return ExifParser.OPTION_IFD_EXIF;
+            case IfdId.TYPE_IFD_GPS:
+                return ExifParser.OPTION_IFD_GPS;
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                return ExifParser.OPTION_IFD_INTEROPERABILITY;
+            default:
+                return 0;
+        }
+    }
+}
@@ -31,17 +31,13 @@ import android.util.Pair;
 
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
-import com.android.camera.util.ConcurrentSharedRingBuffer;
 import com.android.camera.util.ConcurrentSharedRingBuffer.PinStateListener;
 import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
 import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
 import com.android.camera.util.Task;
+import com.android.camera.util.TimestampRingBuffer;
 
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -268,7 +264,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
      * Note that this takes care of thread-safe reference counting of images to
      * ensure that they are never leaked by the app.
      */
-    private final ConcurrentSharedRingBuffer<CapturedImage> mCapturedImageBuffer;
+    private final TimestampRingBuffer<CapturedImage> mCapturedImageBuffer;
 
     /** Track the number of open images for debugging purposes. */
     private final AtomicInteger mNumOpenImages = new AtomicInteger(0);
@@ -302,19 +298,10 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
     private ImageCaptureManager.ImageCaptureListener mPendingImageCaptureCallback;
 
     /**
-     * Map from CaptureResult key to the frame number of the capture result
-     * containing the most recent value for this key and the most recent value
-     * of the key.
+     * Tracks the values of the CaptureResult keys which have
+     * {@link MetadataChangeListener}s and invokes them on mListenerHandler.
      */
-    private final Map<Key<?>, Pair<Long, Object>>
-            mMetadata = new ConcurrentHashMap<CaptureResult.Key<?>, Pair<Long, Object>>();
-
-    /**
-     * The set of callbacks to be invoked when an entry in {@link #mMetadata} is
-     * changed.
-     */
-    private final Map<Key<?>, Set<MetadataChangeListener>>
-            mMetadataChangeListeners = new ConcurrentHashMap<Key<?>, Set<MetadataChangeListener>>();
+    private final MetadataChangeDispatcher mMetadataChangeDispatcher;
 
     /**
      * @param maxImages the maximum number of images provided by the
@@ -331,10 +318,11 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
         // Ensure that there are always 2 images available for the framework to
         // continue processing frames.
         // TODO Could we make this tighter?
-        mCapturedImageBuffer = new ConcurrentSharedRingBuffer<ImageCaptureManager.CapturedImage>(
+        mCapturedImageBuffer = new TimestampRingBuffer<ImageCaptureManager.CapturedImage>(
                 maxImages - 2);
 
         mListenerHandler = listenerHandler;
+        mMetadataChangeDispatcher = new MetadataChangeDispatcher(listenerHandler);
         mImageCaptureListenerExecutor = imageCaptureListenerExecutor;
     }
 
@@ -359,15 +347,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
      *            key changes.
      */
     public <T> void addMetadataChangeListener(Key<T> key, MetadataChangeListener listener) {
-        if (!mMetadataChangeListeners.containsKey(key)) {
-            // Listeners may be added to this set from a different thread than
-            // that which must iterate over this set to invoke the listeners.
-            // Therefore, we need a thread save hash set.
-            mMetadataChangeListeners.put(key,
-                    Collections.newSetFromMap(new ConcurrentHashMap<
-                            ImageCaptureManager.MetadataChangeListener, Boolean>()));
-        }
-        mMetadataChangeListeners.get(key).add(listener);
+        mMetadataChangeDispatcher.addListener(key, listener);
     }
 
     /**
@@ -380,17 +360,13 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
      *         been added.
      */
     public <T> boolean removeMetadataChangeListener(Key<T> key, MetadataChangeListener listener) {
-        if (!mMetadataChangeListeners.containsKey(key)) {
-            return false;
-        } else {
-            return mMetadataChangeListeners.get(key).remove(listener);
-        }
+        return mMetadataChangeDispatcher.removeListener(key, listener);
     }
 
     @Override
     public void onCaptureProgressed(CameraCaptureSession session, CaptureRequest request,
             final CaptureResult partialResult) {
-        updateMetadataChangeListeners(partialResult);
+        mMetadataChangeDispatcher.update(partialResult);
     }
 
     @Override
@@ -398,7 +374,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
             final TotalCaptureResult result) {
         final long timestamp = result.get(TotalCaptureResult.SENSOR_TIMESTAMP);
 
-        updateMetadataChangeListeners(result);
+        mMetadataChangeDispatcher.update(result);
 
         // Detect camera thread stall.
         long now = SystemClock.uptimeMillis();
@@ -422,43 +398,6 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
         tryExecutePendingCaptureRequest(timestamp);
     }
 
-    private void updateMetadataChangeListeners(final CaptureResult result) {
-        long frameNumber = result.getFrameNumber();
-
-        // Update mMetadata for whichever keys are present, if this frame is
-        // supplying newer values.
-        for (final Key<?> key : result.getKeys()) {
-            Pair<Long, Object> oldEntry = mMetadata.get(key);
-            final Object oldValue = (oldEntry != null) ? oldEntry.second : null;
-
-            boolean newerValueAlreadyExists = oldEntry != null
-                    && frameNumber < oldEntry.first;
-            if (newerValueAlreadyExists) {
-                continue;
-            }
-
-            final Object newValue = result.get(key);
-            mMetadata.put(key, new Pair<Long, Object>(frameNumber, newValue));
-
-            // If the value has changed, call the appropriate listeners, if
-            // any exist.
-            if (oldValue == newValue || !mMetadataChangeListeners.containsKey(key)) {
-                continue;
-            }
-
-            for (final MetadataChangeListener listener :
-                    mMetadataChangeListeners.get(key)) {
-                mListenerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        listener.onImageMetadataChange(key, oldValue, newValue,
-                                result);
-                    }
-                });
-            }
-        }
-    }
-
     private boolean doMetaDataSwap(final TotalCaptureResult newMetadata, final long timestamp) {
         return mCapturedImageBuffer.swapLeast(timestamp,
                 new SwapTask<CapturedImage>() {
@@ -748,11 +687,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
     private void clearCapturedImageBuffer(int unpinnedReservedSlots) {
         mCapturedImageBuffer.releaseAll();
         closeBuffer();
-        try {
-            mCapturedImageBuffer.reopenBuffer(unpinnedReservedSlots);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        mCapturedImageBuffer.reopenBuffer(unpinnedReservedSlots);
     }
 
     /**
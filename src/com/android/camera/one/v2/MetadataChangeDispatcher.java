@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.CaptureResult.Key;
+import android.os.Build;
+import android.os.Handler;
+
+import com.android.camera.one.v2.ImageCaptureManager.MetadataChangeListener;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Dispatches changes of {@link CaptureResult} values to
+ * {@link MetadataChangeListener}s on a {@link Handler}.
+ * <p>
+ * Only keys which have listeners are tracked. Each has a preallocated slot
+ * holding the frame number and value of its most recent result, and a small
+ * queue of changes waiting to be dispatched, so that {@link #update} does not
+ * allocate. All changes are delivered, in frame order, by a single runnable
+ * which is posted at most once until it has run. A listener is called at most
+ * once per frame: the partial and total results of a frame are coalesced into
+ * one notification. If the handler falls more than
+ * {@link #MAX_PENDING_FRAMES} frames behind, the newest changes of a key are
+ * coalesced too.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class MetadataChangeDispatcher {
+    private static final int MAX_PENDING_FRAMES = 4;
+
+    private static final MetadataChangeListener[] NO_LISTENERS = new MetadataChangeListener[0];
+
+    private static class Slot {
+        public final Key<?> key;
+        public MetadataChangeListener[] listeners = NO_LISTENERS;
+
+        /** The frame number of the most recent value, or -1. */
+        public long frameNumber = -1;
+        public Object value;
+
+        /** The value most recently passed to the listeners. */
+        public Object dispatchedValue;
+
+        public final long[] pendingFrameNumbers = new long[MAX_PENDING_FRAMES];
+        public final Object[] pendingValues = new Object[MAX_PENDING_FRAMES];
+        public final CaptureResult[] pendingResults = new CaptureResult[MAX_PENDING_FRAMES];
+        public int pendingCount;
+
+        public Slot(Key<?> key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the value the listeners will have seen last, once all
+         *         pending changes are dispatched.
+         */
+        public Object getLastScheduledValue() {
+            return pendingCount > 0 ? pendingValues[pendingCount - 1] : dispatchedValue;
+        }
+
+        public void removeNewestPending() {
+            pendingCount--;
+            pendingValues[pendingCount] = null;
+            pendingResults[pendingCount] = null;
+        }
+
+        public void removeOldestPending() {
+            pendingCount--;
+            System.arraycopy(pendingFrameNumbers, 1, pendingFrameNumbers, 0, pendingCount);
+            System.arraycopy(pendingValues, 1, pendingValues, 0, pendingCount);
+            System.arraycopy(pendingResults, 1, pendingResults, 0, pendingCount);
+            pendingValues[pendingCount] = null;
+            pendingResults[pendingCount] = null;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+
+    /**
+     * The tracked keys. The array is replaced, never modified, when listeners
+     * are added or removed.
+     */
+    private Slot[] mSlots = new Slot[0];
+
+    /** Whether {@link #mDispatchTask} has been posted and not run yet. */
+    private boolean mDispatchPosted = false;
+
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPendingChanges();
+        }
+    };
+
+    /**
+     * @param handler the handler on which to invoke listeners.
+     */
+    public MetadataChangeDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Adds a listener for the given key. Adding a listener which is already
+     * registered for the key has no effect.
+     */
+    public void addListener(Key<?> key, MetadataChangeListener listener) {
+        synchronized (mLock) {
+            int index = indexOf(key);
+            if (index < 0) {
+                index = mSlots.length;
+                mSlots = Arrays.copyOf(mSlots, index + 1);
+                mSlots[index] = new Slot(key);
+            }
+            Slot slot = mSlots[index];
+            if (Arrays.asList(slot.listeners).contains(listener)) {
+                return;
+            }
+            MetadataChangeListener[] listeners =
+                    Arrays.copyOf(slot.listeners, slot.listeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+            slot.listeners = listeners;
+        }
+    }
+
+    /**
+     * Removes a listener for the given key. Once a key has no more listeners,
+     * its values are no longer tracked.
+     *
+     * @return true if the listener was removed, false if no such listener had
+     *         been added.
+     */
+    public boolean removeListener(Key<?> key, MetadataChangeListener listener) {
+        synchronized (mLock) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return false;
+            }
+            Slot slot = mSlots[index];
+            int listenerIndex = Arrays.asList(slot.listeners).indexOf(listener);
+            if (listenerIndex < 0) {
+                return false;
+            }
+            slot.listeners = remove(slot.listeners, listenerIndex,
+                    new MetadataChangeListener[slot.listeners.length - 1]);
+            if (slot.listeners.length == 0) {
+                mSlots = remove(mSlots, index, new Slot[mSlots.length - 1]);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the values of the tracked keys present in the given result, if
+     * they are newer than the ones already seen, and schedules listeners of
+     * those which changed.
+     */
+    public void update(CaptureResult result) {
+        long frameNumber = result.getFrameNumber();
+        synchronized (mLock) {
+            boolean changed = false;
+            for (Slot slot : mSlots) {
+                if (frameNumber < slot.frameNumber) {
+                    continue;
+                }
+                Object value = result.get(slot.key);
+                if (value == null) {
+                    continue;
+                }
+                slot.frameNumber = frameNumber;
+                if (Objects.equals(value, slot.value)) {
+                    continue;
+                }
+                slot.value = value;
+
+                boolean coalesce = slot.pendingCount == MAX_PENDING_FRAMES
+                        || (slot.pendingCount > 0
+                        && slot.pendingFrameNumbers[slot.pendingCount - 1] == frameNumber);
+                if (coalesce) {
+                    slot.removeNewestPending();
+                }
+                if (Objects.equals(value, slot.getLastScheduledValue())) {
+                    // Coalescing reverted the change the listeners were
+                    // about to see.
+                    continue;
+                }
+                slot.pendingFrameNumbers[slot.pendingCount] = frameNumber;
+                slot.pendingValues[slot.pendingCount] = value;
+                slot.pendingResults[slot.pendingCount] = result;
+                slot.pendingCount++;
+                changed = true;
+            }
+            if (changed && !mDispatchPosted) {
+                mDispatchPosted = mHandler.post(mDispatchTask);
+            }
+        }
+    }
+
+    /**
+     * Calls the listeners of each pending change, oldest frame first. Runs on
+     * {@link #mHandler}.
+     */
+    private void dispatchPendingChanges() {
+        while (true) {
+            Key<?> key;
+            Object oldValue;
+            Object newValue;
+            CaptureResult result;
+            MetadataChangeListener[] listeners;
+            synchronized (mLock) {
+                Slot oldest = null;
+                for (Slot slot : mSlots) {
+                    if (slot.pendingCount > 0 && (oldest == null
+                            || slot.pendingFrameNumbers[0] < oldest.pendingFrameNumbers[0])) {
+                        oldest = slot;
+                    }
+                }
+                if (oldest == null) {
+                    mDispatchPosted = false;
+                    return;
+                }
+                key = oldest.key;
+                oldValue = oldest.dispatchedValue;
+                newValue = oldest.pendingValues[0];
+                result = oldest.pendingResults[0];
+                listeners = oldest.listeners;
+                oldest.dispatchedValue = newValue;
+                oldest.removeOldestPending();
+            }
+
+            // Listeners may add or remove listeners, which replaces the
+            // arrays rather than modifying the one being iterated.
+            for (MetadataChangeListener listener : listeners) {
+                listener.onImageMetadataChange(key, oldValue, newValue, result);
+            }
+        }
+    }
+
+    private int indexOf(Key<?> key) {
+        for (int i = 0; i < mSlots.length; i++) {
+            if (mSlots[i].key.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <T> T[] remove(T[] array, int index, T[] result) {
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, result.length - index);
+        return result;
+    }
+}
@@ -537,8 +537,9 @@ public class OneCameraZslImpl extends AbstractOneCamera {
                                         Object newValue,
                                         CaptureResult result) {
                                     Log.v(TAG, "AE State Changed");
-                                    if (oldValue.equals(Integer.valueOf(
-                                            CaptureResult.CONTROL_AE_STATE_PRECAPTURE))) {
+                                    if (Integer.valueOf(
+                                            CaptureResult.CONTROL_AE_STATE_PRECAPTURE)
+                                            .equals(oldValue)) {
                                         mCaptureManager.removeMetadataChangeListener(key, this);
                                         sendSingleRequest(params);
                                         // TODO: Delay this until
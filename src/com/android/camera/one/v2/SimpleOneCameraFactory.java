@@ -63,15 +63,12 @@ import com.android.camera.one.v2.sharedimagereader.SharedImageReaderFactory;
 import com.android.camera.stats.UsageStatistics;
 import com.android.camera.util.AndroidContext;
 import com.android.camera.util.GservicesHelper;
-import com.android.camera.util.Provider;
 import com.android.camera.util.Size;
 import com.google.common.base.Supplier;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Creates a camera which takes jpeg images using the hardware encoder with
@@ -79,6 +76,13 @@ import java.util.concurrent.Executors;
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class SimpleOneCameraFactory implements OneCameraFactory {
+    /**
+     * The maximum number of camera commands to run at the same time. Most
+     * commands wait for exclusive access to the camera, so more would only add
+     * threads which are blocked.
+     */
+    private static final int MAX_CONCURRENT_COMMANDS = 4;
+
     private final int mImageFormat;
     private final int mMaxImageCount;
     private final ImageRotationCalculator mImageRotationCalculator;
@@ -139,16 +143,7 @@ public class SimpleOneCameraFactory implements OneCameraFactory {
                         new Lifetime(cameraLifetime), cameraCaptureSession, new HandlerFactory());
 
                 CameraCommandExecutor cameraCommandExecutor = new CameraCommandExecutor(
-                        Loggers.tagFactory(),
-                        new Provider<ExecutorService>() {
-                            @Override
-                            public ExecutorService get() {
-                                // Use a dynamically-expanding thread pool to
-                                // allow any number of commands to execute
-                                // simultaneously.
-                                return Executors.newCachedThreadPool();
-                            }
-                        });
+                        Loggers.tagFactory(), MAX_CONCURRENT_COMMANDS);
 
                 // Create the shared image reader.
                 SharedImageReaderFactory sharedImageReaderFactory =
@@ -29,6 +29,7 @@ import com.android.camera.async.Lifetime;
 import com.android.camera.async.MainThread;
 import com.android.camera.async.Observable;
 import com.android.camera.async.Observables;
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.async.Updatable;
 import com.android.camera.burst.BurstFacade;
 import com.android.camera.burst.BurstTaker;
@@ -65,7 +66,6 @@ import com.android.camera.stats.UsageStatistics;
 import com.android.camera.util.AndroidContext;
 import com.android.camera.util.ApiHelper;
 import com.android.camera.util.GservicesHelper;
-import com.android.camera.util.Provider;
 import com.android.camera.util.Size;
 import com.google.common.base.Supplier;
 
@@ -79,6 +79,13 @@ import java.util.concurrent.Executors;
 public class ZslOneCameraFactory implements OneCameraFactory {
     private static Tag TAG = new Tag("ZslOneCamFactory");
 
+    /**
+     * The maximum number of camera commands to run at the same time. Most
+     * commands wait for exclusive access to the camera, so more would only add
+     * threads which are blocked.
+     */
+    private static final int MAX_CONCURRENT_COMMANDS = 4;
+
     private final Logger mLogger;
     private final int mImageFormat;
     private final int mMaxImageCount;
@@ -183,16 +190,7 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                                 imageReader, new HandlerFactory(), maxRingBufferSize);
 
                 CameraCommandExecutor cameraCommandExecutor = new CameraCommandExecutor(
-                        Loggers.tagFactory(),
-                        new Provider<ExecutorService>() {
-                            @Override
-                            public ExecutorService get() {
-                                // Use a dynamically-expanding thread pool to
-                                // allow any number of commands to execute
-                                // simultaneously.
-                                return Executors.newCachedThreadPool();
-                            }
-                        });
+                        Loggers.tagFactory(), MAX_CONCURRENT_COMMANDS);
 
                 // Create the request builder used by all camera operations.
                 // Streams, ResponseListeners, and Parameters added to
@@ -244,6 +242,17 @@ public class ZslOneCameraFactory implements OneCameraFactory {
 
                 lifetime.add(cameraCommandExecutor);
 
+                // Filters and scores the images in the zsl ring-buffer in
+                // parallel when taking a picture.
+                final ExecutorService zslScoringExecutor = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors());
+                lifetime.add(new SafeCloseable() {
+                    @Override
+                    public void close() {
+                        zslScoringExecutor.shutdown();
+                    }
+                });
+
                 // Create the picture-taker.
                 ZslPictureTakerFactory pictureTakerFactory = ZslPictureTakerFactory.create(
                         Loggers.tagFactory(),
@@ -256,7 +265,8 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                         sharedImageReaderFactory.provideZSLStream(),
                         sharedImageReaderFactory.provideMetadataPool(),
                         flashSetting,
-                        zslAndPreviewTemplate);
+                        zslAndPreviewTemplate,
+                        zslScoringExecutor);
 
                 BurstTaker burstTaker = new BurstTakerImpl(cameraCommandExecutor,
                         frameServer,
@@ -16,8 +16,6 @@
 
 package com.android.camera.one.v2.commands;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
 import android.hardware.camera2.CameraAccessException;
 
 import com.android.camera.async.SafeCloseable;
@@ -25,32 +23,130 @@ import com.android.camera.debug.Log;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.v2.camera2proxy.CameraCaptureSessionClosedException;
 import com.android.camera.one.v2.core.ResourceAcquisitionFailedException;
-import com.android.camera.util.Provider;
 import com.google.common.util.concurrent.Futures;
 
-import java.util.concurrent.ExecutorService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
- * Executes camera commands on a thread pool.
+ * Executes camera commands on a bounded thread pool.
+ * <p>
+ * Commands are queued in one of several {@link Lane}s. Queued commands in the
+ * capture lane are always started first, and a command in the coalescing lane
+ * replaces any queued, but not yet started, command of the same class. The
+ * time each class of command spends queued and running is counted, see
+ * {@link #getCommandStats}.
  */
 public class CameraCommandExecutor implements SafeCloseable {
+    /**
+     * The lanes in which commands may be queued, in order of priority.
+     */
+    public static enum Lane {
+        /**
+         * For commands which capture images, and must start as soon as
+         * possible to keep shutter lag down.
+         */
+        CAPTURE,
+        /**
+         * For commands which are superseded by a newer command of the same
+         * class, such as AF scans and preview updates, of which only the
+         * latest is worth running.
+         */
+        COALESCING,
+        /**
+         * For all other commands.
+         */
+        DEFAULT,
+    }
+
+    /**
+     * The number of commands of a class which were run, and how long they took.
+     */
+    public static class CommandStats {
+        private long mCount;
+        private long mTotalQueuedNanos;
+        private long mMaxQueuedNanos;
+        private long mTotalRunNanos;
+
+        private CommandStats() {
+        }
+
+        private CommandStats(CommandStats other) {
+            mCount = other.mCount;
+            mTotalQueuedNanos = other.mTotalQueuedNanos;
+            mMaxQueuedNanos = other.mMaxQueuedNanos;
+            mTotalRunNanos = other.mTotalRunNanos;
+        }
+
+        private synchronized void add(long queuedNanos, long runNanos) {
+            mCount++;
+            mTotalQueuedNanos += queuedNanos;
+            mMaxQueuedNanos = Math.max(mMaxQueuedNanos, queuedNanos);
+            mTotalRunNanos += runNanos;
+        }
+
+        /** @return The number of commands which were run. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** @return The mean time between submitting and starting a command. */
+        public long getMeanQueuedNanos() {
+            return mCount == 0 ? 0 : mTotalQueuedNanos / mCount;
+        }
+
+        /** @return The longest time between submitting and starting a command. */
+        public long getMaxQueuedNanos() {
+            return mMaxQueuedNanos;
+        }
+
+        /** @return The mean time a command took to run. */
+        public long getMeanRunNanos() {
+            return mCount == 0 ? 0 : mTotalRunNanos / mCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, queued=%.1fms (max %.1fms), run=%.1fms", mCount,
+                    getMeanQueuedNanos() / 1e6, mMaxQueuedNanos / 1e6, getMeanRunNanos() / 1e6);
+        }
+    }
+
     private class CommandRunnable implements Runnable {
         private final CameraCommand mCommand;
+        private final Lane mLane;
+        private final long mSubmitNanos;
+        private CommandTask mTask;
 
-        public CommandRunnable(CameraCommand command) {
+        public CommandRunnable(CameraCommand command, Lane lane) {
             mCommand = command;
+            mLane = lane;
+            mSubmitNanos = System.nanoTime();
         }
 
         @Override
         public void run() {
+            long startNanos = System.nanoTime();
+            if (mLane == Lane.COALESCING) {
+                synchronized (mLock) {
+                    // Now that it is running, newer commands can't replace it.
+                    if (mQueuedCoalescingTasks.get(mCommand.getClass()) == mTask) {
+                        mQueuedCoalescingTasks.remove(mCommand.getClass());
+                    }
+                }
+            }
             try {
-                mLog.d("Executing command: " + mCommand + " START");
                 mCommand.run();
-                mLog.d("Executing command: " + mCommand + " END");
             } catch (ResourceAcquisitionFailedException e) {
                 // This may indicate that the command would have otherwise
                 // deadlocked waiting for resources which can never be acquired,
@@ -71,44 +167,134 @@ public class CameraCommandExecutor implements SafeCloseable {
                         mCommand);
             } catch (Exception e) {
                 mLog.e("Exception when executing command: " + mCommand, e);
+            } finally {
+                getStats(mCommand.getClass()).add(startNanos - mSubmitNanos,
+                        System.nanoTime() - startNanos);
             }
         }
     }
 
+    /**
+     * A queued command, ordered by lane and then by submission.
+     */
+    private static class CommandTask extends FutureTask<Void> implements
+            Comparable<CommandTask> {
+        private final Lane mLane;
+        private final long mSequenceNumber;
+
+        public CommandTask(CommandRunnable runnable, long sequenceNumber) {
+            super(runnable, null);
+            mLane = runnable.mLane;
+            mSequenceNumber = sequenceNumber;
+            runnable.mTask = this;
+        }
+
+        @Override
+        public int compareTo(CommandTask other) {
+            if (mLane != other.mLane) {
+                return mLane.compareTo(other.mLane);
+            }
+            return Long.compare(mSequenceNumber, other.mSequenceNumber);
+        }
+    }
+
+    /**
+     * Idle threads are stopped after this long.
+     */
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
     private final Logger mLog;
-    private final Provider<ExecutorService> mExecutorProvider;
+    private final int mMaxThreadCount;
     private final Object mLock;
+    private final AtomicLong mNextSequenceNumber;
+    private final ConcurrentHashMap<Class<?>, CommandStats> mCommandStats;
     @Nullable
     @GuardedBy("mLock")
-    private ExecutorService mExecutor;
+    private ThreadPoolExecutor mExecutor;
+    /**
+     * The queued commands of the coalescing lane, by their command's class.
+     */
+    @GuardedBy("mLock")
+    private final Map<Class<?>, CommandTask> mQueuedCoalescingTasks;
     @GuardedBy("mLock")
     private boolean mClosed;
 
-    public CameraCommandExecutor(Logger.Factory loggerFactory,
-            Provider<ExecutorService> threadPoolExecutor) {
+    /**
+     * @param maxThreadCount The maximum number of commands to run at the same
+     *            time. Note that commands which wait for exclusive access to
+     *            the camera occupy a thread while waiting.
+     */
+    public CameraCommandExecutor(Logger.Factory loggerFactory, int maxThreadCount) {
         mLog = loggerFactory.create(new Log.Tag("CommandExecutor"));
 
         mLock = new Object();
-        mExecutorProvider = threadPoolExecutor;
+        mMaxThreadCount = maxThreadCount;
+        mNextSequenceNumber = new AtomicLong();
+        mCommandStats = new ConcurrentHashMap<>();
+        mQueuedCoalescingTasks = new HashMap<>();
         mClosed = false;
     }
 
     /**
-     * Executes the given command, returning a Future to indicate its status and
-     * allow (interruptible) cancellation.
+     * Executes the given command in the default lane, returning a Future to
+     * indicate its status and allow (interruptible) cancellation.
      */
     public Future<?> execute(CameraCommand command) {
+        return execute(command, Lane.DEFAULT);
+    }
+
+    /**
+     * Executes the given command in the given lane, returning a Future to
+     * indicate its status and allow (interruptible) cancellation. The Future is
+     * canceled if the command is replaced before it starts.
+     */
+    public Future<?> execute(CameraCommand command, Lane lane) {
         if (mClosed) {
             return Futures.immediateFuture(null);
         }
+        CommandTask task = new CommandTask(new CommandRunnable(command, lane),
+                mNextSequenceNumber.getAndIncrement());
         synchronized (mLock) {
             if (mExecutor == null) {
                 // Create a new executor, if necessary.
-                mExecutor = mExecutorProvider.get();
+                mExecutor = new ThreadPoolExecutor(mMaxThreadCount, mMaxThreadCount,
+                        THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new PriorityBlockingQueue<Runnable>());
+                mExecutor.allowCoreThreadTimeOut(true);
+            }
+            if (lane == Lane.COALESCING) {
+                CommandTask replacedTask = mQueuedCoalescingTasks.put(command.getClass(), task);
+                if (replacedTask != null) {
+                    replacedTask.cancel(false);
+                    mExecutor.remove(replacedTask);
+                }
+            }
+            mExecutor.execute(task);
+        }
+        return task;
+    }
+
+    /**
+     * @return The statistics of all commands run so far, by the simple name of
+     *         their class.
+     */
+    public Map<String, CommandStats> getCommandStats() {
+        Map<String, CommandStats> stats = new HashMap<>();
+        for (Map.Entry<Class<?>, CommandStats> entry : mCommandStats.entrySet()) {
+            synchronized (entry.getValue()) {
+                stats.put(entry.getKey().getSimpleName(), new CommandStats(entry.getValue()));
             }
-            checkNotNull(mExecutor);
-            return mExecutor.submit(new CommandRunnable(command));
         }
+        return stats;
+    }
+
+    private CommandStats getStats(Class<?> commandClass) {
+        CommandStats stats = mCommandStats.get(commandClass);
+        if (stats == null) {
+            mCommandStats.putIfAbsent(commandClass, new CommandStats());
+            stats = mCommandStats.get(commandClass);
+        }
+        return stats;
     }
 
     /**
@@ -118,11 +304,7 @@ public class CameraCommandExecutor implements SafeCloseable {
      */
     public void flush() {
         synchronized (mLock) {
-            if (mExecutor != null) {
-                mExecutor.shutdownNow();
-            }
-
-            mExecutor = null;
+            shutdownExecutor();
         }
     }
 
@@ -133,12 +315,22 @@ public class CameraCommandExecutor implements SafeCloseable {
         // waiting for results from the camera device which will never arrive,
         // or for resources which may no longer be acquired.
         synchronized (mLock) {
-            if (mExecutor != null) {
-                mExecutor.shutdownNow();
-            }
-
-            mExecutor = null;
+            shutdownExecutor();
             mClosed = true;
         }
+        mLog.i("Command stats: " + getCommandStats());
+    }
+
+    @GuardedBy("mLock")
+    private void shutdownExecutor() {
+        if (mExecutor != null) {
+            for (Runnable queuedTask : mExecutor.shutdownNow()) {
+                // Never started, so they will never complete otherwise.
+                ((CommandTask) queuedTask).cancel(false);
+            }
+        }
+
+        mExecutor = null;
+        mQueuedCoalescingTasks.clear();
     }
 }
@@ -26,7 +26,8 @@ import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * Converts a {@link CameraCommand} into a {@link Runnable} which interrupts and
- * restarts the command if it was already running.
+ * restarts the command if it was already running. The command is run in the
+ * coalescing lane, so a restart which is still queued is replaced as well.
  */
 @ThreadSafe
 @ParametersAreNonnullByDefault
@@ -54,7 +55,8 @@ public final class ResettingRunnableCameraCommand implements Runnable {
             // Cancel, via interruption, the already-running command, one has
             // been started and has not yet completed.
             mInProgressCommand.cancel(true /* mayInterruptIfRunning */);
-            mInProgressCommand = mExecutor.execute(mCommand);
+            mInProgressCommand = mExecutor.execute(mCommand,
+                    CameraCommandExecutor.Lane.COALESCING);
         }
     }
 }
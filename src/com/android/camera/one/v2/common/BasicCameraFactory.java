@@ -90,7 +90,8 @@ public class BasicCameraFactory {
         requestTemplate.setParam(
               CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
         requestTemplate.setParam(
-              CaptureRequest.CONTROL_AE_MODE, new FlashBasedAEMode(flash, hdrSceneSetting));
+              CaptureRequest.CONTROL_AE_MODE, new FlashBasedAEMode(flash, hdrSceneSetting),
+              flash, hdrSceneSetting);
         requestTemplate.setParam(
               CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposure);
 
@@ -100,18 +101,20 @@ public class BasicCameraFactory {
         requestTemplate.setParam(CaptureRequest.CONTROL_MODE,
               new ControlModeSelector(hdrSceneSetting,
                     faceDetectMode,
-                    cameraCharacteristics.getSupportedHardwareLevel()));
+                    cameraCharacteristics.getSupportedHardwareLevel()),
+              hdrSceneSetting);
         requestTemplate.setParam(
               CaptureRequest.CONTROL_SCENE_MODE, new ControlSceneModeSelector(
                     hdrSceneSetting,
                     faceDetectMode,
-                    cameraCharacteristics.getSupportedHardwareLevel()));
+                    cameraCharacteristics.getSupportedHardwareLevel()),
+              hdrSceneSetting);
         requestTemplate.setParam(CaptureRequest.STATISTICS_FACE_DETECT_MODE,
-              new StatisticsFaceDetectMode(faceDetectMode));
+              new StatisticsFaceDetectMode(faceDetectMode).get());
 
         Supplier<Rect> cropRegion = new ZoomedCropRegion(
                 cameraCharacteristics.getSensorInfoActiveArraySize(), zoom);
-        requestTemplate.setParam(CaptureRequest.SCALER_CROP_REGION, cropRegion);
+        requestTemplate.setParam(CaptureRequest.SCALER_CROP_REGION, cropRegion, zoom);
 
         CameraCommand previewUpdaterCommand =
               previewCommandFactory.get(requestTemplate, templateType);
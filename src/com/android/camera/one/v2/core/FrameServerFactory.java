@@ -21,6 +21,8 @@ import android.os.Handler;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
 import com.android.camera.async.Observable;
+import com.android.camera.debug.DebugPropertyHelper;
+import com.android.camera.debug.Loggers;
 import com.android.camera.one.v2.camera2proxy.CameraCaptureSessionProxy;
 
 public class FrameServerFactory {
@@ -39,8 +41,12 @@ public class FrameServerFactory {
         // TODO Maybe enable closing the FrameServer along with the lifetime?
         // It would allow clean reuse of the cameraCaptureSession with
         // non-frameserver interaction.
+        ResponseListenerCosts listenerCosts = null;
+        if (DebugPropertyHelper.measureResponseListenerCosts()) {
+            listenerCosts = new ResponseListenerCosts(Loggers.tagFactory());
+        }
         mEphemeralFrameServer = new FrameServerImpl(new TagDispatchCaptureSession
-                (cameraCaptureSession, cameraHandler));
+                (cameraCaptureSession, cameraHandler, listenerCosts));
 
         ObservableFrameServer ofs = new ObservableFrameServer(mEphemeralFrameServer);
         mFrameServer = ofs;
@@ -181,8 +181,12 @@ public class RequestBuilder {
      * @return A new {@link Request} based on the current state of the builder.
      */
     public Request build() {
-        return new RequestImpl(mBuilder, mAllocations,
-                new ResponseListenerBroadcaster(new ArrayList<>(mResponseListeners)));
+        // Templates add all of their listeners as a single fan-out, which
+        // can often be used as is.
+        ResponseListener listener = mResponseListeners.size() == 1
+                ? mResponseListeners.iterator().next()
+                : new ResponseListenerFanOut(mResponseListeners);
+        return new RequestImpl(mBuilder, mAllocations, listener);
     }
 
 }
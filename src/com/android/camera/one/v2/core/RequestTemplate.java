@@ -24,10 +24,14 @@ import java.util.Set;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CaptureRequest;
 
+import com.android.camera.async.Observable;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 
+import javax.annotation.concurrent.GuardedBy;
+
 /**
  * A {@link RequestBuilder.Factory} which allows modifying each
  * {@link RequestBuilder} that is created.
@@ -38,27 +42,99 @@ import com.google.common.base.Suppliers;
  * For example, a RequestBuilder.Factory could be created which produces request
  * builders which already have the latest zoom settings, preview surface,
  * metering regions, auto-focus state listener, etc. applied.
+ * <p>
+ * To keep creating request builders cheap, the values of parameters are
+ * cached where possible: constant values are resolved once, and values which
+ * are derived from {@link Observable}s are only re-resolved when the value of
+ * one of those observables changes. The listeners are combined into a single
+ * listener, and the streams are copied into an array, once rather than for
+ * every request builder.
  */
 public class RequestTemplate implements RequestBuilder.Factory, ResponseManager {
     private static class Parameter<T> {
+        /**
+         * A value of the parameter, with the values of its dependencies at the
+         * time it was resolved.
+         */
+        private static class Resolved<T> {
+            public final T value;
+            public final Object[] dependencyValues;
+
+            private Resolved(T value, Object[] dependencyValues) {
+                this.value = value;
+                this.dependencyValues = dependencyValues;
+            }
+        }
+
         private final CaptureRequest.Key<T> key;
         private final Supplier<T> value;
+        /**
+         * The observables the value is derived from, or null if the value
+         * has to be resolved for every request builder.
+         */
+        private final Observable<?>[] dependencies;
+        private volatile Resolved<T> resolved;
 
-        private Parameter(CaptureRequest.Key<T> key, Supplier<T> value) {
+        private Parameter(CaptureRequest.Key<T> key, Supplier<T> value,
+                Observable<?>[] dependencies) {
             this.key = key;
             this.value = value;
+            this.dependencies = dependencies;
         }
 
         public void addToBuilder(RequestBuilder builder) {
-            builder.setParam(key, value.get());
+            if (dependencies == null) {
+                builder.setParam(key, value.get());
+                return;
+            }
+            Resolved<T> current = resolved;
+            if (current == null || !isCurrent(current)) {
+                // Read the dependencies first, so that if one changes while
+                // resolving the value, the value is resolved again next time.
+                Object[] dependencyValues = new Object[dependencies.length];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencyValues[i] = dependencies[i].get();
+                }
+                current = new Resolved<>(value.get(), dependencyValues);
+                resolved = current;
+            }
+            builder.setParam(key, current.value);
+        }
+
+        private boolean isCurrent(Resolved<T> resolved) {
+            for (int i = 0; i < dependencies.length; i++) {
+                if (!Objects.equal(resolved.dependencyValues[i], dependencies[i].get())) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
+    private static final Observable<?>[] NO_DEPENDENCIES = new Observable<?>[0];
+
     private final RequestBuilder.Factory mRequestBuilderFactory;
-    private final Set<ResponseListener> mResponseListeners;
     private final List<Parameter<?>> mParameters;
+
+    /**
+     * Listeners and streams may be added while request builders are being
+     * created on other threads.
+     */
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Set<ResponseListener> mResponseListeners;
+    @GuardedBy("mLock")
     private final List<CaptureStream> mCaptureStreams;
 
+    /**
+     * All of {@link #mResponseListeners} combined, and a copy of
+     * {@link #mCaptureStreams}, or null if either has changed since.
+     */
+    @GuardedBy("mLock")
+    private ResponseListener mResponseListenerSnapshot;
+    @GuardedBy("mLock")
+    private CaptureStream[] mCaptureStreamSnapshot;
+
     public RequestTemplate(RequestBuilder.Factory requestBuilderFactory) {
         mRequestBuilderFactory = requestBuilderFactory;
         mResponseListeners = new HashSet<>();
@@ -67,16 +143,36 @@ public class RequestTemplate implements RequestBuilder.Factory, ResponseManager
     }
 
     public <T> RequestTemplate setParam(CaptureRequest.Key<T> key, T value) {
-        return setParam(key, Suppliers.ofInstance(value));
+        mParameters.add(new Parameter<T>(key, Suppliers.ofInstance(value), NO_DEPENDENCIES));
+        return this;
     }
 
     /**
      * Attaches the given value to all derived RequestBuilders. Note that the
-     * value is polled when each new RequestBuilder is created.
+     * value is polled when each new RequestBuilder is created, unless it is an
+     * {@link Observable}, in which case it is only polled again when it
+     * changes.
      */
     public <T> RequestTemplate setParam(CaptureRequest.Key<T> key,
                                         Supplier<T> value) {
-        mParameters.add(new Parameter<T>(key, value));
+        if (value instanceof Observable) {
+            return setParam(key, value, (Observable<?>) value);
+        }
+        mParameters.add(new Parameter<T>(key, value, null));
+        return this;
+    }
+
+    /**
+     * Attaches the given value to all derived RequestBuilders. The value is
+     * polled when the first RequestBuilder is created, and then only again
+     * once the value of any of the given observables has changed.
+     *
+     * @param dependencies All of the observables the value is derived from.
+     */
+    public <T> RequestTemplate setParam(CaptureRequest.Key<T> key,
+                                        Supplier<T> value,
+                                        Observable<?>... dependencies) {
+        mParameters.add(new Parameter<T>(key, value, dependencies.clone()));
         return this;
     }
 
@@ -85,27 +181,43 @@ public class RequestTemplate implements RequestBuilder.Factory, ResponseManager
      */
     @Override
     public void addResponseListener(ResponseListener listener) {
-        mResponseListeners.add(listener);
+        synchronized (mLock) {
+            mResponseListeners.add(listener);
+            mResponseListenerSnapshot = null;
+        }
     }
 
     /**
      * Attaches the given stream to all derived RequestBuilders.
      */
     public RequestTemplate addStream(CaptureStream stream) {
-        mCaptureStreams.add(stream);
+        synchronized (mLock) {
+            mCaptureStreams.add(stream);
+            mCaptureStreamSnapshot = null;
+        }
         return this;
     }
 
     @Override
     public RequestBuilder create(int templateType) throws CameraAccessException {
         RequestBuilder builder = mRequestBuilderFactory.create(templateType);
-        for (Parameter param : mParameters) {
-            param.addToBuilder(builder);
+        for (int i = 0; i < mParameters.size(); i++) {
+            mParameters.get(i).addToBuilder(builder);
         }
-        for (ResponseListener listener : mResponseListeners) {
-            builder.addResponseListener(listener);
+        ResponseListener listener;
+        CaptureStream[] streams;
+        synchronized (mLock) {
+            if (mResponseListenerSnapshot == null) {
+                mResponseListenerSnapshot = new ResponseListenerFanOut(mResponseListeners);
+            }
+            if (mCaptureStreamSnapshot == null) {
+                mCaptureStreamSnapshot = mCaptureStreams.toArray(new CaptureStream[0]);
+            }
+            listener = mResponseListenerSnapshot;
+            streams = mCaptureStreamSnapshot;
         }
-        for (CaptureStream stream : mCaptureStreams) {
+        builder.addResponseListener(listener);
+        for (CaptureStream stream : streams) {
             builder.addStream(stream);
         }
         return builder;
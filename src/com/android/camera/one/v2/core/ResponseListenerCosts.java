@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import com.android.camera.debug.Log;
+import com.android.camera.debug.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Accumulates the time {@link ResponseListener}s spend handling callbacks, by
+ * listener class, and periodically logs the most expensive ones.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ResponseListenerCosts {
+    /**
+     * The number of callbacks to accumulate before logging and starting over.
+     */
+    private static final int REPORT_INTERVAL = 3000;
+    /**
+     * The number of listener classes to include in each report.
+     */
+    private static final int REPORTED_LISTENERS = 10;
+
+    private static class Cost {
+        public final String listenerName;
+        public long count;
+        public long totalNanos;
+        public long maxNanos;
+
+        private Cost(String listenerName) {
+            this.listenerName = listenerName;
+        }
+    }
+
+    private final Logger mLog;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<Class<?>, Cost> mCosts = new HashMap<>();
+    @GuardedBy("mLock")
+    private int mCallbackCount;
+
+    public ResponseListenerCosts(Logger.Factory logFactory) {
+        mLog = logFactory.create(new Log.Tag("ListenerCosts"));
+    }
+
+    /**
+     * Records that the listener took the given time to handle a callback.
+     */
+    public void record(ResponseListener listener, long nanos) {
+        List<Cost> report = null;
+        synchronized (mLock) {
+            Class<?> listenerClass = listener.getClass();
+            Cost cost = mCosts.get(listenerClass);
+            if (cost == null) {
+                cost = new Cost(listenerClass.getName());
+                mCosts.put(listenerClass, cost);
+            }
+            cost.count++;
+            cost.totalNanos += nanos;
+            cost.maxNanos = Math.max(cost.maxNanos, nanos);
+
+            mCallbackCount++;
+            if (mCallbackCount >= REPORT_INTERVAL) {
+                report = new ArrayList<>(mCosts.values());
+                mCosts.clear();
+                mCallbackCount = 0;
+            }
+        }
+        if (report != null) {
+            log(report);
+        }
+    }
+
+    private void log(List<Cost> costs) {
+        Collections.sort(costs, new Comparator<Cost>() {
+            @Override
+            public int compare(Cost lhs, Cost rhs) {
+                return Long.compare(rhs.totalNanos, lhs.totalNanos);
+            }
+        });
+        StringBuilder report = new StringBuilder("Response listener costs over the last ")
+                .append(REPORT_INTERVAL).append(" callbacks:");
+        for (Cost cost : costs.subList(0, Math.min(costs.size(), REPORTED_LISTENERS))) {
+            report.append(String.format("\n  %s: %d calls, %.1fms total, %.1fus mean, " +
+                    "%.1fus max", cost.listenerName, cost.count, cost.totalNanos / 1e6,
+                    cost.totalNanos / 1e3 / cost.count, cost.maxNanos / 1e3));
+        }
+        mLog.i(report.toString());
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Combines multiple {@link ResponseListener}s into a single one which
+ * dispatches to all listeners for each callback.
+ * <p>
+ * Listeners which are themselves a ResponseListenerFanOut are flattened into
+ * this one, so each callback is a single loop over an array, however the
+ * listeners were combined. Each callback only goes to the listeners which
+ * override it, as found once per listener class.
+ * <p>
+ * If given {@link ResponseListenerCosts}, the time spent in each listener is
+ * measured.
+ */
+class ResponseListenerFanOut extends ResponseListener {
+    private static final int ON_STARTED = 1;
+    private static final int ON_PROGRESSED = 1 << 1;
+    private static final int ON_COMPLETED = 1 << 2;
+    private static final int ON_FAILED = 1 << 3;
+    private static final int ON_SEQUENCE_ABORTED = 1 << 4;
+    private static final int ON_SEQUENCE_COMPLETED = 1 << 5;
+
+    /**
+     * The callbacks overridden by each listener class, as a combination of
+     * the flags above.
+     */
+    private static final ConcurrentHashMap<Class<?>, Integer> sCallbackMasks =
+            new ConcurrentHashMap<>();
+
+    private static final ResponseListener[] NO_LISTENERS = new ResponseListener[0];
+
+    private final ResponseListener[] mListeners;
+    /** The callbacks overridden by each of {@link #mListeners}. */
+    private final int[] mCallbackMasks;
+    private final ResponseListener[] mStartedListeners;
+    private final ResponseListener[] mProgressedListeners;
+    private final ResponseListener[] mCompletedListeners;
+    private final ResponseListener[] mFailedListeners;
+    private final ResponseListener[] mSequenceAbortedListeners;
+    private final ResponseListener[] mSequenceCompletedListeners;
+    @Nullable
+    private final ResponseListenerCosts mCosts;
+
+    public ResponseListenerFanOut(ResponseListener[] listeners) {
+        this(Arrays.asList(listeners), null);
+    }
+
+    public ResponseListenerFanOut(Collection<ResponseListener> listeners) {
+        this(listeners, null);
+    }
+
+    /**
+     * @param costs If not null, receives the time spent in each listener for
+     *            each callback.
+     */
+    public ResponseListenerFanOut(Collection<ResponseListener> listeners,
+            @Nullable ResponseListenerCosts costs) {
+        int count = 0;
+        for (ResponseListener listener : listeners) {
+            if (listener instanceof ResponseListenerFanOut) {
+                count += ((ResponseListenerFanOut) listener).mListeners.length;
+            } else {
+                count++;
+            }
+        }
+        mListeners = new ResponseListener[count];
+        mCallbackMasks = new int[count];
+        int i = 0;
+        for (ResponseListener listener : listeners) {
+            if (listener instanceof ResponseListenerFanOut) {
+                // Take over the masks too, so that only listeners which are
+                // new to this fan-out have to be looked up.
+                ResponseListenerFanOut fanOut = (ResponseListenerFanOut) listener;
+                int length = fanOut.mListeners.length;
+                System.arraycopy(fanOut.mListeners, 0, mListeners, i, length);
+                System.arraycopy(fanOut.mCallbackMasks, 0, mCallbackMasks, i, length);
+                i += length;
+            } else {
+                mListeners[i] = listener;
+                mCallbackMasks[i] = getCallbackMask(listener.getClass());
+                i++;
+            }
+        }
+        mStartedListeners = filter(ON_STARTED);
+        mProgressedListeners = filter(ON_PROGRESSED);
+        mCompletedListeners = filter(ON_COMPLETED);
+        mFailedListeners = filter(ON_FAILED);
+        mSequenceAbortedListeners = filter(ON_SEQUENCE_ABORTED);
+        mSequenceCompletedListeners = filter(ON_SEQUENCE_COMPLETED);
+        mCosts = costs;
+    }
+
+    @Override
+    public void onStarted(long timestamp) {
+        for (ResponseListener listener : mStartedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onStarted(timestamp);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public void onProgressed(CaptureResult partialResult) {
+        for (ResponseListener listener : mProgressedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onProgressed(partialResult);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public void onCompleted(TotalCaptureResult result) {
+        for (ResponseListener listener : mCompletedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onCompleted(result);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public void onFailed(CaptureFailure failure) {
+        for (ResponseListener listener : mFailedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onFailed(failure);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public void onSequenceAborted(int sequenceId) {
+        for (ResponseListener listener : mSequenceAbortedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onSequenceAborted(sequenceId);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public void onSequenceCompleted(int sequenceId, long frameNumber) {
+        for (ResponseListener listener : mSequenceCompletedListeners) {
+            long startNanos = mCosts == null ? 0 : System.nanoTime();
+            listener.onSequenceCompleted(sequenceId, frameNumber);
+            if (mCosts != null) {
+                mCosts.record(listener, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * @return The listeners which override the given callback. Only
+     *         allocates if some, but not all, of the listeners do.
+     */
+    private ResponseListener[] filter(int callback) {
+        int count = 0;
+        for (int mask : mCallbackMasks) {
+            if ((mask & callback) != 0) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return NO_LISTENERS;
+        } else if (count == mListeners.length) {
+            return mListeners;
+        }
+        ResponseListener[] filtered = new ResponseListener[count];
+        int i = 0;
+        for (int j = 0; j < mListeners.length; j++) {
+            if ((mCallbackMasks[j] & callback) != 0) {
+                filtered[i++] = mListeners[j];
+            }
+        }
+        return filtered;
+    }
+
+    private static int getCallbackMask(Class<?> listenerClass) {
+        Integer mask = sCallbackMasks.get(listenerClass);
+        if (mask == null) {
+            mask = 0;
+            if (overrides(listenerClass, "onStarted", long.class)) {
+                mask |= ON_STARTED;
+            }
+            if (overrides(listenerClass, "onProgressed", CaptureResult.class)) {
+                mask |= ON_PROGRESSED;
+            }
+            if (overrides(listenerClass, "onCompleted", TotalCaptureResult.class)) {
+                mask |= ON_COMPLETED;
+            }
+            if (overrides(listenerClass, "onFailed", CaptureFailure.class)) {
+                mask |= ON_FAILED;
+            }
+            if (overrides(listenerClass, "onSequenceAborted", int.class)) {
+                mask |= ON_SEQUENCE_ABORTED;
+            }
+            if (overrides(listenerClass, "onSequenceCompleted", int.class, long.class)) {
+                mask |= ON_SEQUENCE_COMPLETED;
+            }
+            sCallbackMasks.put(listenerClass, mask);
+        }
+        return mask;
+    }
+
+    private static boolean overrides(Class<?> listenerClass, String methodName,
+            Class<?>... parameterTypes) {
+        try {
+            return listenerClass.getMethod(methodName, parameterTypes).getDeclaringClass() !=
+                    ResponseListener.class;
+        } catch (NoSuchMethodException e) {
+            // If the method can't be found, e.g. because it was renamed,
+            // always call it to be safe.
+            return true;
+        }
+    }
+}
@@ -125,13 +125,13 @@ public final class ResponseListeners {
      * Combines multiple {@link ResponseListener}s.
      */
     public static ResponseListener forListeners(ResponseListener... listeners) {
-        return new ResponseListenerBroadcaster(listeners);
+        return new ResponseListenerFanOut(listeners);
     }
 
     /**
      * Combines multiple {@link ResponseListener}s.
      */
     public static ResponseListener forListeners(Collection<ResponseListener> listeners) {
-        return new ResponseListenerBroadcaster(listeners);
+        return new ResponseListenerFanOut(listeners);
     }
 }
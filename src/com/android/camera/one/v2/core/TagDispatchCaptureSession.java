@@ -30,9 +30,10 @@ import com.android.camera.one.v2.camera2proxy.CaptureRequestBuilderProxy;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+
+import javax.annotation.Nullable;
 
 /**
  * Like {@link android.hardware.camera2.CameraCaptureSession}, but takes
@@ -43,47 +44,51 @@ import java.util.Map;
 @VisibleForTesting
 public class TagDispatchCaptureSession implements FrameServer.Session {
     private static class CaptureCallback implements CameraCaptureSessionProxy.CaptureCallback {
-        private final Map<Object, ResponseListener> mListeners;
+        private final long mFirstTag;
+        private final ResponseListener[] mListeners;
 
         /**
-         * @param listeners A map from tag objects to the listener to be invoked
-         *            for events related to the request with that tag.
+         * @param firstTag The tag of the first request.
+         * @param listeners The listener to be invoked for events related to
+         *            each request, where the request with the listener at
+         *            index i has the tag firstTag + i.
          */
-        public CaptureCallback(Map<Object, ResponseListener> listeners) {
-            mListeners = new HashMap<>(listeners);
+        public CaptureCallback(long firstTag, ResponseListener[] listeners) {
+            mFirstTag = firstTag;
+            mListeners = listeners;
+        }
+
+        private ResponseListener getListener(CaptureRequest request) {
+            return mListeners[(int) ((Long) request.getTag() - mFirstTag)];
         }
 
         @Override
         public void onCaptureStarted(CameraCaptureSessionProxy session, CaptureRequest request,
                 long timestamp, long frameNumber) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onStarted(timestamp);
+            getListener(request).onStarted(timestamp);
         }
 
         @Override
         public void onCaptureProgressed(CameraCaptureSessionProxy session, CaptureRequest request,
                 CaptureResult partialResult) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onProgressed(partialResult);
+            getListener(request).onProgressed(partialResult);
         }
 
         @Override
         public void onCaptureCompleted(CameraCaptureSessionProxy session, CaptureRequest request,
                 TotalCaptureResult result) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onCompleted(result);
+            getListener(request).onCompleted(result);
         }
 
         @Override
         public void onCaptureFailed(CameraCaptureSessionProxy session, CaptureRequest request,
                 CaptureFailure failure) {
-            Object tag = request.getTag();
-            mListeners.get(tag).onFailed(failure);
+            getListener(request).onFailed(failure);
         }
 
         @Override
         public void onCaptureSequenceAborted(CameraCaptureSessionProxy session, int sequenceId) {
-            for (ResponseListener listener : mListeners.values()) {
+            for (ResponseListener listener : mListeners) {
                 listener.onSequenceAborted(sequenceId);
             }
         }
@@ -91,7 +96,7 @@ public class TagDispatchCaptureSession implements FrameServer.Session {
         @Override
         public void onCaptureSequenceCompleted(CameraCaptureSessionProxy session, int sequenceId,
                 long frameNumber) {
-            for (ResponseListener listener : mListeners.values()) {
+            for (ResponseListener listener : mListeners) {
                 listener.onSequenceCompleted(sequenceId, frameNumber);
             }
         }
@@ -99,21 +104,27 @@ public class TagDispatchCaptureSession implements FrameServer.Session {
 
     private final CameraCaptureSessionProxy mCaptureSession;
     private final Handler mCameraHandler;
+    @Nullable
+    private final ResponseListenerCosts mListenerCosts;
     private long mTagCounter;
 
     public TagDispatchCaptureSession(CameraCaptureSessionProxy captureSession, Handler
             cameraHandler) {
+        this(captureSession, cameraHandler, null);
+    }
+
+    /**
+     * @param listenerCosts If not null, receives the time spent in each
+     *            {@link ResponseListener} on the camera handler thread.
+     */
+    public TagDispatchCaptureSession(CameraCaptureSessionProxy captureSession, Handler
+            cameraHandler, @Nullable ResponseListenerCosts listenerCosts) {
         mCaptureSession = captureSession;
         mCameraHandler = cameraHandler;
+        mListenerCosts = listenerCosts;
         mTagCounter = 0;
     }
 
-    private Object generateTag() {
-        Object tag = Long.valueOf(mTagCounter);
-        mTagCounter++;
-        return tag;
-    }
-
     /**
      * Submits the given burst request to the underlying
      * {@link CameraCaptureSessionProxy}.
@@ -135,25 +146,32 @@ public class TagDispatchCaptureSession implements FrameServer.Session {
             CameraAccessException, InterruptedException, CameraCaptureSessionClosedException,
             ResourceAcquisitionFailedException {
         try {
-            Map<Object, ResponseListener> tagListenerMap = new HashMap<Object, ResponseListener>();
+            // Tags are consecutive, so the listener of each request can be
+            // found by the offset of its tag from the first one.
+            long firstTag = mTagCounter;
+            mTagCounter += burstRequests.size();
+            ResponseListener[] listeners = new ResponseListener[burstRequests.size()];
             List<CaptureRequest> captureRequests = new ArrayList<>(burstRequests.size());
 
-            for (Request request : burstRequests) {
-                Object tag = generateTag();
-
-                tagListenerMap.put(tag, request.getResponseListener());
+            for (int i = 0; i < burstRequests.size(); i++) {
+                Request request = burstRequests.get(i);
+                listeners[i] = request.getResponseListener();
+                if (mListenerCosts != null) {
+                    listeners[i] = new ResponseListenerFanOut(
+                            Collections.singletonList(listeners[i]), mListenerCosts);
+                }
 
                 CaptureRequestBuilderProxy builder = request.allocateCaptureRequest();
-                builder.setTag(tag);
+                builder.setTag(Long.valueOf(firstTag + i));
                 captureRequests.add(builder.build());
             }
 
             if (requestType == FrameServer.RequestType.REPEATING) {
                 mCaptureSession.setRepeatingBurst(captureRequests, new
-                        CaptureCallback(tagListenerMap), mCameraHandler);
+                        CaptureCallback(firstTag, listeners), mCameraHandler);
             } else {
                 mCaptureSession.captureBurst(captureRequests, new
-                        CaptureCallback(tagListenerMap), mCameraHandler);
+                        CaptureCallback(firstTag, listeners), mCameraHandler);
             }
         } catch (Exception e) {
             for (Request r : burstRequests) {
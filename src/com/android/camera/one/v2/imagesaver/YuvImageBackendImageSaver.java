@@ -31,7 +31,9 @@ import com.android.camera.processing.imagebackend.ImageConsumer;
 import com.android.camera.processing.imagebackend.ImageProcessorListener;
 import com.android.camera.processing.imagebackend.ImageToProcess;
 import com.android.camera.processing.imagebackend.TaskImageContainer;
+import com.android.camera.processing.memory.LruResourcePool;
 import com.android.camera.session.CaptureSession;
+import com.android.camera.util.Size;
 import com.android.camera2.R;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -100,13 +102,16 @@ public class YuvImageBackendImageSaver implements ImageSaver.Builder {
         private final CaptureSession mSession;
         private final OrientationManager.DeviceOrientation mImageRotation;
         private final OneCamera.PictureSaverCallback mPictureSaverCallback;
+        private final LruResourcePool<Size, Bitmap> mBitmapPool;
 
         private YuvImageProcessorListener(CaptureSession session,
                 OrientationManager.DeviceOrientation imageRotation,
-                OneCamera.PictureSaverCallback pictureSaverCallback) {
+                OneCamera.PictureSaverCallback pictureSaverCallback,
+                LruResourcePool<Size, Bitmap> bitmapPool) {
             mSession = session;
             mImageRotation = imageRotation;
             mPictureSaverCallback = pictureSaverCallback;
+            mBitmapPool = bitmapPool;
         }
 
         @Override
@@ -142,14 +147,20 @@ public class YuvImageBackendImageSaver implements ImageSaver.Builder {
                     mSession.updateCaptureIndicatorThumbnail(bitmap, mImageRotation.getDegrees());
                     break;
                 case INTERMEDIATE_THUMBNAIL:
-                    final Bitmap bitmapIntermediate = Bitmap.createBitmap(payload.data,
-                            task.result.width,
-                            task.result.height, Bitmap.Config.ARGB_8888);
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(mImageRotation.getDegrees());
-                    final Bitmap bitmapIntermediateRotated = Bitmap.createBitmap(
-                            bitmapIntermediate, 0, 0, bitmapIntermediate.getWidth(),
-                            bitmapIntermediate.getHeight(), matrix, true);
+                    // The unrotated bitmap is only needed to build the rotated
+                    // one, so it comes from and goes back to the pool.
+                    final Bitmap bitmapIntermediateRotated;
+                    try (LruResourcePool.Resource<Bitmap> bitmapIntermediate = mBitmapPool
+                            .acquire(new Size(task.result.width, task.result.height))) {
+                        final Bitmap source = bitmapIntermediate.get();
+                        source.setPixels(payload.data, 0, task.result.width, 0, 0,
+                                task.result.width, task.result.height);
+                        Matrix matrix = new Matrix();
+                        matrix.postRotate(mImageRotation.getDegrees());
+                        bitmapIntermediateRotated = Bitmap.createBitmap(
+                                source, 0, 0, source.getWidth(),
+                                source.getHeight(), matrix, true);
+                    }
                     mSession.updateThumbnail(bitmapIntermediateRotated);
                     mSession.setProgressMessage(R.string.session_saving_image);
                     mSession.setProgress(PERCENTAGE_INTERMEDIATE_THUMBNAIL_DONE);
@@ -216,7 +227,8 @@ public class YuvImageBackendImageSaver implements ImageSaver.Builder {
                 .toImageRotation();
 
         YuvImageProcessorListener yuvImageProcessorListener = new YuvImageProcessorListener(
-                session, imageRotation, pictureSaverCallback);
+                session, imageRotation, pictureSaverCallback,
+                mImageBackend.getPreviewBitmapPool());
         return new MostRecentImageSaver(new ImageSaverImpl(session, imageRotation,
                 yuvImageProcessorListener));
     }
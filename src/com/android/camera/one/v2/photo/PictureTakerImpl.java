@@ -94,6 +94,6 @@ class PictureTakerImpl implements PictureTaker {
                 session);
 
         mCameraCommandExecutor.execute(new PictureTakerCommand(
-                imageExposureCallback, imageSaver, session));
+                imageExposureCallback, imageSaver, session), CameraCommandExecutor.Lane.CAPTURE);
     }
 }
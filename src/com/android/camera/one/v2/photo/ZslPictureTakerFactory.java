@@ -38,6 +38,7 @@ import com.android.camera.one.v2.sharedimagereader.metadatasynchronizer.Metadata
 import com.google.common.base.Supplier;
 
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * Wires together a PictureTaker with zero shutter lag.
@@ -64,7 +65,8 @@ public class ZslPictureTakerFactory {
             BufferQueue<ImageProxy> ringBuffer,
             MetadataPool metadataPool,
             Supplier<OneCamera.PhotoCaptureParameters.Flash> flashMode,
-            ResponseManager globalResponseManager) {
+            ResponseManager globalResponseManager,
+            Executor zslScoringExecutor) {
         // When flash is ON, always use the ConvergedImageCaptureCommand which
         // performs the AF & AE precapture sequence.
         ImageCaptureCommand flashOnCommand = new ConvergedImageCaptureCommand(
@@ -80,7 +82,8 @@ public class ZslPictureTakerFactory {
                 Arrays.asList(rootRequestBuilder), /* ae */false, /* af */true);
         ImageCaptureCommand flashOffCommand =
                 new ZslImageCaptureCommand(logFactory, ringBuffer, metadataPool, flashOffFallback,
-                        new AcceptableZslImageFilter(true, false), MAX_LOOKBACK_NANOS);
+                        new AcceptableZslImageFilter(true, false), MAX_LOOKBACK_NANOS,
+                        zslScoringExecutor);
         // When flash is Auto, use ZSL and filter images to require AF
         // convergence, and AE convergence.
         AutoFlashZslImageFilter autoFlashZslImageFilter = AutoFlashZslImageFilter.create(
@@ -88,7 +91,7 @@ public class ZslPictureTakerFactory {
         globalResponseManager.addResponseListener(forPartialMetadata(autoFlashZslImageFilter));
         ImageCaptureCommand flashAutoCommand =
                 new ZslImageCaptureCommand(logFactory, ringBuffer, metadataPool, flashOnCommand,
-                        autoFlashZslImageFilter, MAX_LOOKBACK_NANOS);
+                        autoFlashZslImageFilter, MAX_LOOKBACK_NANOS, zslScoringExecutor);
 
         ImageCaptureCommand flashBasedCommand = new FlashBasedPhotoCommand(logFactory, flashMode,
                 flashOnCommand, flashAutoCommand, flashOffCommand);
@@ -30,15 +30,17 @@ import com.android.camera.one.v2.core.ResourceAcquisitionFailedException;
 import com.android.camera.one.v2.imagesaver.ImageSaver;
 import com.android.camera.one.v2.photo.ImageCaptureCommand;
 import com.android.camera.one.v2.sharedimagereader.metadatasynchronizer.MetadataPool;
+import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -47,8 +49,8 @@ import javax.annotation.ParametersAreNonnullByDefault;
 
 /**
  * Captures images by first looking to the zsl ring buffer for acceptable (based
- * on metadata) images. If no such images are available, a fallback
- * ImageCaptureCommand is used instead.
+ * on metadata) images, saving the one rated best by {@link ZslImageScorer}. If
+ * no such images are available, a fallback ImageCaptureCommand is used instead.
  */
 @ParametersAreNonnullByDefault
 public class ZslImageCaptureCommand implements ImageCaptureCommand {
@@ -58,19 +60,26 @@ public class ZslImageCaptureCommand implements ImageCaptureCommand {
     private final ImageCaptureCommand mFallbackCommand;
     private final Predicate<TotalCaptureResultProxy> mMetadataFilter;
     private final long mMaxLookBackNanos;
+    private final Executor mScoringExecutor;
 
+    /**
+     * @param scoringExecutor The executor on which to filter and score the
+     *            images in the ring-buffer when capturing, one task per image.
+     */
     public ZslImageCaptureCommand(Logger.Factory logFactory,
             BufferQueue<ImageProxy> zslRingBuffer,
             MetadataPool zslMetadataPool,
             ImageCaptureCommand fallbackCommand,
             Predicate<TotalCaptureResultProxy> metadataFilter,
-            long maxLookBackNanos) {
+            long maxLookBackNanos,
+            Executor scoringExecutor) {
         mZslRingBuffer = zslRingBuffer;
         mLog = logFactory.create(new Log.Tag("ZSLImageCaptureCmd"));
         mZslMetadataPool = zslMetadataPool;
         mFallbackCommand = fallbackCommand;
         mMetadataFilter = metadataFilter;
         mMaxLookBackNanos = maxLookBackNanos;
+        mScoringExecutor = scoringExecutor;
     }
 
     /**
@@ -118,43 +127,126 @@ public class ZslImageCaptureCommand implements ImageCaptureCommand {
         return filtered;
     }
 
+    /**
+     * An image which passed the metadata filter, with its scores.
+     */
+    private static class Candidate {
+        public final ImageProxy image;
+        public final TotalCaptureResultProxy metadata;
+        public final float metadataScore;
+        public final float lumaSharpness;
+        /** The overall score, once all candidates of the shot are known. */
+        public float score;
+
+        private Candidate(ImageProxy image, TotalCaptureResultProxy metadata,
+                float metadataScore, float lumaSharpness) {
+            this.image = image;
+            this.metadata = metadata;
+            this.metadataScore = metadataScore;
+            this.lumaSharpness = lumaSharpness;
+        }
+    }
+
+    /**
+     * @return A future for the image's {@link Candidate}, or for null if its
+     *         metadata doesn't pass the filter. The candidate is scored on
+     *         {@link #mScoringExecutor} once the metadata is available.
+     */
+    private ListenableFuture<Candidate> scoreImage(final ImageProxy image) {
+        ListenableFuture<TotalCaptureResultProxy> metadataFuture =
+                mZslMetadataPool.removeMetadataFuture(image.getTimestamp());
+        return Futures.transform(metadataFuture,
+                new Function<TotalCaptureResultProxy, Candidate>() {
+                    @Override
+                    public Candidate apply(TotalCaptureResultProxy metadata) {
+                        if (!mMetadataFilter.apply(metadata)) {
+                            return null;
+                        }
+                        return new Candidate(image, metadata,
+                                ZslImageScorer.getMetadataScore(metadata),
+                                ZslImageScorer.getLumaSharpness(image));
+                    }
+                }, mScoringExecutor);
+    }
+
+    /**
+     * @return The candidate with the highest score, with the luma sharpness
+     *         normalized over all candidates, or null if there are none. Ties
+     *         go to the most recent image.
+     */
+    @Nullable
+    private static Candidate selectBestCandidate(List<Candidate> candidates) {
+        float maxSharpness = 0f;
+        for (Candidate candidate : candidates) {
+            if (candidate != null) {
+                maxSharpness = Math.max(maxSharpness, candidate.lumaSharpness);
+            }
+        }
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (candidate == null) {
+                continue;
+            }
+            candidate.score = candidate.metadataScore;
+            if (maxSharpness > 0f) {
+                candidate.score *= 0.5f + 0.5f * candidate.lumaSharpness / maxSharpness;
+            }
+            if (best == null || candidate.score >= best.score) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
     @Nullable
     private Pair<ImageProxy, TotalCaptureResultProxy> tryGetZslImage() throws InterruptedException,
             BufferQueue.BufferQueueClosedException {
-        List<ImageProxy> images = filterImagesWithinMaxLookBack(getAllAvailableImages());
-        ImageProxy imageToSave = null;
-        TotalCaptureResultProxy metadata = null;
+        final long startNanos = System.nanoTime();
+        final List<ImageProxy> images = filterImagesWithinMaxLookBack(getAllAvailableImages());
+
+        // Wait for the metadata of all images at once, and score those which
+        // pass the filter in parallel. Images and metadata that couldn't be
+        // retrieved, for whatever reason, are assumed to be not acceptable
+        // for capture.
+        List<ListenableFuture<Candidate>> candidateFutures = new ArrayList<>(images.size());
+        for (ImageProxy image : images) {
+            candidateFutures.add(scoreImage(image));
+        }
+        ListenableFuture<List<Candidate>> allCandidates =
+                Futures.successfulAsList(candidateFutures);
+        Candidate best;
         try {
-            for (ImageProxy image : images) {
-                Future<TotalCaptureResultProxy> metadataFuture =
-                        mZslMetadataPool.removeMetadataFuture(image.getTimestamp());
-                try {
-                    if (mMetadataFilter.apply(metadataFuture.get())) {
-                        imageToSave = image;
-                        metadata = metadataFuture.get();
+            best = selectBestCandidate(allCandidates.get());
+        } catch (InterruptedException e) {
+            // The images may still be read by the scoring tasks, so only
+            // close them once they are done.
+            allCandidates.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    for (ImageProxy image : images) {
+                        image.close();
                     }
-                } catch (ExecutionException | CancellationException e) {
-                    // If we cannot get metadata for an image, for whatever
-                    // reason, assume it is not acceptable for capture.
                 }
-            }
-        } catch (Exception e) {
-            if (imageToSave != null) {
-                imageToSave.close();
-            }
+            }, MoreExecutors.sameThreadExecutor());
             throw e;
-        } finally {
-            for (ImageProxy image : images) {
-                if (image != imageToSave) {
-                    image.close();
-                }
+        } catch (ExecutionException e) {
+            // successfulAsList() never fails.
+            best = null;
+        }
+
+        for (ImageProxy image : images) {
+            if (best == null || image != best.image) {
+                image.close();
             }
         }
-        if (imageToSave == null) {
+        if (best == null) {
             return null;
-        } else {
-            return new Pair<>(imageToSave, metadata);
         }
+        mLog.i(String.format("Selected ZSL image %d of %d, score %.3f (metadata %.3f, " +
+                "sharpness %.1f), in %.1f ms", images.indexOf(best.image) + 1, images.size(),
+                best.score, best.metadataScore, best.lumaSharpness,
+                (System.nanoTime() - startNanos) / 1000000.0));
+        return new Pair<>(best.image, best.metadata);
     }
 
     @Override
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.photo.zsl;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CaptureResult;
+
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Rates zsl images which passed the metadata filter so that the best one may
+ * be saved, rather than simply the most recent.
+ * <p>
+ * The metadata score favors images taken with AF and AE converged and with
+ * short exposures, which are less likely to be blurred by motion. The luma
+ * sharpness is the mean absolute difference between neighboring pixels of a
+ * sparse grid over the center of the Y plane, which is cheap to compute but
+ * only comparable between images of the same scene, so it is meant to be
+ * normalized over the candidates of a single shot.
+ */
+@ParametersAreNonnullByDefault
+final class ZslImageScorer {
+    /**
+     * The exposure time at which an image is considered half as likely to be
+     * sharp as one with no exposure time at all.
+     */
+    private static final long REFERENCE_EXPOSURE_NANOS = 33333333; // 1/30 s
+    /**
+     * The maximum number of pixels to sample for the luma sharpness.
+     */
+    private static final int MAX_SHARPNESS_SAMPLES = 64 * 1024;
+
+    private ZslImageScorer() {
+    }
+
+    /**
+     * @return A score in (0, 1] for the capture conditions of an image, higher
+     *         being better.
+     */
+    public static float getMetadataScore(TotalCaptureResultProxy metadata) {
+        float score = getFocusScore(metadata.get(CaptureResult.CONTROL_AF_STATE));
+        score *= getExposureScore(metadata.get(CaptureResult.CONTROL_AE_STATE));
+        Long exposureTime = metadata.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if (exposureTime != null && exposureTime > 0) {
+            score /= 1f + (float) exposureTime / REFERENCE_EXPOSURE_NANOS;
+        } else {
+            score /= 2f;
+        }
+        return score;
+    }
+
+    /**
+     * @return The mean absolute luma gradient over the center of the image,
+     *         or 0 if the image has no luma plane to measure it from.
+     */
+    public static float getLumaSharpness(ImageProxy image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            return 0f;
+        }
+        List<ImageProxy.Plane> planes = image.getPlanes();
+        if (planes.isEmpty()) {
+            return 0f;
+        }
+        ImageProxy.Plane lumaPlane = planes.get(0);
+        ByteBuffer luma = lumaPlane.getBuffer();
+        int rowStride = lumaPlane.getRowStride();
+        int pixelStride = lumaPlane.getPixelStride();
+
+        // Only look at the center half of the image in each dimension, where
+        // the subject most likely is.
+        int left = image.getWidth() / 4;
+        int top = image.getHeight() / 4;
+        int right = left + image.getWidth() / 2;
+        int bottom = top + image.getHeight() / 2;
+        int sampleStep = Math.max(1, (int) Math.sqrt(
+                (double) (right - left) * (bottom - top) / MAX_SHARPNESS_SAMPLES));
+
+        long gradientSum = 0;
+        int sampleCount = 0;
+        for (int y = top; y < bottom - 1; y += sampleStep) {
+            int rowOffset = y * rowStride;
+            for (int x = left; x < right - 1; x += sampleStep) {
+                int offset = rowOffset + x * pixelStride;
+                if (offset + rowStride >= luma.limit()) {
+                    break;
+                }
+                int value = luma.get(offset) & 0xFF;
+                gradientSum += Math.abs((luma.get(offset + pixelStride) & 0xFF) - value);
+                gradientSum += Math.abs((luma.get(offset + rowStride) & 0xFF) - value);
+                sampleCount++;
+            }
+        }
+        return sampleCount == 0 ? 0f : (float) gradientSum / sampleCount;
+    }
+
+    private static float getFocusScore(Integer afState) {
+        if (afState == null) {
+            return 0.75f;
+        }
+        switch (afState) {
+            case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+                return 1f;
+            case CaptureResult.CONTROL_AF_STATE_INACTIVE:
+                return 0.75f;
+            case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED:
+                return 0.5f;
+            default:
+                return 0.25f;
+        }
+    }
+
+    private static float getExposureScore(Integer aeState) {
+        if (aeState == null) {
+            return 0.9f;
+        }
+        switch (aeState) {
+            case CaptureResult.CONTROL_AE_STATE_CONVERGED:
+            case CaptureResult.CONTROL_AE_STATE_LOCKED:
+                return 1f;
+            case CaptureResult.CONTROL_AE_STATE_INACTIVE:
+                return 0.9f;
+            default:
+                return 0.75f;
+        }
+    }
+}
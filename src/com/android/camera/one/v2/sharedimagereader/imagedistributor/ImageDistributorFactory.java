@@ -18,16 +18,17 @@ package com.android.camera.one.v2.sharedimagereader.imagedistributor;
 
 import android.os.Handler;
 
-import com.android.camera.async.ConcurrentBufferQueue;
+import com.android.camera.async.ConcurrentState;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
+import com.android.camera.async.Observable;
 import com.android.camera.async.Updatable;
 import com.android.camera.debug.Loggers;
 import com.android.camera.one.v2.camera2proxy.ImageReaderProxy;
 
 public class ImageDistributorFactory {
     private final ImageDistributorImpl mImageDistributor;
-    private final Updatable<Long> mTimestampStream;
+    private final ConcurrentState<Long> mDispatchLatencyNanos;
 
     /**
      * Creates an ImageDistributor from the given ImageReader.
@@ -40,10 +41,10 @@ public class ImageDistributorFactory {
      */
     public ImageDistributorFactory(Lifetime lifetime, ImageReaderProxy imageReader,
             HandlerFactory handlerFactory) {
-        ConcurrentBufferQueue<Long> globalTimestampStream = new ConcurrentBufferQueue<>();
-        mTimestampStream = globalTimestampStream;
-        lifetime.add(globalTimestampStream);
-        mImageDistributor = new ImageDistributorImpl(Loggers.tagFactory(), globalTimestampStream);
+        mDispatchLatencyNanos = new ConcurrentState<>(0L);
+        mImageDistributor = new ImageDistributorImpl(Loggers.tagFactory(),
+                mDispatchLatencyNanos);
+        lifetime.add(mImageDistributor);
 
         // This imageReaderHandler will be created with a very very high thread
         // priority because missing any input event potentially stalls the
@@ -61,6 +62,14 @@ public class ImageDistributorFactory {
     }
 
     public Updatable<Long> provideGlobalTimestampCallback() {
-        return mTimestampStream;
+        return mImageDistributor;
+    }
+
+    /**
+     * @return The number of nanoseconds between the latest image becoming
+     *         available and it being distributed, updated for every image.
+     */
+    public Observable<Long> provideDispatchLatency() {
+        return mDispatchLatencyNanos;
     }
 }
@@ -18,24 +18,38 @@ package com.android.camera.one.v2.sharedimagereader.imagedistributor;
 
 import com.android.camera.async.BufferQueue;
 import com.android.camera.async.BufferQueueController;
+import com.android.camera.async.SafeCloseable;
+import com.android.camera.async.Updatable;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * Distributes incoming images to output {@link BufferQueueController}s
  * according to their timestamp.
+ * <p>
+ * The timestamps requested by each route are moved into an index from
+ * timestamp to output streams whenever the global timestamp stream ticks, so
+ * distributing an image is a single lookup no matter how many routes there
+ * are. Images are never waited for: one which arrives before the index is
+ * known to be up-to-date for it is held until the next tick, and is then
+ * distributed on the thread which delivered the tick.
  */
 @ParametersAreNonnullByDefault
-class ImageDistributorImpl implements ImageDistributor {
+class ImageDistributorImpl implements ImageDistributor, Updatable<Long>, SafeCloseable {
     /**
      * An input timestamp stream and an output image stream to receive images
      * with timestamps which match those found in the input stream.
@@ -51,145 +65,241 @@ class ImageDistributorImpl implements ImageDistributor {
         }
     }
 
+    /**
+     * An image which can't be distributed until the global timestamp stream
+     * has moved past it.
+     */
+    private static class PendingImage {
+        public final ImageProxy image;
+        public final long arrivalNanos;
+
+        private PendingImage(ImageProxy image, long arrivalNanos) {
+            this.image = image;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
     private final Logger mLogger;
 
+    private final Object mLock = new Object();
+
     /**
      * Contains pairs mapping {@link BufferQueue}s of timestamps of images to
      * the {@link BufferQueueController} to receive images with those
-     * timestamps.
+     * timestamps. Only read when the global timestamp stream ticks.
      */
-    @GuardedBy("mDispatchTable")
-    private final Set<DispatchRecord> mDispatchTable;
+    @GuardedBy("mLock")
+    private final List<DispatchRecord> mDispatchTable = new ArrayList<>();
 
     /**
-     * A stream to consume timestamps for all images captured by the underlying
-     * device. This is used as a kind of clock-signal to indicate when timestamp
-     * streams for entries in the {@link #mDispatchTable} are up-to-date.
+     * The output streams to receive each requested image, by timestamp, as
+     * read from the timestamp streams of {@link #mDispatchTable}.
      */
-    private final BufferQueue<Long> mGlobalTimestampBufferQueue;
+    @GuardedBy("mLock")
+    private final TreeMap<Long, List<BufferQueueController<ImageProxy>>> mRequestedImages =
+            new TreeMap<>();
 
-    /*
-     * @param globalTimestampStream A stream of timestamps for every capture
-     * processed by the underlying {@link CaptureSession}. This is used to
-     * synchronize all of the timestamp streams associated with each added
-     * output stream.
+    /**
+     * Images which arrived before the global timestamp stream moved past
+     * them, in order of arrival.
      */
-    public ImageDistributorImpl(Logger.Factory logFactory,
-            BufferQueue<Long> globalTimestampBufferQueue) {
+    @GuardedBy("mLock")
+    private final Queue<PendingImage> mPendingImages = new ArrayDeque<>();
+
+    /**
+     * The latest timestamp from the global timestamp stream. This is used as
+     * a kind of clock-signal: once it is greater than the timestamp of an
+     * image, the timestamp streams of all routes are up-to-date for it.
+     */
+    @GuardedBy("mLock")
+    private long mLatestGlobalTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Whether the global timestamp stream has been closed, after which all
+     * timestamp streams are assumed to be up-to-date.
+     */
+    @GuardedBy("mLock")
+    private boolean mClosed = false;
+
+    /**
+     * Receives the time between each image arriving and being distributed.
+     */
+    private final Updatable<Long> mDispatchLatencyNanos;
+
+    /**
+     * @param dispatchLatencyNanos Receives, for every image, the number of
+     *            nanoseconds between its arrival and its distribution to the
+     *            streams which requested it, including the time spent waiting
+     *            for the global timestamp stream.
+     */
+    public ImageDistributorImpl(Logger.Factory logFactory, Updatable<Long> dispatchLatencyNanos) {
         mLogger = logFactory.create(new Log.Tag("ImgDistributorImpl"));
-        mGlobalTimestampBufferQueue = globalTimestampBufferQueue;
-        mDispatchTable = new HashSet<>();
+        mDispatchLatencyNanos = dispatchLatencyNanos;
     }
 
     /**
-     * Distributes the image to all added routes according to timestamp. Note
-     * that this waits until the global timestamp stream indicates that the next
-     * image has been captured to ensure that the timestamp streams for all
-     * routes are up-to-date.
+     * Distributes the image to all added routes according to timestamp. If
+     * the global timestamp stream hasn't indicated that the next image has
+     * been captured yet, the timestamp streams of the routes may not be
+     * up-to-date, so the image is held and distributed on the next call to
+     * {@link #update}. This never blocks.
      * <p>
-     * If interrupted, this will close the image and return.
-     * </p>
      * It is assumed that incoming images will have unique, increasing
      * timestamps.
      *
      * @param image The image to distribute.
      */
     public void distributeImage(ImageProxy image) {
-        final long timestamp = image.getTimestamp();
-
-        // Wait until the global timestamp stream indicates that either the
-        // *next* image has been captured, or the stream has been closed. Both
-        // of these conditions are sufficient to guarantee that all other
-        // timestamp streams should have an entry for the *current* image's
-        // timestamp (if the associated image stream needs the image). Note that
-        // this assumes that {@link #mGlobalImageTimestamp} and each timestamp
-        // stream associated with a {@link DispatchRecord} are updated on the
-        // same thread in order.
-        try {
-            while (true) {
-                if (mGlobalTimestampBufferQueue.getNext() > timestamp) {
-                    break;
-                }
+        final long arrivalNanos = System.nanoTime();
+        synchronized (mLock) {
+            if (mClosed) {
+                // There won't be another tick, so the timestamp streams must
+                // be read now. If the global stream is closed, then all other
+                // timestamp streams must be up-to-date.
+                indexRequestedImages();
+                dispatch(image, arrivalNanos);
+            } else if (image.getTimestamp() < mLatestGlobalTimestamp) {
+                dispatch(image, arrivalNanos);
+            } else {
+                mPendingImages.add(new PendingImage(image, arrivalNanos));
             }
-        } catch (InterruptedException e) {
-            image.close();
-            return;
-        } catch (BufferQueue.BufferQueueClosedException e) {
-            // If the stream is closed, then all other timestamp streams must be
-            // up-to-date.
         }
+    }
 
-        List<BufferQueueController<ImageProxy>> streamsToReceiveImage = new ArrayList<>();
-        Set<DispatchRecord> deadRecords = new HashSet<>();
+    /**
+     * Receives the timestamp of every capture processed by the underlying
+     * CaptureSession, which is used to synchronize all of the
+     * timestamp streams associated with each added output stream. Note that
+     * this assumes that the global timestamp stream and each timestamp stream
+     * associated with a {@link DispatchRecord} are updated on the same thread
+     * in order.
+     */
+    @Override
+    public void update(@Nonnull Long globalTimestamp) {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            indexRequestedImages();
+            mLatestGlobalTimestamp = Math.max(mLatestGlobalTimestamp, globalTimestamp);
+            while (!mPendingImages.isEmpty() &&
+                    mPendingImages.peek().image.getTimestamp() < mLatestGlobalTimestamp) {
+                PendingImage pendingImage = mPendingImages.remove();
+                dispatch(pendingImage.image, pendingImage.arrivalNanos);
+            }
+        }
+    }
 
-        // mDispatchTable may be modified in {@link #addRoute} while iterating,
-        // so to avoid unnecessary locking, make a copy to iterate over.
-        Set<DispatchRecord> recordsToProcess;
-        synchronized (mDispatchTable) {
-            recordsToProcess = new HashSet<>(mDispatchTable);
+    /**
+     * Indicates that the global timestamp stream has ended. All held images
+     * are distributed, and images which arrive later are distributed right
+     * away.
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            indexRequestedImages();
+            while (!mPendingImages.isEmpty()) {
+                PendingImage pendingImage = mPendingImages.remove();
+                dispatch(pendingImage.image, pendingImage.arrivalNanos);
+            }
         }
-        for (DispatchRecord dispatchRecord : recordsToProcess) {
+    }
+
+    /**
+     * Moves all timestamps available from the routes' timestamp streams into
+     * {@link #mRequestedImages}, and removes the routes which are done.
+     */
+    @GuardedBy("mLock")
+    private void indexRequestedImages() {
+        Iterator<DispatchRecord> records = mDispatchTable.iterator();
+        while (records.hasNext()) {
+            DispatchRecord dispatchRecord = records.next();
+            Long requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
+            while (requestedImageTimestamp != null) {
+                dispatchRecord.timestampBufferQueue.discardNext();
+                List<BufferQueueController<ImageProxy>> streams =
+                        mRequestedImages.get(requestedImageTimestamp);
+                if (streams == null) {
+                    streams = new ArrayList<>(2);
+                    mRequestedImages.put(requestedImageTimestamp, streams);
+                }
+                streams.add(dispatchRecord.imageStream);
+                requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
+            }
             // If either the input timestampBufferQueue or the output
             // imageStream is closed, then the route can be removed.
             if (dispatchRecord.timestampBufferQueue.isClosed() ||
                     dispatchRecord.imageStream.isClosed()) {
-                deadRecords.add(dispatchRecord);
+                records.remove();
             }
-            Long requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
-            while (requestedImageTimestamp != null && requestedImageTimestamp < timestamp) {
-                // This branch should only run if there is an error in the
-                // camera framework/driver. (Technically, we could get here if
-                // an ImageStream was not registered with the ImageDistributor
-                // before the image arrived, or if the timestamp stream was not
-                // updated appropriately. Both of these conditions would be
-                // serious app-level bugs, however, and are less likely
-                // than a framework/driver error.)
-                // If the current image is newer than the image requested by a
-                // stream in the dispatch table, then the driver must have
-                // skipped the requested image.
-
-                mLogger.e(String.format("Image (%d) expected, but never received!  Instead, " +
-                        "received (%d)!  This is likely a camera driver error.",
-                        requestedImageTimestamp, timestamp), new RuntimeException());
-
-                // TODO There may be threads blocked, waiting to receive the
-                // requested image.
-                // This should propagate the absent-image through
-                // dispatchRecord.imageStream to avoid starvation.
+        }
+    }
 
-                dispatchRecord.timestampBufferQueue.discardNext();
-                requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
-            }
-            if (requestedImageTimestamp == null) {
-                continue;
-            }
-            if (requestedImageTimestamp == timestamp) {
-                // Discard the value we just looked at.
-                dispatchRecord.timestampBufferQueue.discardNext();
-                streamsToReceiveImage.add(dispatchRecord.imageStream);
-            }
+    /**
+     * Sends the image to all streams which requested it, or closes it if
+     * there are none.
+     */
+    @GuardedBy("mLock")
+    private void dispatch(ImageProxy image, long arrivalNanos) {
+        final long timestamp = image.getTimestamp();
+
+        SortedMap<Long, List<BufferQueueController<ImageProxy>>> skippedImages =
+                mRequestedImages.headMap(timestamp);
+        for (Map.Entry<Long, List<BufferQueueController<ImageProxy>>> skippedImage :
+                skippedImages.entrySet()) {
+            // This should only happen if there is an error in the camera
+            // framework/driver. (Technically, we could get here if an
+            // ImageStream was not registered with the ImageDistributor before
+            // the image arrived, or if the timestamp stream was not updated
+            // appropriately. Both of these conditions would be serious
+            // app-level bugs, however, and are less likely than a
+            // framework/driver error.)
+            // If the current image is newer than an image requested by a
+            // stream, then the driver must have skipped the requested image.
+
+            mLogger.e(String.format("Image (%d) expected, but never received!  Instead, " +
+                    "received (%d)!  This is likely a camera driver error.",
+                    skippedImage.getKey(), timestamp), new RuntimeException());
+
+            // TODO There may be threads blocked, waiting to receive the
+            // requested image.
+            // This should propagate the absent-image through the streams in
+            // skippedImage to avoid starvation.
         }
+        skippedImages.clear();
 
-        synchronized (mDispatchTable) {
-            mDispatchTable.removeAll(deadRecords);
+        List<BufferQueueController<ImageProxy>> streamsToReceiveImage =
+                mRequestedImages.remove(timestamp);
+        if (streamsToReceiveImage != null) {
+            Iterator<BufferQueueController<ImageProxy>> streams = streamsToReceiveImage.iterator();
+            while (streams.hasNext()) {
+                if (streams.next().isClosed()) {
+                    streams.remove();
+                }
+            }
         }
 
-        int streamsToReceiveImageSize = streamsToReceiveImage.size();
         // If nobody needs the image, just close the image.
-        if (streamsToReceiveImageSize == 0) {
+        if (streamsToReceiveImage == null || streamsToReceiveImage.isEmpty()) {
             image.close();
-            return;
+        } else {
+            RefCountedImageProxy sharedImage = new RefCountedImageProxy(image,
+                    streamsToReceiveImage.size());
+            for (BufferQueueController<ImageProxy> outputStream : streamsToReceiveImage) {
+                // Wrap shared image to ensure that *each* stream must close the
+                // image before the underlying reference count is decremented,
+                // regardless of how many times it is closed from each stream.
+                ImageProxy singleCloseImage = new SingleCloseImageProxy(sharedImage);
+                outputStream.update(singleCloseImage);
+            }
         }
 
-        RefCountedImageProxy sharedImage = new RefCountedImageProxy(image,
-                streamsToReceiveImageSize);
-        for (BufferQueueController<ImageProxy> outputStream : streamsToReceiveImage) {
-            // Wrap shared image to ensure that *each* stream must close the
-            // image before the underlying reference count is decremented,
-            // regardless of how many times it is closed from each stream.
-            ImageProxy singleCloseImage = new SingleCloseImageProxy(sharedImage);
-            outputStream.update(singleCloseImage);
-        }
+        mDispatchLatencyNanos.update(System.nanoTime() - arrivalNanos);
     }
 
     /**
@@ -208,7 +318,7 @@ class ImageDistributorImpl implements ImageDistributor {
     @Override
     public void addRoute(BufferQueue<Long> inputTimestampBufferQueue,
             BufferQueueController<ImageProxy> outputStream) {
-        synchronized (mDispatchTable) {
+        synchronized (mLock) {
             mDispatchTable.add(new DispatchRecord(inputTimestampBufferQueue, outputStream));
         }
     }
@@ -25,6 +25,21 @@ import javax.annotation.Nonnull;
  * Holds metadata for images which have not yet been closed.
  */
 public interface MetadataPool {
+    /**
+     * Returns the metadata of the image with the given timestamp. Metadata of
+     * images which are closed without ever being matched with it expires, in
+     * which case the future fails with a {@link MetadataExpiredException}.
+     */
     @Nonnull
     public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(long timestamp);
+
+    /**
+     * Indicates that the metadata was dropped from the pool before it was
+     * retrieved.
+     */
+    public static class MetadataExpiredException extends Exception {
+        public MetadataExpiredException(long timestamp) {
+            super("Metadata for timestamp " + timestamp + " expired.");
+        }
+    }
 }
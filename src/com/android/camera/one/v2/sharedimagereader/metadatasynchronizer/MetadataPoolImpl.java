@@ -21,65 +21,126 @@ import android.hardware.camera2.CaptureResult;
 import com.android.camera.async.Futures2;
 import com.android.camera.async.Updatable;
 import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
-import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * Matches metadata with images by timestamp.
+ * <p>
+ * Entries are kept in arrays sorted by timestamp. Besides being removed once
+ * retrieved, they expire as soon as they are older than every image that is
+ * still open, since nobody can ask for them anymore. This covers metadata of
+ * frames whose image was dropped, which would otherwise stay forever. As a
+ * safety net, the number of entries is also bounded, evicting the oldest.
+ * Expired futures fail with {@link MetadataExpiredException}.
+ */
 @ParametersAreNonnullByDefault
 public class MetadataPoolImpl implements Updatable<TotalCaptureResultProxy>, MetadataPool {
-    @GuardedBy("mLock")
-    private final Map<Long, SettableFuture<TotalCaptureResultProxy>> mMetadataFutures;
+    /**
+     * Enough for a few seconds of metadata for frames whose images are still
+     * open.
+     */
+    private static final int DEFAULT_MAX_SIZE = 128;
+
     private final Object mLock;
+    private final int mMaxSize;
+
+    /** Timestamps of the entries, ascending. */
+    @GuardedBy("mLock")
+    private final long[] mTimestamps;
+
+    @GuardedBy("mLock")
+    private final SettableFuture<TotalCaptureResultProxy>[] mFutures;
+
+    @GuardedBy("mLock")
+    private int mSize;
+
+    /** Timestamps of the images which are open, ascending. */
+    @GuardedBy("mLock")
+    private long[] mOpenImages;
+
+    @GuardedBy("mLock")
+    private int mOpenImageCount;
+
+    /** The timestamp of the most recent image, or Long.MIN_VALUE. */
+    @GuardedBy("mLock")
+    private long mNewestImageTimestamp;
+
+    @GuardedBy("mLock")
+    private long mEvictionCount;
 
     public MetadataPoolImpl() {
-        mMetadataFutures = new HashMap<>();
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the maximum number of pending metadata entries.
+     */
+    @SuppressWarnings("unchecked")
+    public MetadataPoolImpl(int maxSize) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be > 0.");
         mLock = new Object();
+        mMaxSize = maxSize;
+        mTimestamps = new long[maxSize];
+        mFutures = new SettableFuture[maxSize];
+        mSize = 0;
+        mOpenImages = new long[8];
+        mOpenImageCount = 0;
+        mNewestImageTimestamp = Long.MIN_VALUE;
+        mEvictionCount = 0;
     }
 
-    @VisibleForTesting
-    public int getMapSize() {
+    /**
+     * @return the number of pending metadata entries.
+     */
+    public int getSize() {
         synchronized (mLock) {
-            return mMetadataFutures.size();
+            return mSize;
         }
     }
 
-    private SettableFuture<TotalCaptureResultProxy> getOrCreateFuture(long timestamp) {
-        SettableFuture<TotalCaptureResultProxy> metadataFuture;
+    /**
+     * @return the number of entries that expired or were evicted to stay
+     *         within the size bound.
+     */
+    public long getEvictionCount() {
         synchronized (mLock) {
-            if (!mMetadataFutures.containsKey(timestamp)) {
-                mMetadataFutures.put(timestamp, SettableFuture.<TotalCaptureResultProxy> create());
-            }
-
-            metadataFuture = mMetadataFutures.get(timestamp);
+            return mEvictionCount;
         }
-        return metadataFuture;
     }
 
     @Nonnull
     @Override
     public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(final long timestamp) {
-        ListenableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
-        // Remove the future from the map when it is done to free the memory.
+        List<ExpiredEntry> evicted = new ArrayList<>();
+        final SettableFuture<TotalCaptureResultProxy> future =
+                getOrCreateFuture(timestamp, evicted);
+        failAll(evicted);
+        if (future == null) {
+            return Futures.immediateFailedFuture(new MetadataExpiredException(timestamp));
+        }
+
+        // Remove the future from the pool when it is done to free the memory.
         Futures.addCallback(future, new FutureCallback<TotalCaptureResultProxy>() {
             @Override
             public void onSuccess(TotalCaptureResultProxy totalCaptureResultProxy) {
-                synchronized (mLock) {
-                    mMetadataFutures.remove(timestamp);
-                }
+                remove(timestamp, future);
             }
 
             @Override
             public void onFailure(Throwable throwable) {
-                throw new UnsupportedOperationException();
+                // Already removed when it expired.
             }
         });
         return Futures2.nonCancellationPropagating(future);
@@ -88,7 +149,155 @@ public class MetadataPoolImpl implements Updatable<TotalCaptureResultProxy>, Met
     @Override
     public void update(@Nonnull TotalCaptureResultProxy metadata) {
         long timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
-        SettableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
-        future.set(metadata);
+        List<ExpiredEntry> evicted = new ArrayList<>();
+        SettableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp, evicted);
+        failAll(evicted);
+        if (future != null) {
+            future.set(metadata);
+        }
+    }
+
+    /**
+     * Must be called when an image is made available to consumers, before
+     * any of them may close it.
+     */
+    void onImageOpened(long timestamp) {
+        synchronized (mLock) {
+            int index = Arrays.binarySearch(mOpenImages, 0, mOpenImageCount, timestamp);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (mOpenImageCount == mOpenImages.length) {
+                mOpenImages = Arrays.copyOf(mOpenImages, mOpenImageCount * 2);
+            }
+            System.arraycopy(mOpenImages, index, mOpenImages, index + 1,
+                    mOpenImageCount - index);
+            mOpenImages[index] = timestamp;
+            mOpenImageCount++;
+            mNewestImageTimestamp = Math.max(mNewestImageTimestamp, timestamp);
+        }
+    }
+
+    /**
+     * Must be called when an image is closed, expiring all metadata that is
+     * older than the remaining open images.
+     */
+    void onImageClosed(long timestamp) {
+        List<ExpiredEntry> expired = new ArrayList<>();
+        synchronized (mLock) {
+            int index = Arrays.binarySearch(mOpenImages, 0, mOpenImageCount, timestamp);
+            if (index >= 0) {
+                mOpenImageCount--;
+                System.arraycopy(mOpenImages, index + 1, mOpenImages, index,
+                        mOpenImageCount - index);
+            }
+
+            long expiryTimestamp = getExpiryTimestamp();
+            int expiredCount = 0;
+            while (expiredCount < mSize && mTimestamps[expiredCount] < expiryTimestamp) {
+                expired.add(new ExpiredEntry(mTimestamps[expiredCount], mFutures[expiredCount]));
+                expiredCount++;
+            }
+            removeRange(0, expiredCount);
+            mEvictionCount += expiredCount;
+        }
+        failAll(expired);
+    }
+
+    /**
+     * @return the future for the given timestamp, or null if metadata for
+     *         this timestamp has already expired.
+     */
+    private SettableFuture<TotalCaptureResultProxy> getOrCreateFuture(long timestamp,
+            List<ExpiredEntry> evicted) {
+        synchronized (mLock) {
+            int index = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+            if (index >= 0) {
+                return mFutures[index];
+            }
+
+            if (timestamp < getExpiryTimestamp()) {
+                // Late metadata for, or a late request about, an image which
+                // has been closed.
+                return null;
+            }
+
+            index = -index - 1;
+            if (mSize == mMaxSize) {
+                if (index == 0) {
+                    // Older than anything in a full pool.
+                    mEvictionCount++;
+                    return null;
+                }
+                evicted.add(new ExpiredEntry(mTimestamps[0], mFutures[0]));
+                removeRange(0, 1);
+                mEvictionCount++;
+                index--;
+            }
+
+            SettableFuture<TotalCaptureResultProxy> future = SettableFuture.create();
+            System.arraycopy(mTimestamps, index, mTimestamps, index + 1, mSize - index);
+            System.arraycopy(mFutures, index, mFutures, index + 1, mSize - index);
+            mTimestamps[index] = timestamp;
+            mFutures[index] = future;
+            mSize++;
+            return future;
+        }
+    }
+
+    private void remove(long timestamp, SettableFuture<TotalCaptureResultProxy> future) {
+        synchronized (mLock) {
+            int index = Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+            if (index >= 0 && mFutures[index] == future) {
+                removeRange(index, 1);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeRange(int index, int count) {
+        System.arraycopy(mTimestamps, index + count, mTimestamps, index, mSize - index - count);
+        System.arraycopy(mFutures, index + count, mFutures, index, mSize - index - count);
+        for (int i = mSize - count; i < mSize; i++) {
+            mFutures[i] = null;
+        }
+        mSize -= count;
+    }
+
+    /**
+     * Metadata older than the oldest open image can no longer be asked for.
+     * If no image is open, metadata up to the most recent image can't be
+     * either; newer metadata may still be waiting for its image.
+     */
+    @GuardedBy("mLock")
+    private long getExpiryTimestamp() {
+        if (mOpenImageCount > 0) {
+            return mOpenImages[0];
+        }
+        if (mNewestImageTimestamp == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return mNewestImageTimestamp + 1;
+    }
+
+    /**
+     * Fails the given futures. Must not be called with mLock held, since this
+     * runs their listeners.
+     */
+    private static void failAll(List<ExpiredEntry> entries) {
+        for (ExpiredEntry entry : entries) {
+            entry.future.setException(new MetadataExpiredException(entry.timestamp));
+        }
+    }
+
+    private static final class ExpiredEntry {
+        final long timestamp;
+        final SettableFuture<TotalCaptureResultProxy> future;
+
+        ExpiredEntry(long timestamp, SettableFuture<TotalCaptureResultProxy> future) {
+            this.timestamp = timestamp;
+            this.future = future;
+        }
     }
 }
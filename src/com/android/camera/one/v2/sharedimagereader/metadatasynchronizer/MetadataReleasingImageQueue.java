@@ -27,7 +27,8 @@ import javax.annotation.concurrent.ThreadSafe;
 /**
  * Wraps an output queue of images by wrapping each image to track when they are
  * closed. When images are closed, their associated metadata entry is freed to
- * not leak memory.
+ * not leak memory, along with the metadata of older frames whose images were
+ * dropped.
  */
 @ThreadSafe
 @ParametersAreNonnullByDefault
@@ -45,20 +46,23 @@ public class MetadataReleasingImageQueue implements BufferQueueController<ImageP
             // Free the metadata when the image is closed to not leak
             // memory.
             mMetadataPool.removeMetadataFuture(timestamp);
+            mMetadataPool.onImageClosed(timestamp);
         }
     }
 
     private final BufferQueueController<ImageProxy> mOutputQueue;
-    private final MetadataPool mMetadataPool;
+    private final MetadataPoolImpl mMetadataPool;
 
     public MetadataReleasingImageQueue(BufferQueueController<ImageProxy> outputQueue,
-            MetadataPool metadataPool) {
+            MetadataPoolImpl metadataPool) {
         mOutputQueue = outputQueue;
         mMetadataPool = metadataPool;
     }
 
     @Override
     public void update(@Nonnull ImageProxy element) {
+        // The output queue may close the image right away.
+        mMetadataPool.onImageOpened(element.getTimestamp());
         mOutputQueue.update(new MetadataReleasingImageProxy(element));
     }
 
@@ -27,23 +27,38 @@ import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.android.camera.app.CameraServices;
 import com.android.camera.app.CameraServicesImpl;
+import com.android.camera.app.MemoryManager;
+import com.android.camera.app.MemoryManager.MemoryListener;
+import com.android.camera.async.AndroidPriorityThread;
 import com.android.camera.debug.Log;
+import com.android.camera.processing.ProcessingServiceManager.QueuedTask;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.session.CaptureSession.ProgressListener;
 import com.android.camera.session.CaptureSessionManager;
 import com.android.camera.util.AndroidServices;
 import com.android.camera2.R;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.concurrent.GuardedBy;
+
 /**
- * A service that processes a {@code ProcessingTask}. The service uses a fifo
- * queue so that only one {@code ProcessingTask} is processed at a time.
+ * A service that processes {@code ProcessingTask}s. The service takes tasks
+ * from a fifo queue and processes several of them at a time, as many as the
+ * CPU and memory budgets allow, so that a long running task does not hold up
+ * all the ones after it. While memory is low, only one task runs at a time.
  * <p>
  * The service is meant to be called via {@code ProcessingService.addTask},
  * which takes care of starting the service and enqueueing the
@@ -74,6 +89,15 @@ public class ProcessingService extends Service implements ProgressListener {
     private static final Log.Tag TAG = new Log.Tag("ProcessingService");
     private static final int THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
     private static final int CAMERA_NOTIFICATION_ID = 2;
+
+    /** The most tasks to process at a time, whatever the budgets. */
+    private static final int MAX_CONCURRENT_TASKS = 3;
+
+    /**
+     * The native memory a task such as panorama stitching may need, used to
+     * derive how many tasks fit in the memory budget.
+     */
+    private static final int TASK_MEMORY_ESTIMATE_MB = 100;
     private Notification.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
@@ -94,11 +118,54 @@ public class ProcessingService extends Service implements ProgressListener {
     private CaptureSessionManager mSessionManager;
 
     private ProcessingServiceManager mProcessingServiceManager;
-    private Thread mProcessingThread;
-    private volatile boolean mPaused = false;
-    private ProcessingTask mCurrentTask;
+    private ExecutorService mProcessingExecutor;
+
+    /** The number of tasks to process at a time while memory is fine. */
+    private int mMaxConcurrentTasks;
+
+    /** Guards the state of the running tasks, and whether they're paused. */
     private final Lock mSuspendStatusLock = new ReentrantLock();
 
+    @GuardedBy("mSuspendStatusLock")
+    private boolean mPaused = false;
+
+    /** Whether the memory manager reports a state other than STATE_OK. */
+    @GuardedBy("mSuspendStatusLock")
+    private boolean mMemoryLow = false;
+
+    /**
+     * Whether onLowMemory was received. There is no matching all-clear, so
+     * this is cleared once all running tasks are done and their memory is
+     * freed.
+     */
+    @GuardedBy("mSuspendStatusLock")
+    private boolean mLowMemoryReceived = false;
+
+    @GuardedBy("mSuspendStatusLock")
+    private final List<ProcessingTask> mRunningTasks = new ArrayList<ProcessingTask>();
+
+    /** The id of the most recent start request, see {@link #stopSelf(int)}. */
+    @GuardedBy("mSuspendStatusLock")
+    private int mLastStartId;
+
+    private final MemoryListener mMemoryListener = new MemoryListener() {
+        @Override
+        public void onMemoryStateChanged(int state) {
+            setMemoryLow(state != MemoryManager.STATE_OK);
+        }
+
+        @Override
+        public void onLowMemory() {
+            try {
+                mSuspendStatusLock.lock();
+                Log.d(TAG, "Low memory received");
+                mLowMemoryReceived = true;
+            } finally {
+                mSuspendStatusLock.unlock();
+            }
+        }
+    };
+
     @Override
     public void onCreate() {
         mProcessingServiceManager = ProcessingServiceManager.instance();
@@ -115,6 +182,26 @@ public class ProcessingService extends Service implements ProgressListener {
         LocalBroadcastManager.getInstance(this).registerReceiver(mServiceController, intentFilter);
         mNotificationBuilder = createInProgressNotificationBuilder();
         mNotificationManager = AndroidServices.instance().provideNotificationManager();
+
+        MemoryManager memoryManager = getServices().getMemoryManager();
+        int cpuBudget = Runtime.getRuntime().availableProcessors() / 2;
+        int memoryBudget =
+                memoryManager.getMaxAllowedNativeMemoryAllocation() / TASK_MEMORY_ESTIMATE_MB;
+        mMaxConcurrentTasks = Math.max(1,
+                Math.min(MAX_CONCURRENT_TASKS, Math.min(cpuBudget, memoryBudget)));
+        Log.d(TAG, "Processing up to " + mMaxConcurrentTasks + " tasks at a time");
+        memoryManager.addListener(mMemoryListener);
+
+        mProcessingExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new AndroidPriorityThread(THREAD_PRIORITY, runnable);
+                thread.setName("CameraProcessingThread-" + mCount.getAndIncrement());
+                return thread;
+            }
+        });
     }
 
     @Override
@@ -128,6 +215,8 @@ public class ProcessingService extends Service implements ProgressListener {
             mWakeLock.release();
         }
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mServiceController);
+        getServices().getMemoryManager().removeListener(mMemoryListener);
+        mProcessingExecutor.shutdown();
         stopForeground(true);
     }
 
@@ -139,6 +228,12 @@ public class ProcessingService extends Service implements ProgressListener {
         // killed easily when memory pressure is building up.
         startForeground(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
 
+        try {
+            mSuspendStatusLock.lock();
+            mLastStartId = startId;
+        } finally {
+            mSuspendStatusLock.unlock();
+        }
         asyncProcessAllTasksAndShutdown();
 
         // We want this service to continue running until it is explicitly
@@ -157,8 +252,8 @@ public class ProcessingService extends Service implements ProgressListener {
         try {
             mSuspendStatusLock.lock();
             mPaused = true;
-            if (mCurrentTask != null) {
-                mCurrentTask.suspend();
+            for (ProcessingTask task : mRunningTasks) {
+                task.suspend();
             }
         } finally {
             mSuspendStatusLock.unlock();
@@ -170,45 +265,94 @@ public class ProcessingService extends Service implements ProgressListener {
         try {
             mSuspendStatusLock.lock();
             mPaused = false;
-            if (mCurrentTask != null) {
-                mCurrentTask.resume();
+            for (ProcessingTask task : mRunningTasks) {
+                task.resume();
+            }
+        } finally {
+            mSuspendStatusLock.unlock();
+        }
+    }
+
+    private void setMemoryLow(boolean memoryLow) {
+        try {
+            mSuspendStatusLock.lock();
+            if (mMemoryLow == memoryLow) {
+                return;
             }
+            Log.d(TAG, "Memory low: " + memoryLow);
+            mMemoryLow = memoryLow;
         } finally {
             mSuspendStatusLock.unlock();
         }
+        if (!memoryLow) {
+            asyncProcessAllTasksAndShutdown();
+        }
     }
 
     /**
-     * Starts a thread to process all tasks. When no more tasks are in the
-     * queue, it exits the thread and shuts down the service.
+     * Starts processing queued tasks until the budget is used up. Each task
+     * that finishes starts the next ones. When no more tasks are in the queue
+     * or running, it shuts down the service.
      */
     private void asyncProcessAllTasksAndShutdown() {
-        if (mProcessingThread != null) {
-            return;
-        }
-        mProcessingThread = new Thread("CameraProcessingThread") {
-            @Override
-            public void run() {
-                // Set the thread priority
-                android.os.Process.setThreadPriority(THREAD_PRIORITY);
-
-                ProcessingTask task;
-                while ((task = mProcessingServiceManager.popNextSession()) != null) {
-                    mCurrentTask = task;
-                    try {
-                        mSuspendStatusLock.lock();
-                        if (mPaused) {
-                            mCurrentTask.suspend();
-                        }
-                    } finally {
-                        mSuspendStatusLock.unlock();
-                    }
-                    processAndNotify(task);
+        try {
+            mSuspendStatusLock.lock();
+            if (mRunningTasks.isEmpty()) {
+                mLowMemoryReceived = false;
+            }
+            int maxConcurrentTasks =
+                    (mMemoryLow || mLowMemoryReceived) ? 1 : mMaxConcurrentTasks;
+            while (mRunningTasks.size() < maxConcurrentTasks) {
+                final QueuedTask queuedTask = mProcessingServiceManager.popNextSession();
+                if (queuedTask == null) {
+                    break;
+                }
+                mRunningTasks.add(queuedTask.task);
+                if (mPaused) {
+                    queuedTask.task.suspend();
                 }
-                stopSelf();
+                mProcessingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        processQueuedTask(queuedTask);
+                    }
+                });
+            }
+            if (mRunningTasks.isEmpty() && mProcessingServiceManager.stopServiceIfIdle()) {
+                // Another start request may have come in since, then this
+                // has no effect.
+                stopSelf(mLastStartId);
+            }
+        } finally {
+            mSuspendStatusLock.unlock();
+        }
+    }
+
+    /**
+     * Processes a task on the calling thread, records how long it waited and
+     * ran, and then moves on to the next tasks.
+     */
+    private void processQueuedTask(QueuedTask queuedTask) {
+        long startMillis = SystemClock.elapsedRealtime();
+        try {
+            processAndNotify(queuedTask.task);
+        } finally {
+            long endMillis = SystemClock.elapsedRealtime();
+            String name = queuedTask.task.getName();
+            if (name == null) {
+                name = queuedTask.task.getClass().getSimpleName();
             }
-        };
-        mProcessingThread.start();
+            Log.i(TAG, "Task " + name + " waited "
+                    + (startMillis - queuedTask.enqueuedMillis) + " ms, ran "
+                    + (endMillis - startMillis) + " ms");
+            try {
+                mSuspendStatusLock.lock();
+                mRunningTasks.remove(queuedTask.task);
+            } finally {
+                mSuspendStatusLock.unlock();
+            }
+            asyncProcessAllTasksAndShutdown();
+        }
     }
 
     /**
@@ -239,7 +383,7 @@ public class ProcessingService extends Service implements ProgressListener {
         Log.d(TAG, "Processing done");
     }
 
-    private void resetNotification() {
+    private synchronized void resetNotification() {
         mNotificationBuilder.setContentText("…").setProgress(100, 0, false);
         postNotification();
     }
@@ -251,6 +395,10 @@ public class ProcessingService extends Service implements ProgressListener {
         return CameraServicesImpl.instance();
     }
 
+    /**
+     * Tasks running at the same time share the notification, so updates to
+     * it are synchronized.
+     */
     private void postNotification() {
         mNotificationManager.notify(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
     }
@@ -267,13 +415,13 @@ public class ProcessingService extends Service implements ProgressListener {
     }
 
     @Override
-    public void onProgressChanged(int progress) {
+    public synchronized void onProgressChanged(int progress) {
         mNotificationBuilder.setProgress(100, progress, false);
         postNotification();
     }
 
     @Override
-    public void onStatusMessageChanged(int messageId) {
+    public synchronized void onStatusMessageChanged(int messageId) {
         mNotificationBuilder.setContentText(messageId > 0 ? getString(messageId) : "");
         postNotification();
     }
@@ -18,13 +18,14 @@ package com.android.camera.processing;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
 import com.android.camera.debug.Log;
 import com.android.camera.processing.imagebackend.ImageBackend;
 import com.android.camera.util.AndroidContext;
 import com.android.camera2.R;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
 
 /**
  * Manages a queue of processing tasks as well as the processing service
@@ -36,6 +37,19 @@ import java.util.LinkedList;
 public class ProcessingServiceManager implements ProcessingTaskConsumer {
     private static final Log.Tag TAG = new Log.Tag("ProcessingSvcMgr");
 
+    /**
+     * A task in the queue, along with the time it was enqueued.
+     */
+    static class QueuedTask {
+        public final ProcessingTask task;
+        public final long enqueuedMillis;
+
+        QueuedTask(ProcessingTask task, long enqueuedMillis) {
+            this.task = task;
+            this.enqueuedMillis = enqueuedMillis;
+        }
+    }
+
     private static class Singleton {
         private static final ProcessingServiceManager INSTANCE = new ProcessingServiceManager(
               AndroidContext.instance().get());
@@ -49,7 +63,7 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
     private final Context mAppContext;
 
     /** Queue of tasks to be processed. */
-    private final LinkedList<ProcessingTask> mQueue = new LinkedList<ProcessingTask>();
+    private final ArrayDeque<QueuedTask> mQueue = new ArrayDeque<QueuedTask>();
 
     /** Whether a processing service is currently running. */
     private volatile boolean mServiceRunning = false;
@@ -70,16 +84,17 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
 
     /**
      * Enqueues a new task. If the service is not already running, it will be
-     * started.
+     * started. Otherwise, it is told about the new task, since it may be able
+     * to run it alongside the ones it is running.
      *
      * @param task The task to be enqueued.
      */
     @Override
     public synchronized void enqueueTask(ProcessingTask task) {
-        mQueue.add(task);
+        mQueue.add(new QueuedTask(task, SystemClock.elapsedRealtime()));
         Log.d(TAG, "Task added. Queue size now: " + mQueue.size());
 
-        if (!mServiceRunning && !mHoldProcessing) {
+        if (!mHoldProcessing) {
             startService();
         }
     }
@@ -88,22 +103,36 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
      * Remove the next task from the queue and return it.
      *
      * @return The next Task or <code>null</code>, if no more tasks are in the
-     *         queue or we have a processing hold. If null is returned the
-     *         service is has to shut down as a new service is started if either
-     *         new items enter the queue or the processing is resumed.
+     *         queue or we have a processing hold. Once the service has no
+     *         more tasks running either, it has to call
+     *         {@link #stopServiceIfIdle()}.
      */
-    public synchronized ProcessingTask popNextSession() {
+    synchronized QueuedTask popNextSession() {
         if (!mQueue.isEmpty() && !mHoldProcessing) {
             Log.d(TAG, "Popping a session. Remaining: " + (mQueue.size() - 1));
             return mQueue.remove();
         } else {
             Log.d(TAG, "Popping null. On hold? " + mHoldProcessing);
-            mServiceRunning = false;
-            // Returning null will shut-down the service.
             return null;
         }
     }
 
+    /**
+     * Called by the service when it has no more tasks running. A new service
+     * is started if either new items enter the queue or the processing is
+     * resumed.
+     *
+     * @return Whether the service has to shut down, false if tasks have been
+     *         enqueued in the meantime.
+     */
+    synchronized boolean stopServiceIfIdle() {
+        if (!mQueue.isEmpty() && !mHoldProcessing) {
+            return false;
+        }
+        mServiceRunning = false;
+        return true;
+    }
+
     /**
      * @return Whether the service has queued items or is running.
      */
@@ -152,8 +181,8 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
 
     /**
      * Starts the service which will then work through the queue. Once the queue
-     * is empty {@link #popNextSession()} returns null), the task will kill
-     * itself automatically and call #stitchingFinished().
+     * is empty and all tasks are done, the service will kill itself
+     * automatically, see {@link #stopServiceIfIdle()}.
      */
     private void startService() {
         mAppContext.startService(new Intent(mAppContext, ProcessingService.class));
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Routes each task to one of three dedicated services by its priority. This is
+ * the original ImageBackend scheduling model, kept so that it can be compared
+ * against {@link WorkStealingImageTaskScheduler} under load.
+ */
+public class FixedPoolImageTaskScheduler implements ImageTaskScheduler {
+    private final ExecutorService mThreadPoolFast;
+    private final ExecutorService mThreadPoolAverage;
+    private final ExecutorService mThreadPoolSlow;
+
+    /**
+     * @param fastService Service where Tasks of FAST Priority are placed.
+     * @param averageService Service where Tasks of AVERAGE Priority are placed.
+     * @param slowService Service where Tasks of SLOW Priority are placed.
+     */
+    public FixedPoolImageTaskScheduler(ExecutorService fastService,
+            ExecutorService averageService,
+            ExecutorService slowService) {
+        mThreadPoolFast = fastService;
+        mThreadPoolAverage = averageService;
+        mThreadPoolSlow = slowService;
+    }
+
+    @Override
+    public void execute(Runnable task, TaskImageContainer.ProcessingPriority priority) {
+        switch (priority) {
+            case FAST:
+                mThreadPoolFast.execute(task);
+                break;
+            case AVERAGE:
+                mThreadPoolAverage.execute(task);
+                break;
+            case SLOW:
+                mThreadPoolSlow.execute(task);
+                break;
+            default:
+                mThreadPoolSlow.execute(task);
+                break;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        mThreadPoolFast.shutdown();
+        mThreadPoolAverage.shutdown();
+        mThreadPoolSlow.shutdown();
+    }
+}
@@ -16,26 +16,29 @@
 
 package com.android.camera.processing.imagebackend;
 
-import android.os.Process;
+import android.graphics.Bitmap;
 
-import com.android.camera.async.AndroidPriorityThread;
 import com.android.camera.debug.Log;
 import com.android.camera.processing.ProcessingTaskConsumer;
-import com.android.camera.processing.memory.ByteBufferDirectPool;
+import com.android.camera.processing.memory.BitmapPool;
+import com.android.camera.processing.memory.IntArrayPool;
 import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.SizeClassByteBufferPool;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
 import com.google.common.base.Optional;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -93,33 +96,45 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
     protected static final int NUM_THREADS_AVERAGE = 2;
     protected static final int NUM_THREADS_SLOW = 2;
 
-    private static final int FAST_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
-    private static final int AVERAGE_THREAD_PRIORITY = Process.THREAD_PRIORITY_DEFAULT
-            + Process.THREAD_PRIORITY_LESS_FAVORABLE;
-    private static final int SLOW_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND
-            + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+    // Room for two full-size JPEG output buffers on a 13MP sensor.
+    private static final int IMAGE_BACKEND_DIRECT_BUFFER_BUDGET_BYTES = 48 * 1024 * 1024;
 
-    private static final int IMAGE_BACKEND_HARD_REF_POOL_SIZE = 2;
+    // Enough for one fast and one filmstrip thumbnail in flight per thread.
+    private static final int PREVIEW_PIXEL_POOL_SIZE = 4;
+
+    private static final int PREVIEW_BITMAP_POOL_SIZE = 2;
 
     protected final ProcessingTaskConsumer mProcessingTaskConsumer;
 
     /**
-     * Map for TaskImageContainer and the release of ImageProxy Book-keeping
+     * Map for TaskImageContainer and the release of ImageProxy Book-keeping.
+     * Each protocol carries its own lock, so the map is only touched when an
+     * image is first received and when its last reference is released.
      */
-    protected final Map<ImageToProcess, ImageReleaseProtocol> mImageSemaphoreMap;
+    protected final ConcurrentMap<ImageToProcess, ImageReleaseProtocol> mImageSemaphoreMap;
     /**
      * Map for ImageShadowTask and release of blocking on
      * ImageShadowTask::process
      */
-    protected final Map<CaptureSession, ImageShadowTask> mShadowTaskMap;
+    protected final ConcurrentMap<CaptureSession, ImageShadowTask> mShadowTaskMap;
 
-    // The available threadpools for scheduling
-    protected final ExecutorService mThreadPoolFast;
-    protected final ExecutorService mThreadPoolAverage;
-    protected final ExecutorService mThreadPoolSlow;
+    // The scheduler that runs all tasks
+    protected final ImageTaskScheduler mScheduler;
 
     private final LruResourcePool<Integer, ByteBuffer> mByteBufferDirectPool;
 
+    /**
+     * Pool for the packed ARGB pixels of RGB previews, keyed by array length.
+     * Buffers return to the pool once the preview listeners have run.
+     */
+    private final IntArrayPool mPreviewPixelPool;
+
+    /**
+     * Pool for the transient Bitmaps that preview consumers build from the
+     * packed ARGB pixels, keyed by size.
+     */
+    private final BitmapPool mPreviewBitmapPool;
+
     /**
      * Approximate viewable size (in pixels) for the fast thumbnail in the
      * current UX definition of the product. Note that these values will be the
@@ -138,25 +153,32 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     // Some invariants to know that we're keeping track of everything
     // that reflect the state of mImageSemaphoreMap
-    private int mOutstandingImageRefs = 0;
+    private final AtomicInteger mOutstandingImageRefs = new AtomicInteger(0);
 
-    private int mOutstandingImageOpened = 0;
+    private final AtomicInteger mOutstandingImageOpened = new AtomicInteger(0);
 
-    private int mOutstandingImageClosed = 0;
+    private final AtomicInteger mOutstandingImageClosed = new AtomicInteger(0);
 
     // Objects that may be registered to this objects events.
     private ImageProcessorProxyListener mProxyListener = null;
 
     // Default constructor, values are conservatively targeted to the Nexus 6
     public ImageBackend(ProcessingTaskConsumer processingTaskConsumer, int tinyThumbnailSize) {
-        mThreadPoolFast = Executors.newFixedThreadPool(NUM_THREADS_FAST, new FastThreadFactory());
-        mThreadPoolAverage = Executors.newFixedThreadPool(NUM_THREADS_AVERAGE,
-                new AverageThreadFactory());
-        mThreadPoolSlow = Executors.newFixedThreadPool(NUM_THREADS_SLOW, new SlowThreadFactory());
-        mByteBufferDirectPool = new ByteBufferDirectPool(IMAGE_BACKEND_HARD_REF_POOL_SIZE);
+        // Use at most as many workers as the old fixed pools had in total,
+        // but never more than there are cores to run them.
+        int numThreads = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(),
+                NUM_THREADS_FAST + NUM_THREADS_AVERAGE + NUM_THREADS_SLOW));
+        // Leave a worker for FAST and AVERAGE tasks, however many JPEGs are
+        // being encoded.
+        mScheduler = new WorkStealingImageTaskScheduler(numThreads,
+                Math.min(NUM_THREADS_SLOW, numThreads - 1));
+        mByteBufferDirectPool =
+                new SizeClassByteBufferPool(IMAGE_BACKEND_DIRECT_BUFFER_BUDGET_BYTES);
         mProxyListener = new ImageProcessorProxyListener();
-        mImageSemaphoreMap = new HashMap<>();
-        mShadowTaskMap = new HashMap<>();
+        mPreviewPixelPool = new IntArrayPool(PREVIEW_PIXEL_POOL_SIZE);
+        mPreviewBitmapPool = new BitmapPool(PREVIEW_BITMAP_POOL_SIZE);
+        mImageSemaphoreMap = new ConcurrentHashMap<>();
+        mShadowTaskMap = new ConcurrentHashMap<>();
         mProcessingTaskConsumer = processingTaskConsumer;
         mTinyThumbnailTargetSize = new Size(tinyThumbnailSize, tinyThumbnailSize);
     }
@@ -176,13 +198,30 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             ImageProcessorProxyListener imageProcessorProxyListener,
             ProcessingTaskConsumer processingTaskConsumer,
             int tinyThumbnailSize) {
-        mThreadPoolFast = fastService;
-        mThreadPoolAverage = averageService;
-        mThreadPoolSlow = slowService;
+        this(new FixedPoolImageTaskScheduler(fastService, averageService, slowService),
+                byteBufferDirectPool, imageProcessorProxyListener, processingTaskConsumer,
+                tinyThumbnailSize);
+    }
+
+    /**
+     * Direct Injection Constructor for Testing purposes, which allows
+     * scheduling models to be compared against each other.
+     *
+     * @param scheduler Scheduler on which all tasks are placed.
+     * @param imageProcessorProxyListener iamge proxy listener to be used
+     */
+    public ImageBackend(ImageTaskScheduler scheduler,
+            LruResourcePool<Integer, ByteBuffer> byteBufferDirectPool,
+            ImageProcessorProxyListener imageProcessorProxyListener,
+            ProcessingTaskConsumer processingTaskConsumer,
+            int tinyThumbnailSize) {
+        mScheduler = scheduler;
         mByteBufferDirectPool = byteBufferDirectPool;
         mProxyListener = imageProcessorProxyListener;
-        mImageSemaphoreMap = new HashMap<>();
-        mShadowTaskMap = new HashMap<>();
+        mPreviewPixelPool = new IntArrayPool(PREVIEW_PIXEL_POOL_SIZE);
+        mPreviewBitmapPool = new BitmapPool(PREVIEW_BITMAP_POOL_SIZE);
+        mImageSemaphoreMap = new ConcurrentHashMap<>();
+        mShadowTaskMap = new ConcurrentHashMap<>();
         mProcessingTaskConsumer = processingTaskConsumer;
         mTinyThumbnailTargetSize = new Size(tinyThumbnailSize, tinyThumbnailSize);
     }
@@ -197,6 +236,17 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         return mProxyListener;
     }
 
+    /**
+     * Returns the pool for Bitmaps that preview consumers build from the
+     * pixels delivered by onResultUncompressed. A consumer must close the
+     * resource once it no longer references the Bitmap.
+     *
+     * @return pool of ARGB_8888 Bitmaps keyed by size.
+     */
+    public LruResourcePool<Size, Bitmap> getPreviewBitmapPool() {
+        return mPreviewBitmapPool;
+    }
+
     /**
      * Wrapper function for all log messages created by this object. Default
      * implementation is to send messages to the Android logger. For test
@@ -212,12 +262,9 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public int getNumberOfReservedOpenImages() {
-        synchronized (mImageSemaphoreMap) {
-            // since mOutstandingImageOpened, mOutstandingImageClosed reflect
-            // the historical state of mImageSemaphoreMap, we need to lock on
-            // before we return a value.
-            return mOutstandingImageOpened - mOutstandingImageClosed;
-        }
+        // mOutstandingImageOpened and mOutstandingImageClosed are updated
+        // independently, so this is only a snapshot.
+        return mOutstandingImageOpened.get() - mOutstandingImageClosed.get();
     }
 
     /**
@@ -229,9 +276,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public int getNumberOfOutstandingCalls() {
-        synchronized (mShadowTaskMap) {
-            return mShadowTaskMap.size();
-        }
+        return mShadowTaskMap.size();
     }
 
     /**
@@ -248,40 +293,35 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public void releaseSemaphoreReference(final ImageToProcess img, Executor executor) {
-        synchronized (mImageSemaphoreMap) {
-            ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
-            if (protocol == null || protocol.getCount() <= 0) {
-                // That means task implementation has allowed an unbalanced
-                // semaphore release.
-                throw new RuntimeException(
-                        "ERROR: Task implementation did NOT balance its release.");
+        ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
+        // Decrement and unmap under the per-image lock only, so releases of
+        // different images never contend with each other.
+        int remainingRefs = (protocol == null) ? -1
+                : protocol.releaseReference(mImageSemaphoreMap, img, protocol);
+        if (remainingRefs < 0) {
+            // That means task implementation has allowed an unbalanced
+            // semaphore release.
+            throw new RuntimeException(
+                    "ERROR: Task implementation did NOT balance its release.");
+        }
+
+        // Normal operation from here.
+        int totalRefs = mOutstandingImageRefs.decrementAndGet();
+        logWrapper("Ref release.  Total refs = " + totalRefs);
+        if (remainingRefs == 0) {
+            // Image is ready to be released. It has already been removed
+            // from the map, so that it may be submitted again.
+
+            // Conditionally close the image, specified by initial
+            // receiveImage call
+            if (protocol.closeOnRelease) {
+                closeImageExecutorSafe(img, executor);
+                logWrapper("Ref release close.");
             }
 
-            // Normal operation from here.
-            protocol.addCount(-1);
-            mOutstandingImageRefs--;
-            logWrapper("Ref release.  Total refs = " + mOutstandingImageRefs);
-            if (protocol.getCount() == 0) {
-                // Image is ready to be released
-                // Remove the image from the map so that it may be submitted
-                // again.
-                mImageSemaphoreMap.remove(img);
-
-                // Conditionally close the image, specified by initial
-                // receiveImage call
-                if (protocol.closeOnRelease) {
-                    closeImageExecutorSafe(img, executor);
-                    logWrapper("Ref release close.");
-                }
-
-                // Conditionally signal the blocking thread to go.
-                if (protocol.blockUntilRelease) {
-                    protocol.signal();
-                }
-            } else {
-                // Image is still being held by other tasks.
-                // Otherwise, update the semaphore
-                mImageSemaphoreMap.put(img, protocol);
+            // Conditionally signal the blocking thread to go.
+            if (protocol.blockUntilRelease) {
+                protocol.signal();
             }
         }
     }
@@ -324,9 +364,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public boolean appendTasks(ImageToProcess img, TaskImageContainer task) {
-        Set<TaskImageContainer> tasks = new HashSet<TaskImageContainer>(1);
-        tasks.add(task);
-        return appendTasks(img, tasks);
+        return appendTasks(img, Collections.singleton(task));
     }
 
     /**
@@ -376,10 +414,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             boolean blockUntilImageRelease, boolean closeOnImageRelease,
             Optional<Runnable> runnableWhenDone)
             throws InterruptedException {
-        Set<TaskImageContainer> passTasks = new HashSet<TaskImageContainer>(1);
-        passTasks.add(task);
-        return receiveImage(img, passTasks, blockUntilImageRelease, closeOnImageRelease,
-                runnableWhenDone);
+        return receiveImage(img, Collections.singleton(task), blockUntilImageRelease,
+                closeOnImageRelease, runnableWhenDone);
     }
 
     /**
@@ -393,9 +429,15 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         return "ImageBackend Status BEGIN:\n" +
                 "Shadow Image Map Size = " + mShadowTaskMap.size() + "\n" +
                 "Image Semaphore Map Size = " + mImageSemaphoreMap.size() + "\n" +
-                "OutstandingImageRefs = " + mOutstandingImageRefs + "\n" +
+                "OutstandingImageRefs = " + mOutstandingImageRefs.get() + "\n" +
                 "Proxy Listener Map Size = " + mProxyListener.getMapSize() + "\n" +
                 "Proxy Listener = " + mProxyListener.getNumRegisteredListeners() + "\n" +
+                "Scheduler = " + mScheduler + "\n" +
+                "Direct Buffer Pool = " + mByteBufferDirectPool + "\n" +
+                "Preview Pixel Pool Hits/Misses = " + mPreviewPixelPool.getHitCount() + "/"
+                + mPreviewPixelPool.getMissCount() + "\n" +
+                "Preview Bitmap Pool Hits/Misses = " + mPreviewBitmapPool.getHitCount() + "/"
+                + mPreviewBitmapPool.getMissCount() + "\n" +
                 "ImageBackend Status END:\n";
     }
 
@@ -502,7 +544,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
                 // JPEG compression of the YUV Image, and writes the result to
                 // disk
                 tasksToExecute.add(new TaskPreviewChainedJpeg(img, executor, this, session,
-                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool));
+                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool,
+                        mPreviewPixelPool));
             } else {
                 // Request job that only does JPEG compression and writes the
                 // result to disk
@@ -516,7 +559,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             tasksToExecute.add(new TaskConvertImageToRGBPreview(img, executor,
                     this, TaskImageContainer.ProcessingPriority.FAST, session,
                     mTinyThumbnailTargetSize,
-                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET));
+                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+                    mPreviewPixelPool));
         }
 
         // Wrap the listener in a runnable that will be fired when all tasks are
@@ -557,7 +601,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             TaskConvertImageToRGBPreview.ThumbnailShape thumbnailShape) {
         return new TaskConvertImageToRGBPreview(image, executor, imageBackend,
                 TaskImageContainer.ProcessingPriority.FAST, session,
-                mTinyThumbnailTargetSize, thumbnailShape);
+                mTinyThumbnailTargetSize, thumbnailShape, mPreviewPixelPool);
     }
 
     public TaskCompressImageToJpeg createTaskCompressImageToJpeg(ImageToProcess image,
@@ -571,8 +615,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public void shutdown() {
-        mThreadPoolSlow.shutdown();
-        mThreadPoolFast.shutdown();
+        mScheduler.shutdown();
     }
 
     /**
@@ -585,33 +628,34 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected void initializeTaskDone(Set<TaskImageContainer> tasks,
             Optional<Runnable> runnableWhenDone) {
-        Set<CaptureSession> sessionSet = new HashSet<>();
-        Map<CaptureSession, Integer> sessionTaskCount = new HashMap<>();
+        // Most submissions are a single task, which needs no counting.
+        if (tasks.size() == 1) {
+            initializeSessionTaskDone(tasks.iterator().next().mSession, 1, runnableWhenDone);
+            return;
+        }
 
-        // Create a set w/ no session duplicates and count them
+        // Count the tasks of each distinct session in a single pass.
+        Map<CaptureSession, Integer> sessionTaskCount = new LinkedHashMap<>();
         for (TaskImageContainer task : tasks) {
-            sessionSet.add(task.mSession);
             Integer currentCount = sessionTaskCount.get(task.mSession);
-            if (currentCount == null) {
-                sessionTaskCount.put(task.mSession, 1);
-            } else {
-                sessionTaskCount.put(task.mSession, currentCount + 1);
-            }
+            sessionTaskCount.put(task.mSession, currentCount == null ? 1 : currentCount + 1);
+        }
+        for (Map.Entry<CaptureSession, Integer> entry : sessionTaskCount.entrySet()) {
+            initializeSessionTaskDone(entry.getKey(), entry.getValue(), runnableWhenDone);
         }
+    }
 
+    private void initializeSessionTaskDone(CaptureSession captureSession, int taskCount,
+            Optional<Runnable> runnableWhenDone) {
         // Create a new blocking semaphore for each set of tasks on a given
         // session.
-        synchronized (mShadowTaskMap) {
-            for (CaptureSession captureSession : sessionSet) {
-                BlockSignalProtocol protocol = new BlockSignalProtocol();
-                protocol.setCount(sessionTaskCount.get(captureSession));
-                final ImageShadowTask shadowTask;
-                shadowTask = new ImageShadowTask(protocol, captureSession,
-                            runnableWhenDone);
-                mShadowTaskMap.put(captureSession, shadowTask);
-                mProcessingTaskConsumer.enqueueTask(shadowTask);
-            }
-        }
+        BlockSignalProtocol protocol = new BlockSignalProtocol();
+        protocol.setCount(taskCount);
+        final ImageShadowTask shadowTask;
+        shadowTask = new ImageShadowTask(protocol, captureSession,
+                runnableWhenDone);
+        mShadowTaskMap.put(captureSession, shadowTask);
+        mProcessingTaskConsumer.enqueueTask(shadowTask);
     }
 
     /**
@@ -622,15 +666,14 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected void incrementTaskDone(Set<TaskImageContainer> tasks) throws RuntimeException {
         // TODO: Add invariant test so that all sessions are the same.
-        synchronized (mShadowTaskMap) {
-            for (TaskImageContainer task : tasks) {
-                ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
-                if (shadowTask == null) {
-                    throw new RuntimeException(
-                            "Session NOT previously registered."
-                                    + " ImageShadowTask booking-keeping is incorrect.");
-                }
-                shadowTask.getProtocol().addCount(1);
+        for (TaskImageContainer task : tasks) {
+            ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
+            // A shadow task whose count has reached zero is already done,
+            // even if it was found before being unmapped.
+            if (shadowTask == null || !shadowTask.getProtocol().addCountIfHeld(1)) {
+                throw new RuntimeException(
+                        "Session NOT previously registered."
+                                + " ImageShadowTask booking-keeping is incorrect.");
             }
         }
     }
@@ -644,17 +687,17 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      * @return whether all the tasks associated with an ImageShadowTask are done
      */
     protected boolean decrementTaskDone(ImageShadowTask imageShadowTask) {
-        synchronized (mShadowTaskMap) {
-            int remainingTasks = imageShadowTask.getProtocol().addCount(-1);
-            if (remainingTasks == 0) {
-                mShadowTaskMap.remove(imageShadowTask.getSession());
-                imageShadowTask.getProtocol().signal();
-                return true;
-            } else {
-                return false;
-            }
+        // The mapping is removed in the same step as the last decrement, and
+        // only if a later receiveImage call on the same session has not
+        // already replaced it.
+        int remainingTasks = imageShadowTask.getProtocol().releaseReference(mShadowTaskMap,
+                imageShadowTask.getSession(), imageShadowTask);
+        if (remainingTasks == 0) {
+            imageShadowTask.getProtocol().signal();
+            return true;
+        } else {
+            return false;
         }
-
     }
 
     /**
@@ -664,30 +707,16 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      * @param tasks The set of tasks to be run
      */
     protected void scheduleTasks(Set<TaskImageContainer> tasks) {
-        synchronized (mShadowTaskMap) {
-            for (TaskImageContainer task : tasks) {
-                ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
-                if (shadowTask == null) {
-                    throw new IllegalStateException("Scheduling a task with a unknown session.");
-                }
-                // Before scheduling, wrap TaskImageContainer inside of the
-                // TaskDoneWrapper to add
-                // instrumentation for managing ImageShadowTasks
-                switch (task.getProcessingPriority()) {
-                    case FAST:
-                        mThreadPoolFast.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case AVERAGE:
-                        mThreadPoolAverage.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case SLOW:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    default:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                }
+        for (TaskImageContainer task : tasks) {
+            ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
+            if (shadowTask == null) {
+                throw new IllegalStateException("Scheduling a task with a unknown session.");
             }
+            // Before scheduling, wrap TaskImageContainer inside of the
+            // TaskDoneWrapper to add
+            // instrumentation for managing ImageShadowTasks
+            mScheduler.execute(new TaskDoneWrapper(this, shadowTask, task),
+                    task.getProcessingPriority());
         }
     }
 
@@ -699,27 +728,24 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected ImageReleaseProtocol setSemaphoreReferenceCount(ImageToProcess img, int count,
             boolean blockUntilRelease, boolean closeOnRelease) throws RuntimeException {
-        synchronized (mImageSemaphoreMap) {
-            if (mImageSemaphoreMap.get(img) != null) {
-                throw new RuntimeException(
-                        "ERROR: Rewriting of Semaphore Lock."
-                                + "  Image references may not freed properly");
-            }
-
-            // Create the new booking-keeping object.
-            ImageReleaseProtocol protocol = new ImageReleaseProtocol(blockUntilRelease,
-                    closeOnRelease);
-            protocol.setCount(count);
-
-            mImageSemaphoreMap.put(img, protocol);
-            mOutstandingImageRefs += count;
-            mOutstandingImageOpened++;
-            logWrapper("Received an opened image: " + mOutstandingImageOpened + "/"
-                    + mOutstandingImageClosed);
-            logWrapper("Setting an image reference count of " + count + "   Total refs = "
-                    + mOutstandingImageRefs);
-            return protocol;
-        }
+        // Create the new booking-keeping object.
+        ImageReleaseProtocol protocol = new ImageReleaseProtocol(blockUntilRelease,
+                closeOnRelease);
+        protocol.setCount(count);
+
+        if (mImageSemaphoreMap.putIfAbsent(img, protocol) != null) {
+            throw new RuntimeException(
+                    "ERROR: Rewriting of Semaphore Lock."
+                            + "  Image references may not freed properly");
+        }
+
+        int totalRefs = mOutstandingImageRefs.addAndGet(count);
+        int opened = mOutstandingImageOpened.incrementAndGet();
+        logWrapper("Received an opened image: " + opened + "/"
+                + mOutstandingImageClosed.get());
+        logWrapper("Setting an image reference count of " + count + "   Total refs = "
+                + totalRefs);
+        return protocol;
     }
 
     /**
@@ -734,18 +760,13 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected void incrementSemaphoreReferenceCount(ImageToProcess img, int count)
             throws RuntimeException {
-        synchronized (mImageSemaphoreMap) {
-            ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
-            if (mImageSemaphoreMap.get(img) == null) {
-                throw new RuntimeException(
-                        "Image Reference has already been released or has never been held.");
-            }
-
-            protocol.addCount(count);
-            mImageSemaphoreMap.put(img, protocol);
-
-            mOutstandingImageRefs += count;
+        ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
+        if (protocol == null || !protocol.addCountIfHeld(count)) {
+            throw new RuntimeException(
+                    "Image Reference has already been released or has never been held.");
         }
+
+        mOutstandingImageRefs.addAndGet(count);
     }
 
     /**
@@ -761,9 +782,9 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             @Override
             public void run() {
                 img.proxy.close();
-                mOutstandingImageClosed++;
+                int closed = mOutstandingImageClosed.incrementAndGet();
                 logWrapper("Release of image occurred.  Good fun. " + "Total Images Open/Closed = "
-                        + mOutstandingImageOpened + "/" + mOutstandingImageClosed);
+                        + mOutstandingImageOpened.get() + "/" + closed);
             }
         };
         if (executor == null) {
@@ -876,6 +897,50 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             }
         }
 
+        /**
+         * Adds to the count, unless all references have already been
+         * released.
+         *
+         * @return Whether the count was added to.
+         */
+        public boolean addCountIfHeld(int value) {
+            mLock.lock();
+            try {
+                if (count <= 0) {
+                    return false;
+                }
+                count += value;
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Atomically releases a single reference and, if it was the last one,
+         * removes the mapping from key to owner while still holding the lock.
+         * Together with {@link #addCountIfHeld}, this makes sure nobody takes
+         * a new reference on an entry which is done.
+         *
+         * @return The remaining count, or -1 if there was no reference left to
+         *         release.
+         */
+        public <K, V> int releaseReference(ConcurrentMap<K, V> map, K key, V owner) {
+            mLock.lock();
+            try {
+                if (count <= 0) {
+                    return -1;
+                }
+                count--;
+                if (count == 0) {
+                    map.remove(key, owner);
+                }
+                return count;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
         BlockSignalProtocol() {
             count = 0;
             mSignal = mLock.newCondition();
@@ -923,29 +988,4 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     }
 
-    // Thread factories for a default constructor
-    private class FastThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(FAST_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class AverageThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(AVERAGE_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class SlowThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(SLOW_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+/**
+ * The interface by which ImageBackend hands its wrapped tasks off to worker
+ * threads. Implementations decide how the
+ * {@link TaskImageContainer.ProcessingPriority} of a task maps onto threads.
+ */
+public interface ImageTaskScheduler {
+
+    /**
+     * Schedules a task for execution.
+     *
+     * @param task The task to be run.
+     * @param priority The priority requested by the task.
+     */
+    public void execute(Runnable task, TaskImageContainer.ProcessingPriority priority);
+
+    /**
+     * Stops accepting new tasks. Tasks that are already queued are still run.
+     */
+    public void shutdown();
+}
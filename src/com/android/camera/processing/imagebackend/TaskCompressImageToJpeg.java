@@ -24,6 +24,7 @@ import android.net.Uri;
 
 import com.android.camera.Exif;
 import com.android.camera.app.OrientationManager.DeviceOrientation;
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
@@ -283,10 +284,12 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                             img.crop, inputImage.orientation.getDegrees());
 
                     // If the compression overflows the size of the buffer, the
-                    // actual number of bytes will be returned.
-                    if (numBytes > jpgBufferSize) {
+                    // actual number of bytes will be returned. The pool may
+                    // hand out more capacity than was asked for, so check
+                    // against what the encoder could actually use.
+                    if (numBytes > compressedData.capacity()) {
                         byteBufferResource.close();
-                        mByteBufferDirectPool.acquire(maxPossibleJpgSize);
+                        byteBufferResource = mByteBufferDirectPool.acquire(maxPossibleJpgSize);
                         compressedData = byteBufferResource.get();
 
                         // On memory allocation failure, fail gracefully.
@@ -319,17 +322,17 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                         "Unsupported input image format for TaskCompressImageToJpeg");
         }
 
-        writeOut = new byte[numBytes];
-        compressedData.get(writeOut);
-        compressedData.rewind();
-
+        final SafeCloseable dataRelease;
         if (byteBufferResource != null) {
-            byteBufferResource.close();
+            dataRelease = byteBufferResource;
+        } else {
+            dataRelease = new SafeCloseable() {
+                @Override
+                public void close() {
+                }
+            };
         }
 
-        onJpegEncodeDone(mId, inputImage, resultImage, writeOut,
-                TaskInfo.Destination.FINAL_IMAGE);
-
         // In rare cases, TaskCompressImageToJpeg might complete before
         // TaskConvertImageToRGBPreview. However, session should take care
         // of out-of-order completion.
@@ -337,11 +340,28 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         final TaskImage finalInput = inputImage;
         final TaskImage finalResult = resultImage;
 
-        final ExifInterface exif = createExif(Optional.fromNullable(exifData), resultImage,
-                img.metadata);
-        mSession.getCollector().decorateAtTimeWriteToDisk(exif);
-        ListenableFuture<Optional<Uri>> futureUri = mSession.saveAndFinish(writeOut,
-                resultImage.width, resultImage.height, resultImage.orientation.getDegrees(), exif);
+        final ExifInterface exif;
+        try {
+            // Listeners are handed a heap copy; the copy written to disk comes
+            // straight from compressedData, which stays valid until
+            // dataRelease is closed by the session after the write.
+            writeOut = new byte[numBytes];
+            compressedData.get(writeOut);
+            compressedData.rewind();
+
+            onJpegEncodeDone(mId, inputImage, resultImage, writeOut,
+                    TaskInfo.Destination.FINAL_IMAGE);
+
+            exif = createExif(Optional.fromNullable(exifData), resultImage, img.metadata);
+            mSession.getCollector().decorateAtTimeWriteToDisk(exif);
+        } catch (RuntimeException e) {
+            // The session hasn't taken over the pooled buffer yet.
+            dataRelease.close();
+            throw e;
+        }
+        ListenableFuture<Optional<Uri>> futureUri = mSession.saveAndFinish(compressedData,
+                resultImage.width, resultImage.height, resultImage.orientation.getDegrees(), exif,
+                dataRelease);
         Futures.addCallback(futureUri, new FutureCallback<Optional<Uri>>() {
             @Override
             public void onSuccess(Optional<Uri> uriOptional) {
@@ -19,13 +19,18 @@ package com.android.camera.processing.imagebackend;
 import android.graphics.Rect;
 import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.LruResourcePool;
 import com.android.camera.session.CaptureSession;
+import com.android.camera.util.JpegUtilNative;
 import com.android.camera.util.Size;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+import javax.annotation.Nullable;
+
 /**
  * Implements the conversion of a YUV_420_888 image to subsampled image targeted
  * toward a given resolution. The task automatically calculates the largest
@@ -43,6 +48,10 @@ import java.util.concurrent.Executor;
  * </ol>
  * This task does NOT implement rotation at the byte-level, since it is best
  * implemented when displayed at the view level.
+ * <p>
+ * The conversion runs through {@link JpegUtilNative} whenever possible. The
+ * Java conversion routines are kept as the bit-exact reference for the native
+ * path, and as its fallback.
  */
 public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     public enum ThumbnailShape {
@@ -73,9 +82,26 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
 
     protected final static Log.Tag TAG = new Log.Tag("TaskRGBPreview");
 
+    /** Whether to try the native conversion before the Java reference. */
+    private static volatile boolean sUseNativeConversion = true;
+
     protected final ThumbnailShape mThumbnailShape;
     protected final Size mTargetSize;
 
+    /**
+     * Pool for the converted pixels, keyed by array length. If null, a new
+     * array is allocated for every conversion.
+     */
+    @Nullable
+    protected final LruResourcePool<Integer, int[]> mPixelBufferPool;
+
+    /**
+     * Pooled buffer that holds the result of the conversion, returned to the
+     * pool once the listeners have consumed the preview.
+     */
+    @Nullable
+    private LruResourcePool.Resource<int[]> mPixelBuffer;
+
     /**
      * Constructor
      *
@@ -92,9 +118,43 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     TaskConvertImageToRGBPreview(ImageToProcess image, Executor executor,
             ImageTaskManager imageTaskManager, ProcessingPriority processingPriority,
             CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape) {
+        this(image, executor, imageTaskManager, processingPriority, captureSession, targetSize,
+                thumbnailShape, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param image Image that the computation is dependent on
+     * @param executor Executor to fire off an events
+     * @param imageTaskManager Image task manager that allows reference counting
+     *            and task spawning
+     * @param captureSession Capture session that bound to this image
+     * @param targetSize Approximate viewable pixel dimensions of the desired
+     *            preview Image (Resultant image may NOT be of this width)
+     * @param thumbnailShape the desired thumbnail shape for resultant image
+     *            artifact
+     * @param pixelBufferPool pool from which the converted pixels are
+     *            allocated. The pixels are only valid for the duration of the
+     *            onResultUncompressed callback.
+     */
+    TaskConvertImageToRGBPreview(ImageToProcess image, Executor executor,
+            ImageTaskManager imageTaskManager, ProcessingPriority processingPriority,
+            CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape,
+            @Nullable LruResourcePool<Integer, int[]> pixelBufferPool) {
         super(image, executor, imageTaskManager, processingPriority, captureSession);
         mTargetSize = targetSize;
         mThumbnailShape = thumbnailShape;
+        mPixelBufferPool = pixelBufferPool;
+    }
+
+    /**
+     * Switches between the native conversion and the Java reference, so that
+     * tests can compare the two.
+     */
+    @VisibleForTesting
+    static void setUseNativeConversion(boolean useNativeConversion) {
+        sUseNativeConversion = useNativeConversion;
     }
 
     public void logWrapper(String message) {
@@ -770,6 +830,125 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
         return colors;
     }
 
+    /**
+     * The region of the subsampled image that is converted into the thumbnail,
+     * computed exactly as the Java conversion routines do.
+     */
+    protected static class ThumbnailRegion {
+        public final int inputHorizontalOffset;
+        public final int inputVerticalOffset;
+        public final int xMin;
+        public final int xMax;
+        public final int yMin;
+        public final int yMax;
+        public final int outputPixelStride;
+        public final int length;
+        public final boolean circular;
+        public final int centerX;
+        public final int centerY;
+        public final int radius;
+
+        ThumbnailRegion(int anInputHorizontalOffset, int anInputVerticalOffset, int aXMin,
+                int aXMax, int aYMin, int aYMax, int anOutputPixelStride, int aLength,
+                boolean isCircular, int aCenterX, int aCenterY, int aRadius) {
+            inputHorizontalOffset = anInputHorizontalOffset;
+            inputVerticalOffset = anInputVerticalOffset;
+            xMin = aXMin;
+            xMax = aXMax;
+            yMin = aYMin;
+            yMax = aYMax;
+            outputPixelStride = anOutputPixelStride;
+            length = aLength;
+            circular = isCircular;
+            centerX = aCenterX;
+            centerY = aCenterY;
+            radius = aRadius;
+        }
+    }
+
+    /**
+     * Calculates the region converted by colorInscribedDataCircleFromYuvImage
+     * (circular) or colorSubSampleFromYuvImage (not circular).
+     *
+     * @param crop safe crop to be applied
+     * @param subsample width/height subsample factor
+     * @param circular true, output is masked to an inscribed circle
+     * @param enableSquareInscribe true, output is an cropped square output;
+     *            false, output maintains aspect ratio of input image. Ignored
+     *            for circular output, which is always square.
+     * @return the region to be converted
+     */
+    protected ThumbnailRegion calculateThumbnailRegion(Rect crop, int subsample,
+            boolean circular, boolean enableSquareInscribe) {
+        final int w = crop.width() / subsample;
+        final int h = crop.height() / subsample;
+        final int inputVerticalOffset = quantizeBy2(crop.top);
+        final int inputHorizontalOffset = quantizeBy2(crop.left);
+
+        if (!circular && !enableSquareInscribe) {
+            return new ThumbnailRegion(inputHorizontalOffset, inputVerticalOffset,
+                    0, quantizeBy2(w), 0, quantizeBy2(h), w, w * h, false, 0, 0, 0);
+        }
+
+        final int r = inscribedCircleRadius(w, h);
+        final int xMin, xMax, yMin, yMax;
+        if (w > h) {
+            // since we're 2x2 blocks we need to quantize these values by 2
+            xMin = quantizeBy2(w / 2 - r);
+            xMax = quantizeBy2(w / 2 + r);
+            yMin = 0;
+            yMax = h;
+        } else {
+            xMin = 0;
+            xMax = w;
+            // since we're 2x2 blocks we need to quantize these values by 2
+            yMin = quantizeBy2(h / 2 - r);
+            yMax = quantizeBy2(h / 2 + r);
+        }
+        return new ThumbnailRegion(inputHorizontalOffset, inputVerticalOffset,
+                xMin, xMax, yMin, yMax, r * 2, r * r * 4, circular, w / 2, h / 2, r);
+    }
+
+    /**
+     * Converts an Android Image with the native converter in a single pass.
+     *
+     * @param img YUV420_888 Image to convert
+     * @param crop crop to be applied.
+     * @param subsample width/height subsample factor
+     * @param circular true, output is masked to an inscribed circle
+     * @param enableSquareInscribe true, output is an cropped square output;
+     *            false, output maintains aspect ratio of input image
+     * @return inscribed image as ARGB_8888, or null if the native conversion
+     *         could not be applied to this image
+     */
+    protected int[] convertYuvImageNative(ImageProxy img, Rect crop, int subsample,
+            boolean circular, boolean enableSquareInscribe) {
+        crop = guaranteedSafeCrop(img, crop);
+        ThumbnailRegion region = calculateThumbnailRegion(crop, subsample, circular,
+                enableSquareInscribe);
+        LruResourcePool.Resource<int[]> pixelBuffer = null;
+        int[] colors;
+        if (mPixelBufferPool != null) {
+            pixelBuffer = mPixelBufferPool.acquire(region.length);
+            colors = pixelBuffer.get();
+        } else {
+            colors = new int[region.length];
+        }
+        if (!JpegUtilNative.convertYuv420ToArgb(img, subsample,
+                region.inputHorizontalOffset, region.inputVerticalOffset,
+                region.xMin, region.xMax, region.yMin, region.yMax,
+                region.outputPixelStride, region.circular,
+                region.centerX, region.centerY, region.radius,
+                colors, region.length)) {
+            if (pixelBuffer != null) {
+                pixelBuffer.close();
+            }
+            return null;
+        }
+        mPixelBuffer = pixelBuffer;
+        return colors;
+    }
+
     /**
      * DEBUG IMAGE FUNCTION Converts an Android Image to a inscribed circle
      * bitmap, currently wired to the test pattern. Will subsample and optimize
@@ -845,6 +1024,17 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
      * @return an ARGB_888 packed array ready for Bitmap conversion
      */
     protected int[] runSelectedConversion(ImageProxy img, Rect crop, int subsample) {
+        if (sUseNativeConversion
+                && mThumbnailShape != ThumbnailShape.DEBUG_SQUARE_ASPECT_CIRCULAR_INSET) {
+            int[] colors = convertYuvImageNative(img, crop, subsample,
+                    mThumbnailShape == ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+                    mThumbnailShape != ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+            if (colors != null) {
+                return colors;
+            }
+            logWrapper("Native YUV420-to-RGB conversion not applicable, using Java fallback.");
+        }
+
         switch (mThumbnailShape) {
             case DEBUG_SQUARE_ASPECT_CIRCULAR_INSET:
                 return dummyColorInscribedDataCircleFromYuvImage(img, subsample);
@@ -904,7 +1094,24 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
         TaskInfo job = new TaskInfo(mId, inputImage, resultImage, destination);
         final ImageProcessorListener listener = mImageTaskManager.getProxyListener();
 
-        listener.onResultUncompressed(job, new UncompressedPayload(colors));
+        try {
+            listener.onResultUncompressed(job, new UncompressedPayload(colors));
+        } finally {
+            // Listeners are called synchronously and must copy the pixels, so
+            // the buffer can go back to the pool as soon as they return.
+            releasePixelBuffer();
+        }
+    }
+
+    /**
+     * Returns the pixels of the last conversion to the pool, if they came
+     * from it. Must be called if the task fails before {@link #onPreviewDone}.
+     */
+    protected void releasePixelBuffer() {
+        if (mPixelBuffer != null) {
+            mPixelBuffer.close();
+            mPixelBuffer = null;
+        }
     }
 
 }
@@ -41,15 +41,17 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
      *            and task spawning
      * @param captureSession Capture session that bound to this image
      * @param targetSize Approximate viewable pixel demensions of the desired
-     *            preview Image     */
+     *            preview Image
+     * @param pixelBufferPool pool for the converted preview pixels     */
     TaskPreviewChainedJpeg(ImageToProcess image,
             Executor executor,
             ImageTaskManager imageTaskManager,
             CaptureSession captureSession,
             Size targetSize,
-            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool) {
+            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool,
+            LruResourcePool<Integer, int[]> pixelBufferPool) {
         super(image, executor, imageTaskManager, ProcessingPriority.AVERAGE, captureSession,
-                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET, pixelBufferPool);
         mByteBufferDirectPool = byteBufferResourcePool;
     }
 
@@ -83,6 +85,10 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
             TaskImageContainer jpegTask = new TaskCompressImageToJpeg(img, mExecutor,
                     mImageTaskManager, mSession, mByteBufferDirectPool);
             mImageTaskManager.appendTasks(img, jpegTask);
+        } catch (RuntimeException e) {
+            // onPreviewDone won't be reached to return the pixels.
+            releasePixelBuffer();
+            throw e;
         } finally {
             // Signal backend that reference has been released
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.os.Process;
+
+import com.android.camera.async.AndroidPriorityThread;
+import com.android.camera.debug.Log;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single pool of worker threads that treats the
+ * {@link TaskImageContainer.ProcessingPriority} of a task as a preference
+ * rather than a fixed assignment to a thread pool.
+ * <p>
+ * Every task is given a virtual deadline of its submission time plus a slack
+ * that grows with its priority, and workers always pick the queued task with
+ * the earliest deadline. FAST tasks therefore run first, but a SLOW task that
+ * has waited longer than its slack ages ahead of newly arriving FAST tasks.
+ * <p>
+ * Tasks spawned from a worker thread (via ImageBackend.appendTasks) are pushed
+ * onto that worker's own deques, which keeps chained tasks on a warm core.
+ * Tasks submitted from other threads go onto shared injection queues. A
+ * worker that finds neither its own deques nor the shared queues populated
+ * steals from the other workers, so no thread sits idle while work is queued.
+ * <p>
+ * The Android thread priority of a worker is switched to the priority of the
+ * task it is about to run, which keeps the OS-level preference of the old
+ * fast/average/slow pools.
+ * <p>
+ * SLOW tasks, such as JPEG encodes, may run for hundreds of milliseconds, so
+ * fewer of them than there are workers may run at once. That way at least
+ * one worker is always left to pick up FAST and AVERAGE tasks.
+ */
+public class WorkStealingImageTaskScheduler implements ImageTaskScheduler {
+    private static final Log.Tag TAG = new Log.Tag("WorkStealSched");
+
+    private static final int NUM_PRIORITIES = TaskImageContainer.ProcessingPriority.values().length;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final int SLOW = TaskImageContainer.ProcessingPriority.SLOW.ordinal();
+
+    /** Slack added to the submission time of a task, indexed by priority. */
+    private static final long[] DEADLINE_SLACK_NS = {
+            0L, // FAST
+            50L * NANOS_PER_MILLI, // AVERAGE
+            200L * NANOS_PER_MILLI, // SLOW
+    };
+
+    /** Android thread priority used while running a task, indexed by priority. */
+    private static final int[] THREAD_PRIORITY = {
+            Process.THREAD_PRIORITY_DISPLAY, // FAST
+            Process.THREAD_PRIORITY_DEFAULT + Process.THREAD_PRIORITY_LESS_FAVORABLE, // AVERAGE
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE, // SLOW
+    };
+
+    private final Worker[] mWorkers;
+
+    /** Shared queues for tasks submitted from outside of the worker threads. */
+    private final ConcurrentLinkedDeque<ScheduledTask>[] mInjectionQueues;
+
+    /**
+     * One permit per queued task, plus one per worker once shutdown has been
+     * requested.
+     */
+    private final Semaphore mAvailableTasks = new Semaphore(0);
+
+    private final ThreadLocal<Worker> mCurrentWorker = new ThreadLocal<>();
+
+    private final PriorityStatistics[] mStatistics;
+
+    /** The most SLOW tasks allowed to run at the same time. */
+    private final int mMaxRunningSlowTasks;
+
+    private final AtomicInteger mRunningSlowTasks = new AtomicInteger(0);
+
+    /**
+     * Held by workers which wait for a SLOW task to finish, since the only
+     * queued tasks are SLOW ones they may not start yet.
+     */
+    private final Object mSlowTaskLock = new Object();
+
+    /** The number of workers waiting on {@link #mSlowTaskLock}. */
+    private final AtomicInteger mWaitingWorkers = new AtomicInteger(0);
+
+    private volatile boolean mShutdown = false;
+
+    /**
+     * @param numThreads The number of worker threads to start. All but one
+     *            of them may run SLOW tasks.
+     */
+    public WorkStealingImageTaskScheduler(int numThreads) {
+        this(numThreads, Math.max(1, numThreads - 1));
+    }
+
+    /**
+     * @param numThreads The number of worker threads to start.
+     * @param maxRunningSlowTasks The most SLOW tasks that may run at the same
+     *            time. Should be less than numThreads, unless there is only
+     *            one thread.
+     */
+    @SuppressWarnings("unchecked")
+    public WorkStealingImageTaskScheduler(int numThreads, int maxRunningSlowTasks) {
+        if (numThreads <= 0) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+        if (maxRunningSlowTasks <= 0) {
+            throw new IllegalArgumentException("maxRunningSlowTasks must be positive");
+        }
+        mMaxRunningSlowTasks = maxRunningSlowTasks;
+        mInjectionQueues = new ConcurrentLinkedDeque[NUM_PRIORITIES];
+        mStatistics = new PriorityStatistics[NUM_PRIORITIES];
+        for (int i = 0; i < NUM_PRIORITIES; i++) {
+            mInjectionQueues[i] = new ConcurrentLinkedDeque<>();
+            mStatistics[i] = new PriorityStatistics();
+        }
+        mWorkers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            Thread thread = new AndroidPriorityThread(THREAD_PRIORITY[0], worker);
+            thread.setName("ImageBackend-" + worker.mIndex);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task, TaskImageContainer.ProcessingPriority priority) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("Scheduler has been shut down.");
+        }
+        int index = priority.ordinal();
+        ScheduledTask scheduledTask = new ScheduledTask(task, index, System.nanoTime());
+
+        Worker worker = mCurrentWorker.get();
+        if (worker != null) {
+            worker.mLocalQueues[index].offerLast(scheduledTask);
+        } else {
+            mInjectionQueues[index].offerLast(scheduledTask);
+        }
+        mStatistics[index].mQueueDepth.incrementAndGet();
+        // The task must be visible in a queue before its permit is released.
+        mAvailableTasks.release();
+        wakeWaitingWorkers();
+    }
+
+    /**
+     * Wakes the workers waiting to start a SLOW task, so that they look for
+     * a task again.
+     */
+    private void wakeWaitingWorkers() {
+        if (mWaitingWorkers.get() > 0) {
+            synchronized (mSlowTaskLock) {
+                mSlowTaskLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return whether the caller may start a SLOW task, in which case it must
+     *         call {@link #onSlowTaskDone} when it's done, or has not started
+     *         one after all.
+     */
+    private boolean tryStartSlowTask() {
+        while (true) {
+            int running = mRunningSlowTasks.get();
+            if (running >= mMaxRunningSlowTasks) {
+                return false;
+            }
+            if (mRunningSlowTasks.compareAndSet(running, running + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void onSlowTaskDone() {
+        mRunningSlowTasks.decrementAndGet();
+        wakeWaitingWorkers();
+    }
+
+    @Override
+    public void shutdown() {
+        if (mShutdown) {
+            return;
+        }
+        mShutdown = true;
+        // Wake every worker once; each exits when it finds no task to run.
+        mAvailableTasks.release(mWorkers.length);
+    }
+
+    /**
+     * @return The number of tasks of the given priority that are queued but
+     *         not yet running.
+     */
+    public int getQueueDepth(TaskImageContainer.ProcessingPriority priority) {
+        return mStatistics[priority.ordinal()].mQueueDepth.get();
+    }
+
+    /**
+     * @return The average time in milliseconds that tasks of the given
+     *         priority waited in a queue before starting to run.
+     */
+    public float getAverageWaitTimeMs(TaskImageContainer.ProcessingPriority priority) {
+        PriorityStatistics statistics = mStatistics[priority.ordinal()];
+        long started = statistics.mStarted.get();
+        if (started == 0) {
+            return 0.0f;
+        }
+        return statistics.mTotalWaitNs.get() / (float) started / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return The longest time in milliseconds that a task of the given
+     *         priority waited in a queue before starting to run.
+     */
+    public float getMaxWaitTimeMs(TaskImageContainer.ProcessingPriority priority) {
+        return mStatistics[priority.ordinal()].mMaxWaitNs.get() / (float) NANOS_PER_MILLI;
+    }
+
+    /**
+     * @return The number of tasks of the given priority that were run by a
+     *         worker other than the one that queued them.
+     */
+    public long getStolenCount(TaskImageContainer.ProcessingPriority priority) {
+        return mStatistics[priority.ordinal()].mStolen.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("WorkStealingImageTaskScheduler[");
+        builder.append("threads=").append(mWorkers.length);
+        for (TaskImageContainer.ProcessingPriority priority :
+                TaskImageContainer.ProcessingPriority.values()) {
+            PriorityStatistics statistics = mStatistics[priority.ordinal()];
+            builder.append(", ").append(priority)
+                    .append("{depth=").append(statistics.mQueueDepth.get())
+                    .append(", started=").append(statistics.mStarted.get())
+                    .append(", stolen=").append(statistics.mStolen.get())
+                    .append(", avgWaitMs=").append(getAverageWaitTimeMs(priority))
+                    .append(", maxWaitMs=").append(getMaxWaitTimeMs(priority))
+                    .append('}');
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * A task along with the book-keeping needed to order it.
+     */
+    private static class ScheduledTask {
+        public final Runnable task;
+        public final int priority;
+        public final long submitTimeNs;
+        public final long deadlineNs;
+
+        ScheduledTask(Runnable aTask, int aPriority, long aSubmitTimeNs) {
+            task = aTask;
+            priority = aPriority;
+            submitTimeNs = aSubmitTimeNs;
+            deadlineNs = aSubmitTimeNs + DEADLINE_SLACK_NS[aPriority];
+        }
+    }
+
+    /**
+     * Counters for one priority level.
+     */
+    private static class PriorityStatistics {
+        final AtomicInteger mQueueDepth = new AtomicInteger(0);
+        final AtomicLong mStarted = new AtomicLong(0);
+        final AtomicLong mStolen = new AtomicLong(0);
+        final AtomicLong mTotalWaitNs = new AtomicLong(0);
+        final AtomicLong mMaxWaitNs = new AtomicLong(0);
+
+        void recordStart(long waitNs, boolean stolen) {
+            mQueueDepth.decrementAndGet();
+            mStarted.incrementAndGet();
+            mTotalWaitNs.addAndGet(waitNs);
+            if (stolen) {
+                mStolen.incrementAndGet();
+            }
+            long max = mMaxWaitNs.get();
+            while (waitNs > max && !mMaxWaitNs.compareAndSet(max, waitNs)) {
+                max = mMaxWaitNs.get();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        final int mIndex;
+        final ConcurrentLinkedDeque<ScheduledTask>[] mLocalQueues;
+        private int mCurrentThreadPriority = THREAD_PRIORITY[0];
+
+        @SuppressWarnings("unchecked")
+        Worker(int index) {
+            mIndex = index;
+            mLocalQueues = new ConcurrentLinkedDeque[NUM_PRIORITIES];
+            for (int i = 0; i < NUM_PRIORITIES; i++) {
+                mLocalQueues[i] = new ConcurrentLinkedDeque<>();
+            }
+        }
+
+        @Override
+        public void run() {
+            mCurrentWorker.set(this);
+            while (true) {
+                try {
+                    mAvailableTasks.acquire();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Worker interrupted, exiting.");
+                    return;
+                }
+
+                ScheduledTask scheduledTask = findTask();
+                while (scheduledTask == null) {
+                    if (mShutdown && !hasQueuedSlowTask()) {
+                        // Consumed one of the shutdown permits with nothing
+                        // left to run.
+                        return;
+                    }
+                    if (hasQueuedSlowTask()) {
+                        // The queued task may be a SLOW one which can't start
+                        // until another one is done.
+                        try {
+                            scheduledTask = waitForTask();
+                        } catch (InterruptedException e) {
+                            Log.w(TAG, "Worker interrupted, exiting.");
+                            return;
+                        }
+                    } else {
+                        // A permit guarantees a queued task; it is only
+                        // momentarily out of view of this scan.
+                        Thread.yield();
+                        scheduledTask = findTask();
+                    }
+                }
+                runTask(scheduledTask);
+            }
+        }
+
+        /**
+         * Looks for a task again whenever a task is queued or a SLOW task is
+         * done, until one is found.
+         */
+        private ScheduledTask waitForTask() throws InterruptedException {
+            mWaitingWorkers.incrementAndGet();
+            try {
+                synchronized (mSlowTaskLock) {
+                    ScheduledTask scheduledTask = findTask();
+                    while (scheduledTask == null && hasQueuedSlowTask()) {
+                        mSlowTaskLock.wait();
+                        scheduledTask = findTask();
+                    }
+                    return scheduledTask;
+                }
+            } finally {
+                mWaitingWorkers.decrementAndGet();
+            }
+        }
+
+        private boolean hasQueuedSlowTask() {
+            return mStatistics[SLOW].mQueueDepth.get() > 0;
+        }
+
+        private void runTask(ScheduledTask scheduledTask) {
+            int threadPriority = THREAD_PRIORITY[scheduledTask.priority];
+            if (threadPriority != mCurrentThreadPriority) {
+                Process.setThreadPriority(threadPriority);
+                mCurrentThreadPriority = threadPriority;
+            }
+            try {
+                scheduledTask.task.run();
+            } catch (RuntimeException e) {
+                // Mirror a thread pool: one failed task must not take down
+                // the worker.
+                Log.e(TAG, "Image task threw an exception.", e);
+            } finally {
+                if (scheduledTask.priority == SLOW) {
+                    onSlowTaskDone();
+                }
+            }
+        }
+
+        /**
+         * Picks the earliest deadline among the heads of this worker's own
+         * deques and the injection queues, or steals if both are empty. SLOW
+         * tasks are only considered while fewer than the maximum are running.
+         */
+        private ScheduledTask findTask() {
+            boolean includeSlow = tryStartSlowTask();
+            ScheduledTask task = findTask(includeSlow);
+            if (includeSlow && (task == null || task.priority != SLOW)) {
+                onSlowTaskDone();
+            }
+            return task;
+        }
+
+        private ScheduledTask findTask(boolean includeSlow) {
+            int numPriorities = includeSlow ? NUM_PRIORITIES : SLOW;
+            ConcurrentLinkedDeque<ScheduledTask> best = null;
+            long bestDeadline = Long.MAX_VALUE;
+            for (int i = 0; i < numPriorities; i++) {
+                ScheduledTask head = mLocalQueues[i].peekFirst();
+                if (head != null && head.deadlineNs < bestDeadline) {
+                    best = mLocalQueues[i];
+                    bestDeadline = head.deadlineNs;
+                }
+                head = mInjectionQueues[i].peekFirst();
+                if (head != null && head.deadlineNs < bestDeadline) {
+                    best = mInjectionQueues[i];
+                    bestDeadline = head.deadlineNs;
+                }
+            }
+            if (best != null) {
+                ScheduledTask task = best.pollFirst();
+                if (task != null) {
+                    start(task, false);
+                    return task;
+                }
+            }
+            return steal(numPriorities);
+        }
+
+        /**
+         * Takes the earliest-deadline task from the first other worker that
+         * has queued tasks.
+         *
+         * @param numPriorities only tasks of the priorities below this are
+         *            taken.
+         */
+        private ScheduledTask steal(int numPriorities) {
+            for (int offset = 1; offset < mWorkers.length; offset++) {
+                Worker victim = mWorkers[(mIndex + offset) % mWorkers.length];
+                ConcurrentLinkedDeque<ScheduledTask> best = null;
+                long bestDeadline = Long.MAX_VALUE;
+                for (int i = 0; i < numPriorities; i++) {
+                    ScheduledTask head = victim.mLocalQueues[i].peekFirst();
+                    if (head != null && head.deadlineNs < bestDeadline) {
+                        best = victim.mLocalQueues[i];
+                        bestDeadline = head.deadlineNs;
+                    }
+                }
+                if (best != null) {
+                    ScheduledTask task = best.pollFirst();
+                    if (task != null) {
+                        start(task, true);
+                        return task;
+                    }
+                }
+            }
+            // Last chance for anything that raced in behind the first scan.
+            for (int i = 0; i < numPriorities; i++) {
+                ScheduledTask task = mLocalQueues[i].pollFirst();
+                if (task == null) {
+                    task = mInjectionQueues[i].pollFirst();
+                }
+                if (task != null) {
+                    start(task, false);
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        private void start(ScheduledTask task, boolean stolen) {
+            mStatistics[task.priority].recordStart(System.nanoTime() - task.submitTimeNs,
+                    stolen);
+        }
+    }
+}
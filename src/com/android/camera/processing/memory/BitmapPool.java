@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import android.graphics.Bitmap;
+
+import com.android.camera.util.Size;
+
+/**
+ * Resource pool for mutable ARGB_8888 bitmaps, keyed by their dimensions.
+ * Pooled bitmaps keep their previous contents, so callers are expected to
+ * overwrite every pixel.
+ */
+public final class BitmapPool extends SimpleLruResourcePool<Size, Bitmap> {
+    public BitmapPool(int lruSize) {
+        super(lruSize);
+    }
+
+    @Override
+    protected Bitmap create(Size size) {
+        return Bitmap.createBitmap(size.getWidth(), size.getHeight(), Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Lock-free variant of {@link LruPool} with the same semantics and the same
+ * {@link LruPool.Configuration} hooks, for pools that are shared by many
+ * threads of the image pipeline.
+ * <p>
+ * Every pooled value is wrapped in an entry that sits both in a per-key queue
+ * and in a global queue in order of insertion. An entry is owned by whoever
+ * first claims it: {@link #acquire} claims from the per-key queue, eviction
+ * claims from the global queue and pops the head of the per-key queue, so
+ * acquire, add and eviction are constant time and no thread ever blocks
+ * another. Entries that were acquired are left in the
+ * global queue and are dropped lazily, either when they reach its head or by
+ * an occasional sweep.
+ * <p>
+ * Since there is no global lock, {@link #getSize()} may briefly exceed the
+ * maximum size while other threads are adding.
+ */
+@ThreadSafe
+public class ConcurrentLruPool<TKey, TValue> {
+    /**
+     * Acquired entries that may linger in the global queue before a sweep is
+     * forced, in addition to four per live entry.
+     */
+    private static final int MIN_STALE_ENTRIES_BEFORE_SWEEP = 16;
+    private static final int STALE_ENTRIES_PER_LIVE_ENTRY = 4;
+
+    private final ConcurrentMap<TKey, ConcurrentLinkedDeque<Entry<TKey, TValue>>> mValuePool;
+
+    /** All entries, oldest first. May contain entries that are already claimed. */
+    private final ConcurrentLinkedQueue<Entry<TKey, TValue>> mLruQueue;
+
+    private final LruPool.Configuration<TKey, TValue> mConfiguration;
+
+    private final int mMaxSize;
+
+    /** Sum of the sizes of all unclaimed entries. */
+    private final AtomicInteger mSize;
+
+    /** Number of unclaimed entries. */
+    private final AtomicInteger mLiveEntries;
+
+    /** Approximate number of claimed entries still in {@link #mLruQueue}. */
+    private final AtomicInteger mStaleEntries;
+
+    /**
+     * Creates and sets the size of the Lru Pool
+     *
+     * @param maxSize Sets the size of the Lru Pool.
+     */
+    public ConcurrentLruPool(int maxSize) {
+        this(maxSize, new LruPool.Configuration<TKey, TValue>());
+    }
+
+    public ConcurrentLruPool(int maxSize, LruPool.Configuration<TKey, TValue> configuration) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be > 0.");
+
+        mMaxSize = maxSize;
+        mConfiguration = configuration;
+
+        mValuePool = new ConcurrentHashMap<>();
+        mLruQueue = new ConcurrentLinkedQueue<>();
+        mSize = new AtomicInteger(0);
+        mLiveEntries = new AtomicInteger(0);
+        mStaleEntries = new AtomicInteger(0);
+    }
+
+    /**
+     * Acquire a value from the pool, or attempt to create a new one if the create
+     * method is overridden. If an item cannot be retrieved or created, this method
+     * will return null.
+     *
+     * @param key the type of object to retrieve from the pool.
+     * @return a value or null if none exists or can be created.
+     */
+    public final TValue acquire(TKey key) {
+        Preconditions.checkNotNull(key);
+
+        ConcurrentLinkedDeque<Entry<TKey, TValue>> pool = mValuePool.get(key);
+        if (pool != null) {
+            Entry<TKey, TValue> entry;
+            while ((entry = pool.pollFirst()) != null) {
+                // Entries that were evicted meanwhile are simply skipped.
+                if (entry.claim()) {
+                    mSize.addAndGet(-entry.size);
+                    mLiveEntries.decrementAndGet();
+                    mStaleEntries.incrementAndGet();
+                    return entry.take();
+                }
+            }
+        }
+
+        return mConfiguration.create(key);
+    }
+
+    /**
+     * Add a new or previously existing value to the pool. The most recently added
+     * item will be placed at the top of the Lru list, and will trim existing items
+     * off the list, if the list exceeds the maximum size.
+     *
+     * @param key the type of object to add to the pool.
+     * @param value the object to add into the pool.
+     */
+    public final void add(TKey key, TValue value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+
+        Entry<TKey, TValue> entry = new Entry<>(key, value, checkedSizeOf(key, value));
+
+        ConcurrentLinkedDeque<Entry<TKey, TValue>> pool = mValuePool.get(key);
+        if (pool == null) {
+            ConcurrentLinkedDeque<Entry<TKey, TValue>> newPool = new ConcurrentLinkedDeque<>();
+            pool = mValuePool.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        // Account for the entry before it becomes visible, so that a racing
+        // acquire can never drive the size below zero.
+        mSize.addAndGet(entry.size);
+        mLiveEntries.incrementAndGet();
+        pool.addLast(entry);
+        mLruQueue.add(entry);
+
+        trimToSize(mMaxSize);
+        if (mStaleEntries.get() > STALE_ENTRIES_PER_LIVE_ENTRY * mLiveEntries.get()
+                + MIN_STALE_ENTRIES_BEFORE_SWEEP) {
+            sweepStaleEntries();
+        }
+    }
+
+    /**
+     * Remove the oldest entries until the total of remaining entries is at or
+     * below the configured size.
+     *
+     * @param trimToSize the maximum size of the cache before returning. May
+     *                   be -1 to evict even 0-sized elements.
+     */
+    public final void trimToSize(int trimToSize) {
+        while (mSize.get() > trimToSize) {
+            Entry<TKey, TValue> entry = mLruQueue.poll();
+            if (entry == null) {
+                break;
+            }
+
+            if (!entry.claim()) {
+                // Already acquired, this only drops the stale reference.
+                mStaleEntries.decrementAndGet();
+                continue;
+            }
+
+            mSize.addAndGet(-entry.size);
+            mLiveEntries.decrementAndGet();
+
+            // The oldest entry for a key is at the head of its queue, so pop
+            // the head instead of searching for the entry. Only when adds or
+            // acquires race with this is the head a different, live entry,
+            // which goes back; a claimed entry left behind in the queue is
+            // skipped by acquire.
+            ConcurrentLinkedDeque<Entry<TKey, TValue>> pool = mValuePool.get(entry.key);
+            if (pool != null) {
+                Entry<TKey, TValue> head = pool.pollFirst();
+                if (head != null && !head.isClaimed()) {
+                    pool.addFirst(head);
+                }
+            }
+            mConfiguration.entryEvicted(entry.key, entry.take());
+        }
+    }
+
+    /**
+     * For pools that do not override {@link LruPool.Configuration#sizeOf},
+     * this returns the number of items in the pool. For custom sizes, this
+     * returns the sum of the sizes of the entries in this pool.
+     */
+    public final int getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * For pools that do not override {@link LruPool.Configuration#sizeOf},
+     * this returns the maximum number of entries in the pool. For all other
+     * pools, this returns the maximum sum of the sizes of the entries in this
+     * pool.
+     */
+    public final int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Drops acquired entries that are stuck behind older, still pooled
+     * entries in the global queue. A sweep visits at most five times as many
+     * entries as the acquisitions since the last one, which keeps add()
+     * amortized constant time.
+     */
+    private void sweepStaleEntries() {
+        Iterator<Entry<TKey, TValue>> iterator = mLruQueue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isClaimed()) {
+                iterator.remove();
+                mStaleEntries.decrementAndGet();
+            }
+        }
+    }
+
+    private int checkedSizeOf(TKey key, TValue value) {
+        int result = mConfiguration.sizeOf(key, value);
+        Preconditions.checkArgument(result >= 0, "Size was < 0.");
+        return result;
+    }
+
+    private static final class Entry<TKey, TValue> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Entry> CLAIMED =
+                AtomicIntegerFieldUpdater.newUpdater(Entry.class, "mClaimed");
+
+        final TKey key;
+        final int size;
+        private TValue mValue;
+        private volatile int mClaimed;
+
+        Entry(TKey key, TValue value, int size) {
+            this.key = key;
+            this.size = size;
+            mValue = value;
+        }
+
+        /**
+         * @return true for exactly one caller, which then owns the value.
+         */
+        boolean claim() {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+
+        boolean isClaimed() {
+            return mClaimed != 0;
+        }
+
+        /**
+         * Hands the value to the owner and drops this entry's reference to
+         * it, since the entry itself may linger in the global queue.
+         */
+        TValue take() {
+            TValue value = mValue;
+            mValue = null;
+            return value;
+        }
+    }
+}
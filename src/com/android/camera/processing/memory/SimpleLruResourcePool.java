@@ -18,6 +18,8 @@ package com.android.camera.processing.memory;
 
 import com.google.common.base.Preconditions;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
@@ -28,34 +30,50 @@ import javax.annotation.concurrent.ThreadSafe;
  */
 @ThreadSafe
 public abstract class SimpleLruResourcePool<TKey, TValue> implements LruResourcePool<TKey, TValue> {
-    @GuardedBy("mLock")
-    private final LruPool<TKey, TValue> mLruPool;
+    private final ConcurrentLruPool<TKey, TValue> mLruPool;
+
+    /** Number of acquire calls that were served from the pool. */
+    private final AtomicLong mHitCount = new AtomicLong(0);
 
-    private final Object mLock;
+    /** Number of acquire calls that had to create a new value. */
+    private final AtomicLong mMissCount = new AtomicLong(0);
 
     public SimpleLruResourcePool(int lruSize) {
         Preconditions.checkArgument(lruSize > 0);
 
-        mLock = new Object();
-        mLruPool = new LruPool<>(lruSize);
+        mLruPool = new ConcurrentLruPool<>(lruSize);
     }
 
     @Override
     public Resource<TValue> acquire(TKey key) {
-        TValue value;
-        synchronized (mLock) {
-            value = mLruPool.acquire(key);
-        }
+        TValue value = mLruPool.acquire(key);
 
         // We may not reach a point where we have have a value to reuse,
         // create a new one.
         if(value == null) {
+            mMissCount.incrementAndGet();
             value = create(key);
+        } else {
+            mHitCount.incrementAndGet();
         }
 
         return new SynchronizedResource<>(this, key, value);
     }
 
+    /**
+     * @return the number of acquire calls that reused a pooled value.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of acquire calls that had to create a new value.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
     /**
      * Create a new value for a given key.
      */
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Direct ByteBuffer pool that rounds every request up to a size class, so
+ * that requests that differ only slightly (a new crop, a different output
+ * resolution) still share buffers. The integer key is the minimum number of
+ * bytes needed; the capacity of the returned buffer may be larger.
+ * <p>
+ * The pool enforces a memory budget: buffers sitting idle in the pool are
+ * evicted in LRU order so that, where possible, idle plus in-use buffers stay
+ * within the budget. Buffers that are in use are never taken away.
+ */
+@ThreadSafe
+public final class SizeClassByteBufferPool implements LruResourcePool<Integer, ByteBuffer> {
+    /** Growth factor for size classes that are powers of two. */
+    public static final float POWER_OF_TWO_GROWTH = 2.0f;
+
+    /**
+     * Growth factor for size classes that are 1.25x apart, which wastes at
+     * most 20% of a buffer instead of up to 50% for powers of two.
+     */
+    public static final float QUARTER_STEP_GROWTH = 1.25f;
+
+    /** Size classes are page aligned and start at one page. */
+    private static final int SIZE_CLASS_ALIGNMENT = 4 * 1024;
+
+    private static final int MAX_SIZE_CLASS = 1 << 30;
+
+    private final int[] mSizeClasses;
+    private final int mBudgetBytes;
+    private final Object mLock;
+
+    @GuardedBy("mLock")
+    private final LruPool<Integer, ByteBuffer> mLruPool;
+
+    /** Per size class counters, created the first time a class is used. */
+    @GuardedBy("mLock")
+    private final BucketCounters[] mBuckets;
+
+    @GuardedBy("mLock")
+    private long mInUseBytes;
+
+    /**
+     * Creates a pool with size classes that are 1.25x apart.
+     *
+     * @param budgetBytes the maximum number of bytes held by the pool.
+     */
+    public SizeClassByteBufferPool(int budgetBytes) {
+        this(budgetBytes, QUARTER_STEP_GROWTH);
+    }
+
+    /**
+     * @param budgetBytes the maximum number of bytes held by the pool.
+     * @param growthFactor the ratio between consecutive size classes, such as
+     *            {@link #POWER_OF_TWO_GROWTH} or {@link #QUARTER_STEP_GROWTH}.
+     */
+    public SizeClassByteBufferPool(int budgetBytes, float growthFactor) {
+        Preconditions.checkArgument(budgetBytes > 0, "budgetBytes must be > 0.");
+        Preconditions.checkArgument(growthFactor > 1.0f, "growthFactor must be > 1.");
+
+        mBudgetBytes = budgetBytes;
+        mSizeClasses = buildSizeClasses(growthFactor);
+        mBuckets = new BucketCounters[mSizeClasses.length];
+        mLock = new Object();
+        mLruPool = new LruPool<>(budgetBytes, new LruPool.Configuration<Integer, ByteBuffer>() {
+            @Override
+            void entryEvicted(Integer sizeClass, ByteBuffer value) {
+                // Always called from add() or trimToSize(), with mLock held.
+                BucketCounters bucket = mBuckets[sizeClassIndex(sizeClass)];
+                bucket.pooled--;
+                bucket.evictions++;
+            }
+
+            @Override
+            int sizeOf(Integer sizeClass, ByteBuffer value) {
+                return value.capacity();
+            }
+        });
+    }
+
+    @Override
+    public Resource<ByteBuffer> acquire(Integer bytes) {
+        Preconditions.checkNotNull(bytes);
+        Preconditions.checkArgument(bytes >= 0, "bytes must be >= 0.");
+
+        final int index = sizeClassIndex(bytes);
+        final int sizeClass = mSizeClasses[index];
+
+        ByteBuffer buffer;
+        synchronized (mLock) {
+            BucketCounters bucket = mBuckets[index];
+            if (bucket == null) {
+                bucket = new BucketCounters();
+                mBuckets[index] = bucket;
+            }
+
+            buffer = mLruPool.acquire(sizeClass);
+            if (buffer != null) {
+                bucket.pooled--;
+                bucket.hits++;
+            } else {
+                // Make room for the new buffer by dropping idle ones first.
+                mLruPool.trimToSize((int) Math.max(0, mBudgetBytes - mInUseBytes - sizeClass));
+                bucket.allocations++;
+            }
+            bucket.inUse++;
+            mInUseBytes += sizeClass;
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        }
+        return new PooledBuffer(this, index, buffer);
+    }
+
+    /**
+     * @return the size class a request for the given number of bytes is
+     *         rounded up to.
+     */
+    public int getSizeClass(int bytes) {
+        return mSizeClasses[sizeClassIndex(bytes)];
+    }
+
+    /**
+     * @return the maximum number of bytes held by this pool.
+     */
+    public int getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return the number of bytes in buffers that are currently handed out.
+     */
+    public long getInUseBytes() {
+        synchronized (mLock) {
+            return mInUseBytes;
+        }
+    }
+
+    /**
+     * @return the number of bytes in idle buffers kept for reuse.
+     */
+    public int getPooledBytes() {
+        return mLruPool.getSize();
+    }
+
+    /**
+     * Returns a snapshot of the occupancy and allocation counters of every
+     * size class that has been used, from the smallest to the largest.
+     */
+    public List<BucketStats> getBucketStats() {
+        List<BucketStats> stats = new ArrayList<>();
+        synchronized (mLock) {
+            for (int i = 0; i < mBuckets.length; i++) {
+                BucketCounters bucket = mBuckets[i];
+                if (bucket != null) {
+                    stats.add(new BucketStats(mSizeClasses[i], bucket.inUse, bucket.pooled,
+                            bucket.allocations, bucket.hits, bucket.evictions));
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLock) {
+            builder.append("SizeClassByteBufferPool[budget=").append(mBudgetBytes)
+                    .append(", inUse=").append(mInUseBytes)
+                    .append(", pooled=").append(mLruPool.getSize()).append("]");
+        }
+        for (BucketStats stats : getBucketStats()) {
+            builder.append("\n  ").append(stats);
+        }
+        return builder.toString();
+    }
+
+    private void release(int index, ByteBuffer buffer) {
+        // Reset byte buffer location and limits
+        buffer.clear();
+
+        synchronized (mLock) {
+            BucketCounters bucket = mBuckets[index];
+            bucket.inUse--;
+            bucket.pooled++;
+            mInUseBytes -= buffer.capacity();
+            mLruPool.add(mSizeClasses[index], buffer);
+        }
+    }
+
+    private int sizeClassIndex(int bytes) {
+        int index = Arrays.binarySearch(mSizeClasses, bytes);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        Preconditions.checkArgument(index < mSizeClasses.length,
+                "Requested buffer is larger than the largest size class.");
+        return index;
+    }
+
+    private static int[] buildSizeClasses(float growthFactor) {
+        List<Integer> sizeClasses = new ArrayList<>();
+        long sizeClass = SIZE_CLASS_ALIGNMENT;
+        while (sizeClass <= MAX_SIZE_CLASS) {
+            sizeClasses.add((int) sizeClass);
+            long next = (long) Math.ceil(sizeClass * (double) growthFactor);
+            next = (next + SIZE_CLASS_ALIGNMENT - 1) / SIZE_CLASS_ALIGNMENT * SIZE_CLASS_ALIGNMENT;
+            sizeClass = Math.max(next, sizeClass + SIZE_CLASS_ALIGNMENT);
+        }
+
+        int[] result = new int[sizeClasses.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sizeClasses.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Point in time counters for one size class.
+     */
+    public static final class BucketStats {
+        /** Capacity of the buffers in this size class. */
+        public final int sizeClass;
+        /** Number of buffers that are currently handed out. */
+        public final int inUseCount;
+        /** Number of idle buffers kept for reuse. */
+        public final int pooledCount;
+        /** Number of buffers that had to be allocated. */
+        public final long allocationCount;
+        /** Number of requests that were served from the pool. */
+        public final long hitCount;
+        /** Number of idle buffers dropped to stay within the budget. */
+        public final long evictionCount;
+
+        BucketStats(int sizeClass, int inUseCount, int pooledCount, long allocationCount,
+                long hitCount, long evictionCount) {
+            this.sizeClass = sizeClass;
+            this.inUseCount = inUseCount;
+            this.pooledCount = pooledCount;
+            this.allocationCount = allocationCount;
+            this.hitCount = hitCount;
+            this.evictionCount = evictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "sizeClass=" + sizeClass + " inUse=" + inUseCount + " pooled=" + pooledCount
+                    + " allocations=" + allocationCount + " hits=" + hitCount
+                    + " evictions=" + evictionCount;
+        }
+    }
+
+    private static final class BucketCounters {
+        int inUse;
+        int pooled;
+        long allocations;
+        long hits;
+        long evictions;
+    }
+
+    /**
+     * This is a closable resource that returns the underlying buffer to the
+     * pool when the object is closed.
+     */
+    @ThreadSafe
+    private static final class PooledBuffer implements Resource<ByteBuffer> {
+        private final Object mLock;
+        private final SizeClassByteBufferPool mPool;
+        private final int mIndex;
+
+        @GuardedBy("mLock")
+        private ByteBuffer mBuffer;
+
+        public PooledBuffer(SizeClassByteBufferPool pool, int index, ByteBuffer buffer) {
+            mPool = pool;
+            mIndex = index;
+            mBuffer = buffer;
+
+            mLock = new Object();
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer get() {
+            synchronized (mLock) {
+                return mBuffer;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                if (mBuffer != null) {
+                    mPool.release(mIndex, mBuffer);
+                    mBuffer = null;
+                }
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@ import android.graphics.Bitmap;
 import android.location.Location;
 import android.net.Uri;
 
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.stats.CaptureSessionStatsCollector;
 import com.android.camera.util.Size;
@@ -27,6 +28,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -233,6 +236,25 @@ public interface CaptureSession {
     public ListenableFuture<Optional<Uri>> saveAndFinish(byte[] data, int width, int height,
             int orientation, ExifInterface exif);
 
+    /**
+     * Finish the session by saving a JPEG held in a ByteBuffer to disk. The
+     * buffer is written out as is, without being copied to the heap first,
+     * which avoids two full-image copies for pooled direct buffers.
+     *
+     * @param data the JPEG bytes between position and limit. Must not be
+     *            modified until {@code dataRelease} is closed.
+     * @param width the width of the media item, in pixels.
+     * @param height the height of the media item, in pixels.
+     * @param orientation the orientaiton of the media item, in degrees.
+     * @param exif the EXIF information for this media item.
+     * @param dataRelease closed exactly once, as soon as the buffer is no
+     *            longer needed, whether or not saving succeeded.
+     * @return A future that will provide the URI once the item is saved. See
+     *         {@link #saveAndFinish(byte[], int, int, int, ExifInterface)}.
+     */
+    public ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width, int height,
+            int orientation, ExifInterface exif, SafeCloseable dataRelease);
+
     /**
      * Will create and return a {@link StackSaver} for saving out a number of
      * media items to a stack. The name of the stack will be the title of this
@@ -28,6 +28,7 @@ public class CaptureSessionFactoryImpl implements CaptureSessionFactory {
     private final PlaceholderManager mPlaceholderManager;
     private final SessionStorageManager mSessionStorageManager;
     private final StackSaverFactory mStackSaverFactory;
+    private final SessionJournal mJournal;
 
     public CaptureSessionFactoryImpl(MediaSaver mediaSaver, PlaceholderManager placeholderManager,
             SessionStorageManager sessionStorageManager, StackSaverFactory stackSaverFactory) {
@@ -35,6 +36,15 @@ public class CaptureSessionFactoryImpl implements CaptureSessionFactory {
         mPlaceholderManager = placeholderManager;
         mSessionStorageManager = sessionStorageManager;
         mStackSaverFactory = stackSaverFactory;
+        mJournal = new SessionJournal(sessionStorageManager, TEMP_SESSIONS);
+    }
+
+    /**
+     * Saves or cleans up the sessions that were interrupted when the process
+     * was last killed. The file I/O runs on the journal's own thread.
+     */
+    public void recoverInterruptedSessions() {
+        mJournal.recoverInterruptedSessions(mMediaSaver);
     }
 
     @Override
@@ -45,6 +55,6 @@ public class CaptureSessionFactoryImpl implements CaptureSessionFactory {
                 mSessionStorageManager, TEMP_SESSIONS, title);
         return new CaptureSessionImpl(title, sessionStartTime, location, temporarySessionFile,
                 sessionManager, sessionNotifier, mPlaceholderManager, mMediaSaver,
-                mStackSaverFactory.create(title, location));
+                mStackSaverFactory.create(title, location), mJournal);
     }
 }
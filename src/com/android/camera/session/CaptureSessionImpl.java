@@ -23,6 +23,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 
 import com.android.camera.app.MediaSaver;
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.data.FilmstripItemData;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
@@ -35,6 +36,7 @@ import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 
 import javax.annotation.Nonnull;
@@ -69,6 +71,8 @@ public class CaptureSessionImpl implements CaptureSession {
     private final TemporarySessionFile mTempOutputFile;
     /** Saver that is used to store a stack of images. */
     private final StackSaver mStackSaver;
+    /** Records the progress of this session so it can be recovered. */
+    private final SessionJournal mJournal;
     /** A URI of the item being processed. */
     private Uri mUri;
     /** The location this session was created at. Used for media store. */
@@ -103,11 +107,14 @@ public class CaptureSessionImpl implements CaptureSession {
      *            store.
      * @param stackSaver used to save stacks of images that belong to this
      *            session.
+     * @param journal used to record the progress of this session, so that it
+     *            can be recovered if the process is killed.
      */
     /* package */CaptureSessionImpl(String title,
             long sessionStartMillis, Location location, TemporarySessionFile temporarySessionFile,
             CaptureSessionManager captureSessionManager, SessionNotifier sessionNotifier,
-            PlaceholderManager placeholderManager, MediaSaver mediaSaver, StackSaver stackSaver) {
+            PlaceholderManager placeholderManager, MediaSaver mediaSaver, StackSaver stackSaver,
+            SessionJournal journal) {
         mTitle = title;
         mSessionStartMillis = sessionStartMillis;
         mLocation = location;
@@ -117,6 +124,7 @@ public class CaptureSessionImpl implements CaptureSession {
         mPlaceholderManager = placeholderManager;
         mMediaSaver = mediaSaver;
         mStackSaver = stackSaver;
+        mJournal = journal;
         mIsFinished = false;
     }
 
@@ -211,6 +219,7 @@ public class CaptureSessionImpl implements CaptureSession {
         mPlaceHolder = mPlaceholderManager.insertEmptyPlaceholder(mTitle, pictureSize,
                 mSessionStartMillis);
         mUri = mPlaceHolder.outputUri;
+        mJournal.recordStarted(mUri, mTitle, mSessionStartMillis);
         mSessionManager.putSession(mUri, this);
         mSessionNotifier.notifyTaskQueued(mUri);
     }
@@ -231,6 +240,7 @@ public class CaptureSessionImpl implements CaptureSession {
         mPlaceHolder = mPlaceholderManager.insertPlaceholder(mTitle, placeholder,
                 mSessionStartMillis);
         mUri = mPlaceHolder.outputUri;
+        mJournal.recordStarted(mUri, mTitle, mSessionStartMillis);
         mSessionManager.putSession(mUri, this);
         mSessionNotifier.notifyTaskQueued(mUri);
         onCaptureIndicatorUpdate(placeholder, 0);
@@ -252,6 +262,7 @@ public class CaptureSessionImpl implements CaptureSession {
         mPlaceHolder = mPlaceholderManager.insertPlaceholder(mTitle, placeholder,
                 mSessionStartMillis);
         mUri = mPlaceHolder.outputUri;
+        mJournal.recordStarted(mUri, mTitle, mSessionStartMillis);
         mSessionManager.putSession(mUri, this);
         mSessionNotifier.notifyTaskQueued(mUri);
         Optional<Bitmap> placeholderBitmap =
@@ -272,6 +283,8 @@ public class CaptureSessionImpl implements CaptureSession {
         mUri = uri;
         mProgressMessageId = progressMessageId;
         mPlaceHolder = mPlaceholderManager.convertToPlaceholder(uri);
+        // Not journaled: an interrupted session would have to update the
+        // existing item, which the recovery can't do.
 
         mSessionManager.putSession(mUri, this);
         mSessionNotifier.notifyTaskQueued(mUri);
@@ -280,6 +293,7 @@ public class CaptureSessionImpl implements CaptureSession {
     @Override
     public synchronized void cancel() {
         if (isStarted()) {
+            mJournal.recordEnded(mUri);
             mSessionManager.removeSession(mUri);
             mSessionNotifier.notifyTaskCanceled(mUri);
             if (mImageLifecycleListener != null) {
@@ -321,6 +335,7 @@ public class CaptureSessionImpl implements CaptureSession {
             try {
                 mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolder, mLocation,
                         orientation, exif, data, width, height, FilmstripItemData.MIME_TYPE_JPEG);
+                mJournal.recordEnded(mUri);
                 mSessionNotifier.notifyTaskDone(mUri);
                 futureResult.set(Optional.fromNullable(mUri));
 
@@ -339,6 +354,56 @@ public class CaptureSessionImpl implements CaptureSession {
         return futureResult;
     }
 
+    @Override
+    public synchronized ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width,
+            int height, int orientation, ExifInterface exif, final SafeCloseable dataRelease) {
+        final SettableFuture<Optional<Uri>> futureResult = SettableFuture.create();
+
+        if (mImageLifecycleListener != null) {
+            mImageLifecycleListener.onProcessingComplete();
+        }
+
+        mIsFinished = true;
+        if (mPlaceHolder == null) {
+
+            mMediaSaver.addImage(
+                    data, mTitle, mSessionStartMillis, mLocation, width, height,
+                    orientation, exif, new MediaSaver.OnMediaSavedListener() {
+                        @Override
+                        public void onMediaSaved(Uri uri) {
+                            dataRelease.close();
+                            futureResult.set(Optional.fromNullable(uri));
+
+                            if (mImageLifecycleListener != null) {
+                                mImageLifecycleListener.onCapturePersisted();
+                            }
+                        }
+                    });
+        } else {
+            try {
+                mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolder, mLocation,
+                        orientation, exif, data, width, height, FilmstripItemData.MIME_TYPE_JPEG);
+                mJournal.recordEnded(mUri);
+                dataRelease.close();
+                mSessionNotifier.notifyTaskDone(mUri);
+                futureResult.set(Optional.fromNullable(mUri));
+
+                if (mImageLifecycleListener != null) {
+                    mImageLifecycleListener.onCapturePersisted();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write file", e);
+                dataRelease.close();
+                if (mImageLifecycleListener != null) {
+                    mImageLifecycleListener.onCaptureFailed();
+                }
+                finishWithFailure(-1, true);
+                futureResult.setException(e);
+            }
+        }
+        return futureResult;
+    }
+
     @Override
     public StackSaver getStackSaver() {
         return mStackSaver;
@@ -357,6 +422,9 @@ public class CaptureSessionImpl implements CaptureSession {
             public void run() {
                 byte[] jpegDataTemp;
                 if (mTempOutputFile.isUsable()) {
+                    // From here on, the output can be saved even if the
+                    // process is killed.
+                    mJournal.recordSavePending(mUri, mTempOutputFile.getFile());
                     try {
                         jpegDataTemp = FileUtil.readFileToByteArray(mTempOutputFile.getFile());
                     } catch (IOException e) {
@@ -433,6 +501,7 @@ public class CaptureSessionImpl implements CaptureSession {
                     "Cannot call finish without calling startSession first.");
         }
         mProgressMessageId = failureMessageId;
+        mJournal.recordEnded(mUri);
         mSessionManager.putErrorMessage(mUri, failureMessageId);
         mSessionNotifier.notifyTaskFailed(mUri, failureMessageId, removeFromFilmstrip);
     }
@@ -33,6 +33,7 @@ import com.android.camera.util.Size;
 import com.google.common.base.Optional;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Handles placeholders in filmstrip that show up temporarily while a final
@@ -141,6 +142,30 @@ public class PlaceholderManager {
         return resultUri;
     }
 
+    /**
+     * This converts the placeholder in to a real media item, writing the image
+     * straight from a ByteBuffer.
+     *
+     * @param placeholder the session that is being finished.
+     * @param location the location of the image
+     * @param orientation the orientation of the image
+     * @param exif the exif of the image
+     * @param jpeg the bytes of the image between position and limit
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param mimeType the mime type of the image
+     * @return The content URI of the new media item.
+     */
+    public Uri finishPlaceholder(Placeholder placeholder, Location location, int orientation,
+            ExifInterface exif, ByteBuffer jpeg, int width, int height, String mimeType)
+            throws IOException {
+        Uri resultUri = Storage.updateImage(placeholder.outputUri, mContext.getContentResolver(),
+                placeholder.outputTitle, placeholder.time, location, orientation, exif, jpeg, width,
+                height, mimeType);
+        CameraUtil.broadcastNewPicture(mContext, resultUri);
+        return resultUri;
+    }
+
     /**
      * This changes the temporary placeholder jpeg without writing it to the media store
      *
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.session;
+
+import android.net.Uri;
+import android.os.Process;
+
+import com.android.camera.Exif;
+import com.android.camera.app.MediaSaver;
+import com.android.camera.async.AndroidPriorityThread;
+import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.util.FileUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * An append-only log of the state transitions of capture sessions, kept next
+ * to their temporary files, so that sessions interrupted by the process being
+ * killed can be dealt with on the next start.
+ * <p>
+ * Each record is a type byte followed by the session URI and the fields of
+ * that type. A record cut short by a kill is ignored when reading. The file
+ * is rewritten from scratch when the first record is written, after a write
+ * failed and whenever no session is in progress, so it only ever holds the
+ * records of the sessions in flight.
+ * <p>
+ * On start, {@link #recoverInterruptedSessions(MediaSaver)} saves the output
+ * of every session which was killed after its output had been completely
+ * written to its temporary file, and deletes the temporary files of the
+ * others right away instead of leaving them for the expiry clean-up. The
+ * sessions being saved count as in flight until their save is done.
+ * <p>
+ * All reads and writes of the journal run in order on a single background
+ * thread, so the capture path only ever enqueues a record.
+ */
+public class SessionJournal {
+    private static final Log.Tag TAG = new Log.Tag("SessionJournal");
+
+    private static final String JOURNAL_FILE_NAME = "session_journal";
+
+    /** A session has started: uri, title, start time. */
+    private static final byte RECORD_STARTED = 1;
+    /** A session's final output is in its temporary file: uri, path. */
+    private static final byte RECORD_SAVE_PENDING = 2;
+    /** A session has been finished, has failed or was canceled: uri. */
+    private static final byte RECORD_ENDED = 3;
+
+    /**
+     * The journaled state of a session which is in progress, or was when the
+     * journal was last written.
+     */
+    private static class SessionEntry {
+        public final String title;
+        public final long startMillis;
+        /** The complete output of the session, if it is being saved. */
+        @Nullable
+        public File pendingFile;
+
+        public SessionEntry(String title, long startMillis) {
+            this.title = title;
+            this.startMillis = startMillis;
+        }
+    }
+
+    private final SessionStorageManager mSessionStorageManager;
+    private final String mSessionDirectory;
+
+    /** Runs all journal I/O, in order. The fields below are only used there. */
+    private final Executor mExecutor;
+
+    private File mJournalFile;
+
+    private DataOutputStream mOutput;
+
+    /**
+     * Whether the journal file has to be rewritten from {@link #mSessions}
+     * before appending, since it may end in a partial record.
+     */
+    private boolean mNeedsRewrite = true;
+
+    /** The sessions in progress, by URI. */
+    private final Map<String, SessionEntry> mSessions = new LinkedHashMap<>();
+
+    /**
+     * The sessions the previous process left unfinished, which are yet to be
+     * recovered, or null if the journal it left hasn't been read yet.
+     */
+    private Map<String, SessionEntry> mInterruptedSessions;
+
+    /**
+     * @param sessionStorageManager provides the session directory.
+     * @param sessionDirectory the sub-directory the temporary files of the
+     *            journaled sessions are in, which is also where the journal
+     *            is kept.
+     */
+    public SessionJournal(SessionStorageManager sessionStorageManager, String sessionDirectory) {
+        this(sessionStorageManager, sessionDirectory,
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new AndroidPriorityThread(
+                                Process.THREAD_PRIORITY_BACKGROUND, runnable);
+                        thread.setName("SessionJournal");
+                        return thread;
+                    }
+                }));
+    }
+
+    /**
+     * @param executor runs all journal I/O. Must run tasks one at a time, in
+     *            the order they were submitted.
+     */
+    public SessionJournal(SessionStorageManager sessionStorageManager, String sessionDirectory,
+            Executor executor) {
+        mSessionStorageManager = sessionStorageManager;
+        mSessionDirectory = sessionDirectory;
+        mExecutor = executor;
+    }
+
+    /**
+     * Records that a session has started and its placeholder was added.
+     * Sessions which turned an existing item into a placeholder must not be
+     * recorded: they can't be recovered, since the media saver can only add
+     * new items, which would duplicate the existing one.
+     */
+    public void recordStarted(Uri sessionUri, final String title, final long startMillis) {
+        final String uri = sessionUri.toString();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SessionEntry entry = new SessionEntry(title, startMillis);
+                mSessions.put(uri, entry);
+                try {
+                    writeStarted(getOutput(), uri, entry);
+                    mOutput.flush();
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records that the final output of a session has been written to the
+     * given file and is about to be saved.
+     */
+    public void recordSavePending(Uri sessionUri, final File file) {
+        final String uri = sessionUri.toString();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SessionEntry entry = mSessions.get(uri);
+                if (entry == null) {
+                    return;
+                }
+                entry.pendingFile = file;
+                try {
+                    writeSavePending(getOutput(), uri, entry);
+                    mOutput.flush();
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records that a session is over, whether it was finished, has failed or
+     * was canceled.
+     */
+    public void recordEnded(Uri sessionUri) {
+        recordEnded(sessionUri.toString());
+    }
+
+    private void recordEnded(final String uri) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mSessions.remove(uri) == null) {
+                    return;
+                }
+                try {
+                    if (mSessions.isEmpty()) {
+                        // Nothing left worth keeping.
+                        mNeedsRewrite = true;
+                        getOutput();
+                        return;
+                    }
+                    DataOutputStream output = getOutput();
+                    output.writeByte(RECORD_ENDED);
+                    output.writeUTF(uri);
+                    output.flush();
+                } catch (IOException e) {
+                    onWriteFailed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the journal left by the previous process and brings the sessions
+     * it was in the middle of to an end. Sessions whose output was about to
+     * be saved are saved with the given media saver, the temporary files of
+     * all others are deleted. The work is done on the journal's thread.
+     */
+    public void recoverInterruptedSessions(final MediaSaver mediaSaver) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recoverInterruptedSessionsNow(mediaSaver);
+            }
+        });
+    }
+
+    private void recoverInterruptedSessionsNow(MediaSaver mediaSaver) {
+        File sessionDirectory;
+        try {
+            sessionDirectory = mSessionStorageManager.getSessionDirectory(mSessionDirectory);
+            getOutput();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open session journal", e);
+            return;
+        }
+        Map<String, SessionEntry> interruptedSessions = mInterruptedSessions;
+        mInterruptedSessions = new LinkedHashMap<>();
+
+        for (Map.Entry<String, SessionEntry> interrupted : interruptedSessions.entrySet()) {
+            String uri = interrupted.getKey();
+            SessionEntry session = interrupted.getValue();
+            final File tempDirectory = new File(sessionDirectory, session.title);
+            if (session.pendingFile == null || !recoverPendingSave(uri, session, mediaSaver,
+                    tempDirectory)) {
+                Log.i(TAG, "Discarding interrupted session " + session.title);
+                FileUtil.deleteDirectoryRecursively(tempDirectory);
+                if (session.pendingFile != null) {
+                    recordEnded(uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the output of a session which was interrupted while saving it.
+     * The session stays in the journal until the save is done, so it is
+     * recovered again if the process is killed before that.
+     *
+     * @return whether the output is being saved.
+     */
+    private boolean recoverPendingSave(final String sessionUri, SessionEntry session,
+            MediaSaver mediaSaver, final File tempDirectory) {
+        byte[] jpeg;
+        try {
+            jpeg = FileUtil.readFileToByteArray(session.pendingFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read output of " + session.title, e);
+            return false;
+        }
+        ExifInterface exif = new ExifInterface();
+        try {
+            exif.readExif(jpeg);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read exif", e);
+            exif = null;
+        }
+
+        Log.i(TAG, "Saving interrupted session " + session.title);
+        int orientation = (exif == null) ? 0 : Exif.getOrientation(exif);
+        mediaSaver.addImage(jpeg, session.title, session.startMillis, null, orientation, exif,
+                new MediaSaver.OnMediaSavedListener() {
+                    @Override
+                    public void onMediaSaved(Uri uri) {
+                        if (uri != null) {
+                            FileUtil.deleteDirectoryRecursively(tempDirectory);
+                        }
+                        recordEnded(sessionUri);
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * @return the sessions which were started but didn't end, by URI, in the
+     *         order they were started.
+     */
+    private static Map<String, SessionEntry> read(File journalFile) throws IOException {
+        Map<String, SessionEntry> sessions = new LinkedHashMap<>();
+        if (!journalFile.exists()) {
+            return sessions;
+        }
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            while (true) {
+                byte type = input.readByte();
+                String sessionUri = input.readUTF();
+                switch (type) {
+                    case RECORD_STARTED:
+                        String title = input.readUTF();
+                        long startMillis = input.readLong();
+                        sessions.put(sessionUri, new SessionEntry(title, startMillis));
+                        break;
+                    case RECORD_SAVE_PENDING:
+                        String path = input.readUTF();
+                        SessionEntry session = sessions.get(sessionUri);
+                        if (session != null) {
+                            session.pendingFile = new File(path);
+                        }
+                        break;
+                    case RECORD_ENDED:
+                        sessions.remove(sessionUri);
+                        break;
+                    default:
+                        Log.w(TAG, "Unknown journal record: " + type);
+                        return sessions;
+                }
+            }
+        } catch (EOFException e) {
+            // The end of the journal, or a record cut short.
+        } finally {
+            input.close();
+        }
+        return sessions;
+    }
+
+    private static void writeStarted(DataOutputStream output, String sessionUri,
+            SessionEntry entry) throws IOException {
+        output.writeByte(RECORD_STARTED);
+        output.writeUTF(sessionUri);
+        output.writeUTF(entry.title);
+        output.writeLong(entry.startMillis);
+    }
+
+    private static void writeSavePending(DataOutputStream output, String sessionUri,
+            SessionEntry entry) throws IOException {
+        output.writeByte(RECORD_SAVE_PENDING);
+        output.writeUTF(sessionUri);
+        output.writeUTF(entry.pendingFile.getAbsolutePath());
+    }
+
+    private File getJournalFile() throws IOException {
+        if (mJournalFile == null) {
+            mJournalFile = new File(mSessionStorageManager.getSessionDirectory(mSessionDirectory),
+                    JOURNAL_FILE_NAME);
+        }
+        return mJournalFile;
+    }
+
+    /**
+     * @return the stream to append records to. If needed, the journal is
+     *         first rewritten to hold just the sessions in progress.
+     */
+    private DataOutputStream getOutput() throws IOException {
+        if (mInterruptedSessions == null) {
+            // Whatever the previous process left has to be read before the
+            // journal is rewritten for the first time.
+            try {
+                mInterruptedSessions = read(getJournalFile());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read session journal", e);
+                mInterruptedSessions = new LinkedHashMap<>();
+            }
+            // Sessions whose output is to be saved stay in the journal until
+            // the save is done, in case the process is killed again.
+            for (Map.Entry<String, SessionEntry> session : mInterruptedSessions.entrySet()) {
+                if (session.getValue().pendingFile != null) {
+                    mSessions.put(session.getKey(), session.getValue());
+                }
+            }
+        }
+        if (mNeedsRewrite) {
+            closeOutput();
+            // Not appending truncates the file.
+            mOutput = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(getJournalFile(), false)));
+            for (Map.Entry<String, SessionEntry> session : mSessions.entrySet()) {
+                writeStarted(mOutput, session.getKey(), session.getValue());
+                if (session.getValue().pendingFile != null) {
+                    writeSavePending(mOutput, session.getKey(), session.getValue());
+                }
+            }
+            mOutput.flush();
+            mNeedsRewrite = false;
+        } else if (mOutput == null) {
+            mOutput = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(getJournalFile(), true)));
+        }
+        return mOutput;
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close session journal", e);
+            }
+            mOutput = null;
+        }
+    }
+
+    /**
+     * The journal may now end in a partial record, so it is rewritten before
+     * the next one is appended.
+     */
+    private void onWriteFailed(IOException e) {
+        Log.e(TAG, "Could not write to session journal", e);
+        closeOutput();
+        mNeedsRewrite = true;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.session;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Keeps track of the in-memory state of capture sessions by their session
+ * URI: the size and version of their placeholder, the placeholder bitmap and
+ * the content URI of the finished item.
+ * <p>
+ * All state of a session is kept in one record, indexed both by session URI
+ * and, once the session is finished, by content URI, so lookups in either
+ * direction are a single hash lookup and never take a lock. Updates are
+ * serialized. Placeholder bitmaps are kept in an {@link LruCache} bounded by
+ * their size in bytes, so they may be evicted independently of the rest of
+ * the record; its hit, miss and eviction counts are exposed for logging.
+ * <p>
+ * This class is thread-safe.
+ */
+public class SessionUriRegistry {
+    /** The state of a single session. */
+    private static class SessionRecord {
+        public final Uri sessionUri;
+        /** The size of the placeholder, or null if there is none. */
+        public volatile Point placeholderSize;
+        /** Incremented each time the placeholder is replaced, or -1. */
+        public volatile int placeholderVersion = -1;
+        /** The URI of the finished media item, or null. */
+        public volatile Uri contentUri;
+
+        public SessionRecord(Uri sessionUri) {
+            this.sessionUri = sessionUri;
+        }
+    }
+
+    private final Object mLock = new Object();
+
+    private final ConcurrentHashMap<Uri, SessionRecord> mSessionUris = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Uri, SessionRecord> mContentUris = new ConcurrentHashMap<>();
+
+    /** Placeholder bitmaps by session URI. LruCache is thread-safe. */
+    private final LruCache<Uri, Bitmap> mPlaceholders;
+
+    /**
+     * @param maxPlaceholderBytes the number of bytes the placeholder bitmaps
+     *            of all sessions may take up.
+     */
+    public SessionUriRegistry(int maxPlaceholderBytes) {
+        mPlaceholders = new LruCache<Uri, Bitmap>(maxPlaceholderBytes) {
+            @Override
+            protected int sizeOf(Uri key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Adds or replaces the placeholder bitmap of a session.
+     */
+    public void putPlaceholder(Uri sessionUri, Bitmap placeholder) {
+        synchronized (mLock) {
+            SessionRecord record = getOrCreateRecord(sessionUri);
+            record.placeholderSize = new Point(placeholder.getWidth(), placeholder.getHeight());
+            mPlaceholders.put(sessionUri, placeholder);
+            record.placeholderVersion++;
+        }
+    }
+
+    /**
+     * Adds or replaces the placeholder of a session with one which only has a
+     * size and no bitmap.
+     */
+    public void putEmptyPlaceholder(Uri sessionUri, Point size) {
+        synchronized (mLock) {
+            SessionRecord record = getOrCreateRecord(sessionUri);
+            record.placeholderSize = size;
+            mPlaceholders.remove(sessionUri);
+            record.placeholderVersion++;
+        }
+    }
+
+    /**
+     * Removes the placeholder of a session. The mapping to its content URI is
+     * kept.
+     */
+    public void removePlaceholder(Uri sessionUri) {
+        synchronized (mLock) {
+            mPlaceholders.remove(sessionUri);
+            SessionRecord record = mSessionUris.get(sessionUri);
+            if (record == null) {
+                return;
+            }
+            record.placeholderSize = null;
+            record.placeholderVersion = -1;
+            if (record.contentUri == null) {
+                mSessionUris.remove(sessionUri);
+            }
+        }
+    }
+
+    /**
+     * Records the content URI of the item a session was finished into.
+     */
+    public void putContentUri(Uri sessionUri, Uri contentUri) {
+        synchronized (mLock) {
+            SessionRecord record = getOrCreateRecord(sessionUri);
+            if (record.contentUri != null) {
+                mContentUris.remove(record.contentUri);
+            }
+            record.contentUri = contentUri;
+            mContentUris.put(contentUri, record);
+        }
+    }
+
+    /**
+     * @return the placeholder bitmap of the session, or null if it has none
+     *         or it was evicted.
+     */
+    @Nullable
+    public Bitmap getPlaceholder(Uri sessionUri) {
+        return mPlaceholders.get(sessionUri);
+    }
+
+    /**
+     * @return the size of the placeholder of the session, or null if it has
+     *         none.
+     */
+    @Nullable
+    public Point getPlaceholderSize(Uri sessionUri) {
+        SessionRecord record = mSessionUris.get(sessionUri);
+        return record == null ? null : record.placeholderSize;
+    }
+
+    /**
+     * @return the number of times the placeholder of the session was replaced,
+     *         or -1 if it has none.
+     */
+    public int getPlaceholderVersion(Uri sessionUri) {
+        SessionRecord record = mSessionUris.get(sessionUri);
+        return record == null ? -1 : record.placeholderVersion;
+    }
+
+    /**
+     * @return the content URI the session was finished into, or null.
+     */
+    @Nullable
+    public Uri getContentUri(Uri sessionUri) {
+        SessionRecord record = mSessionUris.get(sessionUri);
+        return record == null ? null : record.contentUri;
+    }
+
+    /**
+     * @return the URI of the session the content was created by, or null.
+     */
+    @Nullable
+    public Uri getSessionUri(Uri contentUri) {
+        SessionRecord record = mContentUris.get(contentUri);
+        return record == null ? null : record.sessionUri;
+    }
+
+    /**
+     * Forgets all sessions.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mSessionUris.clear();
+            mContentUris.clear();
+            mPlaceholders.evictAll();
+        }
+    }
+
+    /** @return the number of bytes taken up by placeholder bitmaps. */
+    public int getPlaceholderBytes() {
+        return mPlaceholders.size();
+    }
+
+    /** @return the number of placeholder lookups that found a bitmap. */
+    public int getPlaceholderHitCount() {
+        return mPlaceholders.hitCount();
+    }
+
+    /** @return the number of placeholder lookups that found no bitmap. */
+    public int getPlaceholderMissCount() {
+        return mPlaceholders.missCount();
+    }
+
+    /** @return the number of placeholder bitmaps evicted to stay in budget. */
+    public int getPlaceholderEvictionCount() {
+        return mPlaceholders.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionUriRegistry[sessions=" + mSessionUris.size()
+                + ", finished=" + mContentUris.size()
+                + ", placeholders=" + mPlaceholders + "]";
+    }
+
+    @GuardedBy("mLock")
+    private SessionRecord getOrCreateRecord(Uri sessionUri) {
+        SessionRecord record = mSessionUris.get(sessionUri);
+        if (record == null) {
+            record = new SessionRecord(sessionUri);
+            mSessionUris.put(sessionUri, record);
+        }
+        return record;
+    }
+}
@@ -131,6 +131,74 @@ public class JpegUtilNative {
                 plane.getRowStride(), bitmap, rot90);
     }
 
+    /**
+     * Converts a subsampled, cropped region of a YUV_420_888 image to packed
+     * un-premultiplied ARGB_8888 in a single pass, optionally masking it to an
+     * inscribed circle with feathered edges.
+     * <p>
+     * The region is in pixels of the subsampled image, as computed by
+     * TaskConvertImageToRGBPreview, and the output is bit-exact with the Java
+     * conversion in that class. Pixels of the output outside of the region are
+     * cleared to 0.
+     *
+     * @param subsample width/height subsample factor
+     * @param inputHorizontalOffset horizontal offset of the crop in input pixels
+     * @param inputVerticalOffset vertical offset of the crop in input pixels
+     * @param xMin first column of the region to convert
+     * @param xMax end (exclusive) column of the region to convert
+     * @param yMin first row of the region to convert
+     * @param yMax end (exclusive) row of the region to convert
+     * @param outputPixelStride the number of pixels per output row
+     * @param circular whether to apply the circular mask
+     * @param centerX horizontal center of the circular mask
+     * @param centerY vertical center of the circular mask
+     * @param radius radius of the circular mask
+     * @param outArray the output pixels
+     * @param outLength the number of output pixels
+     * @return 0 on success, -1 if the region does not fit the planes or output
+     */
+    private static native int convertYuv420ToArgbNative(
+            Object yBuf, int yPStride, int yRStride,
+            Object uBuf, int uPStride, int uRStride,
+            Object vBuf, int vPStride, int vRStride,
+            int subsample, int inputHorizontalOffset, int inputVerticalOffset,
+            int xMin, int xMax, int yMin, int yMax, int outputPixelStride,
+            boolean circular, int centerX, int centerY, int radius,
+            int[] outArray, int outLength);
+
+    /**
+     * @see JpegUtilNative#convertYuv420ToArgbNative(Object, int, int, Object,
+     *      int, int, Object, int, int, int, int, int, int, int, int, int, int,
+     *      boolean, int, int, int, int[], int)
+     * @return whether the conversion succeeded. On failure, the caller should
+     *         fall back to the Java conversion.
+     */
+    public static boolean convertYuv420ToArgb(ImageProxy img,
+            int subsample, int inputHorizontalOffset, int inputVerticalOffset,
+            int xMin, int xMax, int yMin, int yMax, int outputPixelStride,
+            boolean circular, int centerX, int centerY, int radius,
+            int[] outArray, int outLength) {
+        final List<ImageProxy.Plane> planeList = img.getPlanes();
+        if (img.getFormat() != ImageFormat.YUV_420_888 || planeList.size() != 3) {
+            return false;
+        }
+        ImageProxy.Plane planeY = planeList.get(0);
+        ImageProxy.Plane planeU = planeList.get(1);
+        ImageProxy.Plane planeV = planeList.get(2);
+        if (!planeY.getBuffer().isDirect() || !planeU.getBuffer().isDirect()
+                || !planeV.getBuffer().isDirect()) {
+            return false;
+        }
+        return convertYuv420ToArgbNative(
+                planeY.getBuffer(), planeY.getPixelStride(), planeY.getRowStride(),
+                planeU.getBuffer(), planeU.getPixelStride(), planeU.getRowStride(),
+                planeV.getBuffer(), planeV.getPixelStride(), planeV.getRowStride(),
+                subsample, inputHorizontalOffset, inputVerticalOffset,
+                xMin, xMax, yMin, yMax, outputPixelStride,
+                circular, centerX, centerY, radius,
+                outArray, outLength) == 0;
+    }
+
     /**
      * @see JpegUtilNative#compressJpegFromYUV420pNative(int, int, Object, int,
      *      int, Object, int, int, Object, int, int, Object, int, int, int, int,
@@ -0,0 +1,712 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.os.Handler;
+import android.util.Pair;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer.PinStateListener;
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-capacity ring of timestamp-keyed elements with the same semantics
+ * as {@link ConcurrentSharedRingBuffer}, but without locks or per-element
+ * allocations on the swap and pin paths.
+ * <p>
+ * Each slot has a key and a state word that packs a generation number with
+ * either a pin count or one of the transient states used while a writer owns
+ * the slot. Pins, releases and swaps are compare-and-set operations on that
+ * word; the generation is bumped every time the slot changes hands, so a
+ * reader that matched a key can never pin an element that was swapped in
+ * after it looked. Writers that race to insert the same key settle on one
+ * slot, the other writer then updates the element in that slot, just like
+ * {@link SwapTask#update} is used for the second of an image and its
+ * metadata.
+ * <p>
+ * The capacity is a handful of frames, so lookups scan the slots, which is
+ * cheaper than maintaining a sorted index under concurrent writers.
+ * <p>
+ * Only {@link #close} may block, to wait for pinned elements to be released
+ * and for running swaps to finish.
+ */
+public class TimestampRingBuffer<E> {
+    /** The slot holds no element. */
+    private static final int FREE = -1;
+    /** A writer owns the slot and is checking that its key is unique. */
+    private static final int CLAIMED = -2;
+    /** A writer owns the slot and its key, and is swapping the element. */
+    private static final int COMMITTED = -3;
+    /** Another writer with the same key won while this slot was CLAIMED. */
+    private static final int ABORTED = -4;
+
+    /**
+     * Set on a filled slot while {@link SwapTask#update} runs, which keeps
+     * the element from being swapped out. It does not prevent pinning.
+     */
+    private static final int UPDATING = 1 << 30;
+    private static final int PIN_MASK = UPDATING - 1;
+
+    private final int mCapacity;
+
+    /** Per slot, the generation in the upper and the state in the lower half. */
+    private final AtomicLongArray mStates;
+    private final AtomicLongArray mKeys;
+    /** Written only by the owner of a slot, published by its state. */
+    private final Object[] mElements;
+
+    /**
+     * Number of additional elements that may be pinned. Starts at -1, since
+     * one unpinned element must always be available to swap out.
+     */
+    private final AtomicInteger mPinPermits = new AtomicInteger(-1);
+
+    /** Number of {@link #swapLeast} calls in progress. */
+    private final AtomicInteger mActiveSwaps = new AtomicInteger(0);
+
+    private volatile boolean mClosed = false;
+
+    /** {@link #close} waits on this for pins and swaps to drain. */
+    private final Object mCloseLock = new Object();
+
+    private volatile ListenerRegistration mListener = null;
+
+    private static final class ListenerRegistration {
+        final Handler handler;
+        final PinStateListener listener;
+
+        ListenerRegistration(Handler handler, PinStateListener listener) {
+            this.handler = handler;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Constructs a new ring buffer with the specified capacity.
+     *
+     * @param capacity the maximum number of elements to store.
+     */
+    public TimestampRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+
+        mCapacity = capacity;
+        mStates = new AtomicLongArray(capacity);
+        mKeys = new AtomicLongArray(capacity);
+        mElements = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mStates.set(i, pack(0, FREE));
+        }
+    }
+
+    /**
+     * Sets or replaces the listener.
+     *
+     * @param handler The handler on which to invoke the listener.
+     * @param listener The listener to be called whenever the ability to pin an
+     *            element changes.
+     */
+    public void setListener(Handler handler, PinStateListener listener) {
+        mListener = new ListenerRegistration(handler, listener);
+    }
+
+    /**
+     * Places a new element in the ring buffer, removing the least (by key)
+     * non-pinned element if necessary. See
+     * {@link ConcurrentSharedRingBuffer#swapLeast}.
+     *
+     * @param newKey the key with which to store the swapped-in element.
+     * @param swapper the callback used to perform the swap.
+     * @return true if the swap was successful and the new element was saved to
+     *         the buffer, false if the swap was not possible and the element
+     *         was not saved to the buffer.
+     */
+    public boolean swapLeast(long newKey, SwapTask<E> swapper) {
+        mActiveSwaps.incrementAndGet();
+        try {
+            if (mClosed) {
+                return false;
+            }
+
+            while (true) {
+                int existing = findSlot(newKey, true);
+                if (existing >= 0) {
+                    if (tryUpdate(existing, newKey, swapper)) {
+                        return true;
+                    }
+                    // The slot is still being swapped in by another writer,
+                    // or changed meanwhile.
+                    Thread.yield();
+                    continue;
+                }
+
+                long claimed = claimSlot(newKey, swapper);
+                if (claimed < 0) {
+                    // Every element is pinned.
+                    return false;
+                }
+                int slot = (int) (claimed >>> 32);
+                long ownState = pack((int) claimed, CLAIMED);
+
+                @SuppressWarnings("unchecked")
+                E oldElement = (E) mElements[slot];
+                long oldKey = mKeys.get(slot);
+                mKeys.set(slot, newKey);
+
+                if (!commitKey(slot, ownState, newKey)) {
+                    // Another writer is inserting the same key. Put the slot
+                    // back untouched and update that writer's element.
+                    mKeys.set(slot, oldKey);
+                    mStates.set(slot, pack(generation(ownState) + 1,
+                            oldElement == null ? FREE : 0));
+                    continue;
+                }
+
+                E newElement = oldElement;
+                try {
+                    newElement = (oldElement == null) ? swapper.create()
+                            : swapper.swap(oldElement);
+                } finally {
+                    mElements[slot] = newElement;
+                    mStates.set(slot, pack(generation(ownState) + 1,
+                            newElement == null ? FREE : 0));
+                }
+
+                if (oldElement == null && newElement != null) {
+                    // A new element was added, allow pinning another one.
+                    if (mPinPermits.incrementAndGet() == 1) {
+                        notifyPinStateChange();
+                    }
+                }
+                return true;
+            }
+        } finally {
+            if (mActiveSwaps.decrementAndGet() == 0 && mClosed) {
+                signalClose();
+            }
+        }
+    }
+
+    /**
+     * Attempts to pin the element with the given key and return it. <br>
+     * Note that, if a non-null pair is returned, the caller <em>must</em> call
+     * {@link #release} with the key.
+     *
+     * @return the key and object of the pinned element, if one could be pinned,
+     *         or null.
+     */
+    public Pair<Long, E> tryPin(long key) {
+        if (mClosed) {
+            return null;
+        }
+
+        int slot = findSlot(key, false);
+        if (slot < 0) {
+            return null;
+        }
+
+        while (true) {
+            long state = mStates.get(slot);
+            int value = state(state);
+            if (value < 0 || mKeys.get(slot) != key) {
+                // Swapped out meanwhile.
+                return null;
+            }
+
+            boolean firstPin = (value & PIN_MASK) == 0;
+            int permitsLeft = 0;
+            if (firstPin) {
+                // We must ensure that there will still be an unpinned element
+                // after we pin this one.
+                permitsLeft = tryAcquirePinPermit();
+                if (permitsLeft < 0) {
+                    return null;
+                }
+            }
+
+            if (!mStates.compareAndSet(slot, state, state + 1)) {
+                if (firstPin) {
+                    mPinPermits.incrementAndGet();
+                }
+                continue;
+            }
+
+            @SuppressWarnings("unchecked")
+            E element = (E) mElements[slot];
+            if (mClosed) {
+                // Lost the race against close(), which may already have
+                // checked this slot. Undo the pin on this very slot; close()
+                // never frees a pinned slot, so it still holds our pin.
+                unpin(slot);
+                return null;
+            }
+            if (firstPin && permitsLeft == 0) {
+                notifyPinStateChange();
+            }
+            return Pair.create(key, element);
+        }
+    }
+
+    public void release(long key) {
+        // Note that this must proceed even if the buffer has been closed.
+        int slot = findSlot(key, false);
+        if (slot < 0) {
+            throw new InvalidParameterException(
+                    "No entry found for the given key: " + key + ".");
+        }
+
+        unpin(slot);
+    }
+
+    /**
+     * Drops one pin from the given slot, which must be pinned.
+     */
+    private void unpin(int slot) {
+        while (true) {
+            long state = mStates.get(slot);
+            int pins = state(state) & PIN_MASK;
+            if (state(state) < 0 || pins == 0) {
+                throw new IllegalArgumentException("Calling release() with unpinned element.");
+            }
+
+            if (mStates.compareAndSet(slot, state, state - 1)) {
+                if (pins == 1) {
+                    // Allow pinning another element.
+                    if (mPinPermits.incrementAndGet() == 1) {
+                        notifyPinStateChange();
+                    }
+                    if (mClosed) {
+                        signalClose();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Attempts to pin the greatest element and return it. <br>
+     * Note that, if a non-null element is returned, the caller <em>must</em>
+     * call {@link #release} with the element.
+     *
+     * @return the key and object of the pinned element, if one could be pinned,
+     *         or null.
+     */
+    public Pair<Long, E> tryPinGreatest() {
+        if (mClosed) {
+            return null;
+        }
+
+        boolean found = false;
+        long greatestKey = Long.MIN_VALUE;
+        for (int i = 0; i < mCapacity; i++) {
+            if (state(mStates.get(i)) >= 0) {
+                greatestKey = Math.max(greatestKey, mKeys.get(i));
+                found = true;
+            }
+        }
+        return found ? tryPin(greatestKey) : null;
+    }
+
+    /**
+     * Attempts to pin the greatest element for which {@code selector} returns
+     * true. <br>
+     *
+     * @see #tryPinGreatest
+     */
+    public Pair<Long, E> tryPinGreatestSelected(Selector<E> selector) {
+        if (mClosed) {
+            return null;
+        }
+
+        // Pin each element, from greatest key to least, until we find the one
+        // we want (the element with the greatest key for which
+        // selector.selected() returns true). Each step scans the slots for
+        // the greatest key below the last one, which for a handful of slots
+        // is cheaper than copying and sorting the keys, and allocates nothing.
+        boolean first = true;
+        long previousKey = 0;
+        while (true) {
+            boolean found = false;
+            long key = Long.MIN_VALUE;
+            for (int i = 0; i < mCapacity; i++) {
+                if (state(mStates.get(i)) >= 0) {
+                    long slotKey = mKeys.get(i);
+                    if ((first || slotKey < previousKey) && (!found || slotKey > key)) {
+                        key = slotKey;
+                        found = true;
+                    }
+                }
+            }
+            if (!found) {
+                return null;
+            }
+            first = false;
+            previousKey = key;
+
+            Pair<Long, E> pinnedCandidate = tryPin(key);
+            if (pinnedCandidate != null) {
+                boolean selected = false;
+
+                try {
+                    selected = selector.select(pinnedCandidate.second);
+                } finally {
+                    // Don't leak pinnedCandidate if the above select() threw an
+                    // exception.
+                    if (selected) {
+                        return pinnedCandidate;
+                    } else {
+                        release(pinnedCandidate.first);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all elements from the buffer, running {@code task} on each one,
+     * and waiting, if necessary, for all pins to be released and all running
+     * swaps to finish.
+     *
+     * @param task
+     * @throws InterruptedException
+     */
+    public void close(Task<E> task) throws InterruptedException {
+        mClosed = true;
+
+        notifyPinStateChange();
+
+        boolean repinned;
+        do {
+            synchronized (mCloseLock) {
+                while (mActiveSwaps.get() > 0 || hasPinnedElements()) {
+                    mCloseLock.wait();
+                }
+            }
+
+            // A tryPin() which has not seen mClosed yet may still pin a slot,
+            // and then undoes its pin. Each slot is taken over by a CAS from
+            // the unpinned state, so that it can't be pinned while its
+            // element is closed; if one was pinned meanwhile, wait again.
+            repinned = false;
+            for (int i = 0; i < mCapacity; i++) {
+                long state = mStates.get(i);
+                if (state(state) < 0) {
+                    continue;
+                }
+                if (state(state) != 0
+                        || !mStates.compareAndSet(i, state, pack(generation(state), CLAIMED))) {
+                    repinned = true;
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                E element = (E) mElements[i];
+                task.run(element);
+                mElements[i] = null;
+                mStates.set(i, pack(generation(state) + 1, FREE));
+            }
+        } while (repinned);
+    }
+
+    /**
+     * Attempts to get a pinned element for the given key.
+     *
+     * @param key the key of the pinned element.
+     * @return (key, value) pair if found otherwise null.
+     */
+    public Pair<Long, E> tryGetPinned(long key) {
+        if (mClosed) {
+            return null;
+        }
+
+        int slot = findSlot(key, false);
+        if (slot < 0 || (state(mStates.get(slot)) & PIN_MASK) == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        E element = (E) mElements[slot];
+        return Pair.create(key, element);
+    }
+
+    /**
+     * Reopens previously closed buffer.
+     * <p/>
+     * Buffer should be closed before calling this method. If called with an
+     * open buffer an {@link IllegalStateException} is thrown.
+     *
+     * @param unpinnedReservedSlotCount a non-negative integer for number of
+     *            slots to reserve for unpinned elements. These slots can never
+     *            be pinned and will always be available for swapping.
+     */
+    public void reopenBuffer(int unpinnedReservedSlotCount) {
+        if (unpinnedReservedSlotCount < 0 || unpinnedReservedSlotCount >= mCapacity) {
+            throw new IllegalArgumentException("Invalid unpinned reserved slot count: " +
+                    unpinnedReservedSlotCount);
+        }
+        if (!mClosed) {
+            throw new IllegalStateException(
+                    "Attempt to reopen the buffer when it is not closed.");
+        }
+
+        mPinPermits.set(-unpinnedReservedSlotCount);
+        mClosed = false;
+    }
+
+    /**
+     * Releases a pinned element for the given key.
+     * <p/>
+     * If element is unpinned, it is not released.
+     *
+     * @param key the key of the element, if the element is not present an
+     *            {@link IllegalArgumentException} is thrown.
+     */
+    public void releaseIfPinned(long key) {
+        int slot = findSlot(key, false);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Invalid key." + key);
+        }
+
+        if ((state(mStates.get(slot)) & PIN_MASK) > 0) {
+            release(key);
+        }
+    }
+
+    /**
+     * Releases all pinned elements in the buffer.
+     * <p/>
+     * Note: it only calls {@link #release(long)} only once on a pinned element.
+     */
+    public void releaseAll() {
+        if (mClosed) {
+            return;
+        }
+        for (int i = 0; i < mCapacity; i++) {
+            long state = mStates.get(i);
+            if (state(state) >= 0 && (state(state) & PIN_MASK) > 0) {
+                release(mKeys.get(i));
+            }
+        }
+    }
+
+    /**
+     * Finds the slot holding the given key.
+     *
+     * @param includePending whether slots that a writer is currently swapping
+     *            in should be returned as well.
+     * @return the slot index, or -1.
+     */
+    private int findSlot(long key, boolean includePending) {
+        for (int i = 0; i < mCapacity; i++) {
+            int state = state(mStates.get(i));
+            if (state >= 0 || (includePending && (state == CLAIMED || state == COMMITTED))) {
+                if (mKeys.get(i) == key) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Runs {@link SwapTask#update} on the filled slot with the given key,
+     * keeping other writers from swapping it out meanwhile.
+     *
+     * @return false if the slot is not filled with that key, or is already
+     *         being updated.
+     */
+    private boolean tryUpdate(int slot, long key, SwapTask<E> swapper) {
+        long state = mStates.get(slot);
+        if (state(state) < 0 || (state(state) & UPDATING) != 0 || mKeys.get(slot) != key) {
+            return false;
+        }
+        if (!mStates.compareAndSet(slot, state, state | UPDATING)) {
+            return false;
+        }
+
+        try {
+            @SuppressWarnings("unchecked")
+            E element = (E) mElements[slot];
+            swapper.update(element);
+        } finally {
+            // Pins may have changed meanwhile; the generation cannot.
+            long updatingState;
+            do {
+                updatingState = mStates.get(slot);
+            } while (!mStates.compareAndSet(slot, updatingState, updatingState & ~UPDATING));
+        }
+        return true;
+    }
+
+    /**
+     * Claims a free slot, or else the unpinned slot with
+     * {@link SwapTask#getSwapKey()} or the least key.
+     *
+     * @return -1 if no slot could be claimed, otherwise the slot index in the
+     *         upper and the generation of the claimed state in the lower half.
+     */
+    private long claimSlot(long newKey, SwapTask<E> swapper) {
+        for (int i = 0; i < mCapacity; i++) {
+            long state = mStates.get(i);
+            if (state(state) == FREE
+                    && mStates.compareAndSet(i, state, pack(generation(state), CLAIMED))) {
+                return ((long) i << 32) | (generation(state) & 0xffffffffL);
+            }
+        }
+
+        long swapKey = swapper.getSwapKey();
+        // If swapKey is same as the inserted key return early.
+        if (swapKey == newKey) {
+            return -1;
+        }
+
+        while (true) {
+            int victim = -1;
+            long victimState = 0;
+            long leastKey = Long.MAX_VALUE;
+            for (int i = 0; i < mCapacity; i++) {
+                long state = mStates.get(i);
+                if (state(state) != 0) {
+                    // Free, pinned, being updated or owned by another writer.
+                    continue;
+                }
+                long key = mKeys.get(i);
+                if (key == swapKey) {
+                    victim = i;
+                    victimState = state;
+                    break;
+                }
+                if (victim < 0 || key < leastKey) {
+                    victim = i;
+                    victimState = state;
+                    leastKey = key;
+                }
+            }
+
+            if (victim < 0) {
+                // We can get here if no unpinned element was found.
+                return -1;
+            }
+            if (mStates.compareAndSet(victim, victimState,
+                    pack(generation(victimState), CLAIMED))) {
+                return ((long) victim << 32) | (generation(victimState) & 0xffffffffL);
+            }
+        }
+    }
+
+    /**
+     * Makes sure no other slot holds or is about to hold the given key, then
+     * moves the claimed slot to COMMITTED. Of several writers racing with the
+     * same key exactly one succeeds: a writer aborts racing writers in higher
+     * slots and waits for those in lower slots to settle.
+     *
+     * @return true if the key now belongs to the given slot, false if the
+     *         caller lost and still owns the slot in CLAIMED or ABORTED state.
+     */
+    private boolean commitKey(int slot, long ownState, long key) {
+        for (int i = 0; i < mCapacity; i++) {
+            if (i == slot) {
+                continue;
+            }
+            while (true) {
+                long state = mStates.get(i);
+                int value = state(state);
+                if (value == FREE || value == ABORTED || mKeys.get(i) != key) {
+                    break;
+                }
+                if (value >= 0 || value == COMMITTED) {
+                    return false;
+                }
+                // The other writer is still CLAIMED.
+                if (i > slot) {
+                    if (mStates.compareAndSet(i, state, pack(generation(state), ABORTED))) {
+                        break;
+                    }
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        return mStates.compareAndSet(slot, ownState, pack(generation(ownState), COMMITTED));
+    }
+
+    /**
+     * @return the number of permits left, or -1 if none could be acquired.
+     */
+    private int tryAcquirePinPermit() {
+        while (true) {
+            int permits = mPinPermits.get();
+            if (permits <= 0) {
+                return -1;
+            }
+            if (mPinPermits.compareAndSet(permits, permits - 1)) {
+                return permits - 1;
+            }
+        }
+    }
+
+    private boolean hasPinnedElements() {
+        for (int i = 0; i < mCapacity; i++) {
+            int state = state(mStates.get(i));
+            if (state >= 0 && (state & PIN_MASK) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void signalClose() {
+        synchronized (mCloseLock) {
+            mCloseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Tells the listener whether an element can be pinned. Pins and releases
+     * on different threads may post in either order, so the state is read
+     * when the notification runs rather than when it is posted; the last
+     * notification delivered then always carries the current state.
+     */
+    private void notifyPinStateChange() {
+        final ListenerRegistration registration = mListener;
+        if (registration != null && registration.handler != null) {
+            registration.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onPinStateChange(
+                            !mClosed && mPinPermits.get() > 0);
+                }
+            });
+        }
+    }
+
+    private static long pack(int generation, int state) {
+        return ((long) generation << 32) | (state & 0xffffffffL);
+    }
+
+    private static int generation(long packedState) {
+        return (int) (packedState >>> 32);
+    }
+
+    private static int state(long packedState) {
+        return (int) packedState;
+    }
+}
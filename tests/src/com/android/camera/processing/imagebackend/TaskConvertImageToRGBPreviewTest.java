@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.OrientationManager.DeviceOrientation;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.imagebackend.TaskConvertImageToRGBPreview.ThumbnailShape;
+import com.android.camera.processing.imagebackend.TaskImageContainer.ProcessingPriority;
+import com.android.camera.util.Size;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the native YUV to ARGB conversion produces exactly the pixels
+ * of the Java reference conversion.
+ */
+@SmallTest
+public class TaskConvertImageToRGBPreviewTest extends TestCase {
+    private static final ThumbnailShape[] SHAPES = {
+            ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+            ThumbnailShape.SQUARE_ASPECT_NO_INSET,
+            ThumbnailShape.MAINTAIN_ASPECT_NO_INSET,
+    };
+
+    private static final int[] SUBSAMPLES = {1, 2, 3};
+
+    /**
+     * A YUV_420_888 image backed by direct buffers of random content, with
+     * the given strides.
+     */
+    private static class FakeYuvImage implements ImageProxy {
+        private final int mWidth;
+        private final int mHeight;
+        private final List<Plane> mPlanes;
+        private Rect mCropRect;
+
+        public FakeYuvImage(int width, int height, int yRowStride, int uvPixelStride,
+                int uvRowStride, long seed) {
+            mWidth = width;
+            mHeight = height;
+            mCropRect = new Rect(0, 0, width, height);
+            Random random = new Random(seed);
+            int uvHeight = (height + 1) / 2;
+            mPlanes = Arrays.asList(
+                    new FakePlane(1, yRowStride, yRowStride * height, random),
+                    new FakePlane(uvPixelStride, uvRowStride, uvRowStride * uvHeight, random),
+                    new FakePlane(uvPixelStride, uvRowStride, uvRowStride * uvHeight, random));
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return mCropRect;
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+            mCropRect = cropRect;
+        }
+
+        @Override
+        public int getFormat() {
+            return ImageFormat.YUV_420_888;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return mPlanes;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class FakePlane implements ImageProxy.Plane {
+        private final int mPixelStride;
+        private final int mRowStride;
+        private final ByteBuffer mBuffer;
+
+        public FakePlane(int pixelStride, int rowStride, int size, Random random) {
+            mPixelStride = pixelStride;
+            mRowStride = rowStride;
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            mBuffer = ByteBuffer.allocateDirect(size);
+            mBuffer.put(content);
+            mBuffer.rewind();
+        }
+
+        @Override
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TaskConvertImageToRGBPreview.setUseNativeConversion(true);
+        super.tearDown();
+    }
+
+    public void testInterleavedChromaWithRowPadding() {
+        // Odd width, as delivered with a semi-planar layout and padded rows.
+        FakeYuvImage image = new FakeYuvImage(641, 480, 704, 2, 704, 1);
+        assertNativeMatchesJava(image, new Rect(0, 0, 641, 480));
+        assertNativeMatchesJava(image, new Rect(13, 7, 414, 306));
+    }
+
+    public void testPlanarChroma() {
+        FakeYuvImage image = new FakeYuvImage(320, 240, 320, 1, 160, 2);
+        assertNativeMatchesJava(image, new Rect(0, 0, 320, 240));
+        assertNativeMatchesJava(image, new Rect(31, 17, 288, 201));
+    }
+
+    public void testOddCropOffsetsAndPixelStride() {
+        // A pixel stride beyond the interleaved case, and a crop reaching the
+        // bottom right corner of the image.
+        FakeYuvImage image = new FakeYuvImage(199, 151, 208, 3, 312, 3);
+        assertNativeMatchesJava(image, new Rect(1, 1, 199, 151));
+        assertNativeMatchesJava(image, new Rect(57, 3, 150, 98));
+    }
+
+    private void assertNativeMatchesJava(FakeYuvImage image, Rect crop) {
+        for (ThumbnailShape shape : SHAPES) {
+            for (int subsample : SUBSAMPLES) {
+                String description = shape + " crop " + crop.toShortString() + " subsample "
+                        + subsample;
+                TaskConvertImageToRGBPreview task = createTask(image, crop, shape);
+
+                assertNotNull("Native conversion not applicable: " + description,
+                        task.convertYuvImageNative(image, crop, subsample,
+                                shape == ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+                                shape != ThumbnailShape.MAINTAIN_ASPECT_NO_INSET));
+
+                TaskConvertImageToRGBPreview.setUseNativeConversion(true);
+                int[] nativeColors = task.runSelectedConversion(image, crop, subsample);
+                TaskConvertImageToRGBPreview.setUseNativeConversion(false);
+                int[] javaColors = task.runSelectedConversion(image, crop, subsample);
+
+                assertEquals("Length mismatch: " + description, javaColors.length,
+                        nativeColors.length);
+                for (int i = 0; i < javaColors.length; i++) {
+                    if (javaColors[i] != nativeColors[i]) {
+                        fail("Pixel " + i + " mismatch: " + description + ", expected "
+                                + Integer.toHexString(javaColors[i]) + " but was "
+                                + Integer.toHexString(nativeColors[i]));
+                    }
+                }
+            }
+        }
+    }
+
+    private static TaskConvertImageToRGBPreview createTask(FakeYuvImage image, Rect crop,
+            ThumbnailShape shape) {
+        ImageToProcess imageToProcess = new ImageToProcess(image, DeviceOrientation.CLOCKWISE_0,
+                null, crop);
+        return new TaskConvertImageToRGBPreview(imageToProcess, null, null,
+                ProcessingPriority.FAST, null, new Size(crop.width(), crop.height()), shape);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Time and allocation benchmark of EXIF reading and rewriting, run over a set
+ * of generated jpegs with IFD0, EXIF and GPS IFDs and a thumbnail, similar to
+ * what the camera writes. Like {@link LruPoolBenchmark}, warmup iterations
+ * are discarded and the timed iterations are reported as mean and standard
+ * deviation, along with the objects and bytes allocated per operation.
+ */
+@LargeTest
+public class ExifBenchmark extends TestCase {
+    private static final String TAG = "ExifBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int OPERATIONS_PER_ITERATION = 2000;
+    private static final int SAMPLE_COUNT = 16;
+
+    /** Tags looked up by the filmstrip and the capture pipeline. */
+    private static final int[] LOOKUP_TAGS = {
+            ExifInterface.TAG_ORIENTATION,
+            ExifInterface.TAG_PIXEL_X_DIMENSION,
+            ExifInterface.TAG_PIXEL_Y_DIMENSION,
+            ExifInterface.TAG_DATE_TIME_ORIGINAL,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE,
+    };
+
+    private interface Operation {
+        void run(byte[] jpeg) throws IOException;
+    }
+
+    private byte[][] mSamples;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Random random = new Random(0);
+        mSamples = new byte[SAMPLE_COUNT][];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            mSamples[i] = createSample(random);
+        }
+    }
+
+    public void testReadExif() throws Exception {
+        benchmark("readExif", new Operation() {
+            @Override
+            public void run(byte[] jpeg) throws IOException {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(jpeg);
+            }
+        });
+    }
+
+    public void testReadAndLookup() throws Exception {
+        benchmark("readExif+getTag", new Operation() {
+            @Override
+            public void run(byte[] jpeg) throws IOException {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(jpeg);
+                for (int tag : LOOKUP_TAGS) {
+                    exif.getTag(tag);
+                }
+            }
+        });
+    }
+
+    public void testRewriteExif() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        benchmark("readExif+writeExif", new Operation() {
+            @Override
+            public void run(byte[] jpeg) throws IOException {
+                ExifInterface exif = new ExifInterface();
+                exif.readExif(jpeg);
+                exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                        ExifInterface.Orientation.RIGHT_TOP));
+                out.reset();
+                exif.writeExif(jpeg, out);
+            }
+        });
+    }
+
+    private void benchmark(String name, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(operation);
+        }
+
+        double[] results = new double[MEASURED_ITERATIONS];
+        double sum = 0;
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = runIteration(operation);
+            sum += results[i];
+        }
+        Debug.stopAllocCounting();
+        long operations = (long) MEASURED_ITERATIONS * OPERATIONS_PER_ITERATION;
+        long allocations = Debug.getThreadAllocCount() / operations;
+        long allocatedBytes = Debug.getThreadAllocSize() / operations;
+
+        double mean = sum / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double stdDev = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        Log.i(TAG, String.format("%-20s %8.2f ops/ms +- %.2f, %d objects/op, %d bytes/op",
+                name, mean, stdDev, allocations, allocatedBytes));
+    }
+
+    private double runIteration(Operation operation) throws IOException {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < OPERATIONS_PER_ITERATION; i++) {
+            operation.run(mSamples[i % SAMPLE_COUNT]);
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        return OPERATIONS_PER_ITERATION / (elapsedNs / 1e6);
+    }
+
+    /**
+     * Creates a tiny baseline jpeg carrying the tags the camera writes for a
+     * geotagged photo.
+     */
+    private static byte[] createSample(Random random) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Manufacturer"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Model " + random.nextInt(100)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90 * random.nextInt(4))));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4000 + random.nextInt(200)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3000 + random.nextInt(200)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME,
+                new Rational(1, 30 + random.nextInt(1000))));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_F_NUMBER, new Rational(20, 10)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS,
+                (short) (100 + random.nextInt(1500))));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(4670, 1000)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FLASH, (short) 0));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_WHITE_BALANCE, (short) 0));
+        long timestamp = System.currentTimeMillis() - random.nextInt(Integer.MAX_VALUE);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, timestamp, TimeZone.getDefault());
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME_ORIGINAL, timestamp,
+                TimeZone.getDefault());
+        exif.addGpsTags(random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180);
+        exif.addGpsDateTimeStampTag(System.currentTimeMillis());
+        exif.setTag(exif.buildTag(ExifInterface.TAG_GPS_PROCESSING_METHOD, "GPS"));
+
+        byte[] thumbnail = new byte[2 * 1024 + random.nextInt(4 * 1024)];
+        random.nextBytes(thumbnail);
+        thumbnail[0] = (byte) 0xff;
+        thumbnail[1] = (byte) 0xd8;
+        thumbnail[thumbnail.length - 2] = (byte) 0xff;
+        thumbnail[thumbnail.length - 1] = (byte) 0xd9;
+        exif.setCompressedThumbnail(thumbnail);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(createJpegBody(random), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return SOI, a baseline SOF0 segment for a 16x16 YCbCr image, some
+     *         entropy coded bytes and EOI.
+     */
+    private static byte[] createJpegBody(Random random) {
+        byte[] header = {
+                (byte) 0xff, (byte) 0xd8,
+                (byte) 0xff, (byte) 0xc0, 0, 17, 8, 0, 16, 0, 16, 3,
+                1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1,
+        };
+        byte[] jpeg = new byte[header.length + 1024 + 2];
+        System.arraycopy(header, 0, jpeg, 0, header.length);
+        for (int i = header.length; i < jpeg.length - 2; i++) {
+            // Keep 0xff out of the entropy coded data so it has no markers.
+            jpeg[i] = (byte) random.nextInt(0xff);
+        }
+        jpeg[jpeg.length - 2] = (byte) 0xff;
+        jpeg[jpeg.length - 1] = (byte) 0xd9;
+        return jpeg;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.data.FilmstripItem;
+import com.android.camera.data.FilmstripItemData;
+import com.android.camera.data.FilmstripItemList;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedList;
+
+/**
+ * Benchmark of {@link FilmstripItemList} against the LinkedList it replaced,
+ * scrolling through a camera roll of {@link #ROLL_SIZE} items the way
+ * FilmstripView and CameraFilmstripDataAdapter access it: every step binds
+ * the items around the current position and looks up the current item by
+ * URI, and every so often a new capture is inserted at the front and an
+ * item is deleted at the current position. Like {@link LruPoolBenchmark},
+ * warmup iterations are discarded and the timed ones are reported as mean
+ * and standard deviation, here in nanoseconds per scroll step.
+ */
+@LargeTest
+public class FilmstripItemListBenchmark extends TestCase {
+    private static final String TAG = "FilmstripListBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final int ROLL_SIZE = 50000;
+    /** Scroll steps per iteration, spread evenly over the whole roll. */
+    private static final int STEPS_PER_ITERATION = 2000;
+    /** Items bound on each side of the current one, like FilmstripView. */
+    private static final int BOUND_ITEMS = 2;
+    /** Insert a capture and delete an item every this many steps. */
+    private static final int EDIT_INTERVAL_STEPS = 100;
+
+    private interface ItemList {
+        FilmstripItem get(int index);
+        int indexOf(Uri uri);
+        void add(int index, FilmstripItem item);
+        FilmstripItem remove(int index);
+        int size();
+    }
+
+    private static ItemList filmstripItemList() {
+        final FilmstripItemList list = new FilmstripItemList();
+        return new ItemList() {
+            @Override
+            public FilmstripItem get(int index) {
+                return list.get(index);
+            }
+
+            @Override
+            public int indexOf(Uri uri) {
+                return list.indexOf(uri);
+            }
+
+            @Override
+            public void add(int index, FilmstripItem item) {
+                list.add(index, item);
+            }
+
+            @Override
+            public FilmstripItem remove(int index) {
+                return list.remove(index);
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        };
+    }
+
+    private static ItemList linkedList() {
+        final LinkedList<FilmstripItem> list = new LinkedList<>();
+        return new ItemList() {
+            @Override
+            public FilmstripItem get(int index) {
+                return list.get(index);
+            }
+
+            @Override
+            public int indexOf(Uri uri) {
+                int index = 0;
+                for (FilmstripItem item : list) {
+                    if (item.getData().getUri().equals(uri)) {
+                        return index;
+                    }
+                    index++;
+                }
+                return -1;
+            }
+
+            @Override
+            public void add(int index, FilmstripItem item) {
+                list.add(index, item);
+            }
+
+            @Override
+            public FilmstripItem remove(int index) {
+                return list.remove(index);
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        };
+    }
+
+    private int mNextItemId = 0;
+
+    public void testScrollRoll() {
+        benchmark("LinkedList", linkedList());
+        benchmark("FilmstripItemList", filmstripItemList());
+    }
+
+    private void benchmark(String name, ItemList list) {
+        for (int i = 0; i < ROLL_SIZE; i++) {
+            list.add(list.size(), createItem());
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(list);
+        }
+
+        double[] results = new double[MEASURED_ITERATIONS];
+        double sum = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = runIteration(list);
+            sum += results[i];
+        }
+        double mean = sum / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double stdDev = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        Log.i(TAG, String.format("%-18s %d items %10.0f ns/step +- %.0f",
+                name, ROLL_SIZE, mean, stdDev));
+    }
+
+    /**
+     * Scrolls from the newest to the oldest item.
+     *
+     * @return the mean duration of a scroll step, in nanoseconds.
+     */
+    private double runIteration(ItemList list) {
+        int stride = ROLL_SIZE / STEPS_PER_ITERATION;
+        int found = 0;
+        long startNs = System.nanoTime();
+        for (int step = 0; step < STEPS_PER_ITERATION; step++) {
+            int position = step * stride;
+            for (int i = Math.max(0, position - BOUND_ITEMS);
+                    i <= Math.min(list.size() - 1, position + BOUND_ITEMS); i++) {
+                if (list.get(i) != null) {
+                    found++;
+                }
+            }
+            Uri current = list.get(position).getData().getUri();
+            if (list.indexOf(current) == position) {
+                found++;
+            }
+            if (step % EDIT_INTERVAL_STEPS == 0) {
+                list.add(0, createItem());
+                list.remove(position + 1);
+            }
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        assertTrue(found > 0);
+        return (double) elapsedNs / STEPS_PER_ITERATION;
+    }
+
+    /**
+     * The lists only ever look at the URI of the items, so a proxy that only
+     * implements {@link FilmstripItem#getData()} will do.
+     */
+    private FilmstripItem createItem() {
+        final FilmstripItemData data = new FilmstripItemData.Builder(
+                Uri.parse("content://media/external/images/media/" + mNextItemId++))
+                .build();
+        return (FilmstripItem) Proxy.newProxyInstance(FilmstripItem.class.getClassLoader(),
+                new Class<?>[] { FilmstripItem.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getData")) {
+                            return data;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
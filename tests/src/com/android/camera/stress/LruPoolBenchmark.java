@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.processing.memory.ConcurrentLruPool;
+import com.android.camera.processing.memory.LruPool;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Throughput benchmark of {@link LruPool} against {@link ConcurrentLruPool},
+ * modelled after a JMH run: each configuration gets warmup iterations whose
+ * results are discarded, then timed iterations that are reported as mean and
+ * standard deviation of operations per millisecond. One operation is an
+ * acquire followed by an add of the same key, which is how the image pipeline
+ * uses its pools.
+ */
+@LargeTest
+public class LruPoolBenchmark extends TestCase {
+    private static final String TAG = "LruPoolBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int OPERATIONS_PER_ITERATION = 200000;
+
+    /** Pool size and number of keys roughly like the ImageBackend pools. */
+    private static final int POOL_SIZE = 64;
+    private static final int KEY_COUNT = 8;
+
+    private interface Pool {
+        Integer acquire(Integer key);
+        void add(Integer key, Integer value);
+    }
+
+    private static Pool lruPool() {
+        final LruPool<Integer, Integer> pool = new LruPool<>(POOL_SIZE);
+        return new Pool() {
+            @Override
+            public Integer acquire(Integer key) {
+                return pool.acquire(key);
+            }
+
+            @Override
+            public void add(Integer key, Integer value) {
+                pool.add(key, value);
+            }
+        };
+    }
+
+    private static Pool concurrentLruPool() {
+        final ConcurrentLruPool<Integer, Integer> pool = new ConcurrentLruPool<>(POOL_SIZE);
+        return new Pool() {
+            @Override
+            public Integer acquire(Integer key) {
+                return pool.acquire(key);
+            }
+
+            @Override
+            public void add(Integer key, Integer value) {
+                pool.add(key, value);
+            }
+        };
+    }
+
+    public void testSingleThreaded() throws Exception {
+        double lru = benchmark("LruPool", lruPool(), 1);
+        double concurrent = benchmark("ConcurrentLruPool", concurrentLruPool(), 1);
+        Log.i(TAG, "1 thread speedup: " + concurrent / lru);
+    }
+
+    public void testContended() throws Exception {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        double lru = benchmark("LruPool", lruPool(), threads);
+        double concurrent = benchmark("ConcurrentLruPool", concurrentLruPool(), threads);
+        Log.i(TAG, threads + " thread speedup: " + concurrent / lru);
+    }
+
+    /**
+     * @return the mean throughput of the measured iterations, in operations
+     *         per millisecond across all threads.
+     */
+    private double benchmark(String name, Pool pool, int threads) throws Exception {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            pool.add(i % KEY_COUNT, i);
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(pool, threads);
+        }
+
+        double[] results = new double[MEASURED_ITERATIONS];
+        double sum = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = runIteration(pool, threads);
+            sum += results[i];
+        }
+        double mean = sum / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double stdDev = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        Log.i(TAG, String.format("%-20s threads=%d %10.1f ops/ms +- %.1f",
+                name, threads, mean, stdDev));
+        return mean;
+    }
+
+    private double runIteration(final Pool pool, int threads) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final CyclicBarrier end = new CyclicBarrier(threads + 1);
+        final int operationsPerThread = OPERATIONS_PER_ITERATION / threads;
+
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int key = seed;
+                        for (int i = 0; i < operationsPerThread; i++) {
+                            key = (key * 31 + 7) % KEY_COUNT;
+                            Integer value = pool.acquire(key);
+                            pool.add(key, value != null ? value : i);
+                        }
+                        end.await();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }).start();
+        }
+
+        start.await();
+        long startNs = System.nanoTime();
+        end.await();
+        long elapsedNs = System.nanoTime() - startNs;
+
+        return (double) operationsPerThread * threads / (elapsedNs / 1e6);
+    }
+}
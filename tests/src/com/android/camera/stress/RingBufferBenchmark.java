@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Pair;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer;
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+import com.android.camera.util.TimestampRingBuffer;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency benchmark of {@link ConcurrentSharedRingBuffer} against
+ * {@link TimestampRingBuffer}, replaying the stream of frames a ZSL session
+ * produces: one thread swaps in images and another swaps in their metadata
+ * with some jitter, at 30 or 60 frames per second, while a third thread
+ * periodically pins the newest complete frame and holds it for a while, as a
+ * shutter press does. Like {@link LruPoolBenchmark}, warmup iterations are
+ * discarded; the timed iterations report the mean time spent in swapLeast()
+ * with its standard deviation, and the worst single call.
+ */
+@LargeTest
+public class RingBufferBenchmark extends TestCase {
+    private static final String TAG = "RingBufferBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final int FRAMES_PER_ITERATION = 120;
+
+    /** Like ImageCaptureManager with an ImageReader of 10 images. */
+    private static final int CAPACITY = 8;
+
+    /** Pin a frame every this many frames, for this many frame durations. */
+    private static final int CAPTURE_INTERVAL_FRAMES = 15;
+    private static final int CAPTURE_HOLD_FRAMES = 3;
+
+    private static final class Frame {
+        volatile boolean hasImage;
+        volatile boolean hasMetadata;
+    }
+
+    private interface RingBuffer {
+        boolean swapLeast(long key, SwapTask<Frame> swapper);
+        Pair<Long, Frame> tryPinGreatestSelected(Selector<Frame> selector);
+        void release(long key);
+    }
+
+    private static RingBuffer concurrentSharedRingBuffer() {
+        final ConcurrentSharedRingBuffer<Frame> buffer =
+                new ConcurrentSharedRingBuffer<>(CAPACITY);
+        return new RingBuffer() {
+            @Override
+            public boolean swapLeast(long key, SwapTask<Frame> swapper) {
+                return buffer.swapLeast(key, swapper);
+            }
+
+            @Override
+            public Pair<Long, Frame> tryPinGreatestSelected(Selector<Frame> selector) {
+                return buffer.tryPinGreatestSelected(selector);
+            }
+
+            @Override
+            public void release(long key) {
+                buffer.release(key);
+            }
+        };
+    }
+
+    private static RingBuffer timestampRingBuffer() {
+        final TimestampRingBuffer<Frame> buffer = new TimestampRingBuffer<>(CAPACITY);
+        return new RingBuffer() {
+            @Override
+            public boolean swapLeast(long key, SwapTask<Frame> swapper) {
+                return buffer.swapLeast(key, swapper);
+            }
+
+            @Override
+            public Pair<Long, Frame> tryPinGreatestSelected(Selector<Frame> selector) {
+                return buffer.tryPinGreatestSelected(selector);
+            }
+
+            @Override
+            public void release(long key) {
+                buffer.release(key);
+            }
+        };
+    }
+
+    public void testReplay30Fps() throws Exception {
+        benchmark("ConcurrentSharedRingBuffer", concurrentSharedRingBuffer(), 30);
+        benchmark("TimestampRingBuffer", timestampRingBuffer(), 30);
+    }
+
+    public void testReplay60Fps() throws Exception {
+        benchmark("ConcurrentSharedRingBuffer", concurrentSharedRingBuffer(), 60);
+        benchmark("TimestampRingBuffer", timestampRingBuffer(), 60);
+    }
+
+    private void benchmark(String name, RingBuffer buffer, int fps) throws Exception {
+        long frameDurationNs = TimeUnit.SECONDS.toNanos(1) / fps;
+        long startTimestamp = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(buffer, startTimestamp, frameDurationNs, new AtomicLong());
+            startTimestamp += FRAMES_PER_ITERATION * frameDurationNs;
+        }
+
+        double[] results = new double[MEASURED_ITERATIONS];
+        double sum = 0;
+        AtomicLong maxSwapNs = new AtomicLong();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            results[i] = runIteration(buffer, startTimestamp, frameDurationNs, maxSwapNs);
+            startTimestamp += FRAMES_PER_ITERATION * frameDurationNs;
+            sum += results[i];
+        }
+        double mean = sum / MEASURED_ITERATIONS;
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        double stdDev = Math.sqrt(variance / MEASURED_ITERATIONS);
+
+        Log.i(TAG, String.format("%-27s %d fps %8.0f ns/swap +- %.0f, max %d ns",
+                name, fps, mean, stdDev, maxSwapNs.get()));
+    }
+
+    /**
+     * Replays {@link #FRAMES_PER_ITERATION} frames in real time.
+     *
+     * @return the mean duration of a swapLeast() call, in nanoseconds.
+     */
+    private double runIteration(final RingBuffer buffer, final long startTimestamp,
+            final long frameDurationNs, final AtomicLong maxSwapNs) throws Exception {
+        final AtomicLong totalSwapNs = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(3);
+        final long startNs = System.nanoTime();
+
+        Thread images = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < FRAMES_PER_ITERATION; i++) {
+                    sleepUntil(startNs + i * frameDurationNs);
+                    swap(buffer, startTimestamp + i * frameDurationNs, true, totalSwapNs,
+                            maxSwapNs);
+                }
+                done.countDown();
+            }
+        });
+
+        Thread metadata = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Metadata arrives up to a frame before or after its image.
+                Random random = new Random(startTimestamp);
+                for (int i = 0; i < FRAMES_PER_ITERATION; i++) {
+                    long jitter = (long) ((random.nextDouble() - 0.5) * 2 * frameDurationNs);
+                    sleepUntil(startNs + i * frameDurationNs + jitter);
+                    swap(buffer, startTimestamp + i * frameDurationNs, false, totalSwapNs,
+                            maxSwapNs);
+                }
+                done.countDown();
+            }
+        });
+
+        Thread captures = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Selector<Frame> complete = new Selector<Frame>() {
+                    @Override
+                    public boolean select(Frame frame) {
+                        return frame.hasImage && frame.hasMetadata;
+                    }
+                };
+                for (int i = CAPTURE_INTERVAL_FRAMES; i < FRAMES_PER_ITERATION;
+                        i += CAPTURE_INTERVAL_FRAMES) {
+                    sleepUntil(startNs + i * frameDurationNs);
+                    Pair<Long, Frame> pinned = buffer.tryPinGreatestSelected(complete);
+                    if (pinned != null) {
+                        sleepUntil(System.nanoTime() + CAPTURE_HOLD_FRAMES * frameDurationNs);
+                        buffer.release(pinned.first);
+                    }
+                }
+                done.countDown();
+            }
+        });
+
+        images.start();
+        metadata.start();
+        captures.start();
+        done.await();
+
+        return (double) totalSwapNs.get() / (2 * FRAMES_PER_ITERATION);
+    }
+
+    private static void swap(RingBuffer buffer, long timestamp, final boolean isImage,
+            AtomicLong totalSwapNs, AtomicLong maxSwapNs) {
+        long startNs = System.nanoTime();
+        buffer.swapLeast(timestamp, new SwapTask<Frame>() {
+            @Override
+            public Frame create() {
+                Frame frame = new Frame();
+                update(frame);
+                return frame;
+            }
+
+            @Override
+            public Frame swap(Frame oldElement) {
+                oldElement.hasImage = false;
+                oldElement.hasMetadata = false;
+                update(oldElement);
+                return oldElement;
+            }
+
+            @Override
+            public void update(Frame existingElement) {
+                if (isImage) {
+                    existingElement.hasImage = true;
+                } else {
+                    existingElement.hasMetadata = true;
+                }
+            }
+
+            @Override
+            public long getSwapKey() {
+                return -1;
+            }
+        });
+        long elapsedNs = System.nanoTime() - startNs;
+
+        totalSwapNs.addAndGet(elapsedNs);
+        long max;
+        do {
+            max = maxSwapNs.get();
+        } while (elapsedNs > max && !maxSwapNs.compareAndSet(max, elapsedNs));
+    }
+
+    private static void sleepUntil(long deadlineNs) {
+        long remainingNs;
+        while ((remainingNs = deadlineNs - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNs);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks that the exif writer stream produces the same image whether the
+ * whole jpeg header arrives in the first write, which takes the bulk path,
+ * or byte by byte through the segment state machine.
+ */
+@SmallTest
+public class ExifOutputStreamTest extends TestCase {
+    private static final byte[] SOI = {(byte) 0xff, (byte) 0xd8};
+
+    private static final byte[] APP0 = {
+            (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0,
+    };
+
+    /** An APP1 segment with an exif header that is to be replaced. */
+    private static final byte[] APP1 = {
+            (byte) 0xff, (byte) 0xe1, 0, 16, 'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0, 8,
+    };
+
+    private static final byte[] DQT = {
+            (byte) 0xff, (byte) 0xdb, 0, 6, 0, 1, 2, 3,
+    };
+
+    private static final byte[] SOF0 = {
+            (byte) 0xff, (byte) 0xc0, 0, 17, 8, 0, 16, 0, 16, 3,
+            1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1,
+    };
+
+    private static final byte[] EOI = {(byte) 0xff, (byte) 0xd9};
+
+    public void testExistingApp1() throws IOException {
+        assertSameOutput(jpeg(SOI, APP1, DQT, SOF0, entropyCodedData(), EOI));
+    }
+
+    public void testApp0AndApp1() throws IOException {
+        assertSameOutput(jpeg(SOI, APP0, APP1, DQT, SOF0, entropyCodedData(), EOI));
+    }
+
+    public void testApp0Only() throws IOException {
+        assertSameOutput(jpeg(SOI, APP0, DQT, SOF0, entropyCodedData(), EOI));
+    }
+
+    public void testNoAppSegments() throws IOException {
+        assertSameOutput(jpeg(SOI, DQT, SOF0, entropyCodedData(), EOI));
+    }
+
+    /**
+     * Writes the jpeg in one write, byte by byte and split in two at every
+     * offset within and just past its header, and compares the results.
+     */
+    private void assertSameOutput(byte[] jpeg) throws IOException {
+        byte[] expected = writeBytewise(jpeg);
+        assertTrue("Single write differs", Arrays.equals(expected, writeSplit(jpeg, jpeg.length)));
+        int lastSplit = Math.min(jpeg.length, 100);
+        for (int split = 1; split < lastSplit; split++) {
+            assertTrue("Write split at " + split + " differs",
+                    Arrays.equals(expected, writeSplit(jpeg, split)));
+        }
+    }
+
+    private static byte[] writeBytewise(byte[] jpeg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream exifOut = createExif().getExifWriterStream(out);
+        for (byte b : jpeg) {
+            exifOut.write(b);
+        }
+        exifOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] writeSplit(byte[] jpeg, int split) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream exifOut = createExif().getExifWriterStream(out);
+        exifOut.write(jpeg, 0, split);
+        exifOut.write(jpeg, split, jpeg.length - split);
+        exifOut.close();
+        return out.toByteArray();
+    }
+
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Manufacturer"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.RIGHT_TOP));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 60)));
+        exif.addGpsTags(37.42, -122.08);
+
+        byte[] thumbnail = new byte[64];
+        for (int i = 0; i < thumbnail.length; i++) {
+            thumbnail[i] = (byte) i;
+        }
+        thumbnail[0] = (byte) 0xff;
+        thumbnail[1] = (byte) 0xd8;
+        thumbnail[thumbnail.length - 2] = (byte) 0xff;
+        thumbnail[thumbnail.length - 1] = (byte) 0xd9;
+        exif.setCompressedThumbnail(thumbnail);
+        return exif;
+    }
+
+    private static byte[] entropyCodedData() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            // Keep 0xff out of the entropy coded data so it has no markers.
+            data[i] = (byte) (i % 0xff);
+        }
+        return data;
+    }
+
+    private static byte[] jpeg(byte[]... segments) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        for (byte[] segment : segments) {
+            jpeg.write(segment, 0, segment.length);
+        }
+        return jpeg.toByteArray();
+    }
+}
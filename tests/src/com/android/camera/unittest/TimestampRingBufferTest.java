@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+import com.android.camera.util.Task;
+import com.android.camera.util.TimestampRingBuffer;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+public class TimestampRingBufferTest extends TestCase {
+    private final List<Long> mSwappedOut = new ArrayList<Long>();
+
+    private boolean insert(TimestampRingBuffer<Long> buffer, final long key) {
+        return buffer.swapLeast(key, new SwapTask<Long>() {
+            @Override
+            public Long create() {
+                return key;
+            }
+
+            @Override
+            public Long swap(Long oldElement) {
+                mSwappedOut.add(oldElement);
+                return key;
+            }
+
+            @Override
+            public void update(Long existingElement) {
+            }
+
+            @Override
+            public long getSwapKey() {
+                return -1;
+            }
+        });
+    }
+
+    public void testSwapLeastReplacesLeastKey() {
+        TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(3);
+        assertTrue(insert(buffer, 20));
+        assertTrue(insert(buffer, 10));
+        assertTrue(insert(buffer, 30));
+        assertTrue(mSwappedOut.isEmpty());
+
+        assertTrue(insert(buffer, 40));
+        assertEquals(Collections.singletonList(10L), mSwappedOut);
+        assertNull(buffer.tryPin(10));
+
+        Pair<Long, Long> greatest = buffer.tryPinGreatest();
+        assertEquals(40L, (long) greatest.first);
+        assertEquals(40L, (long) greatest.second);
+        buffer.release(40);
+    }
+
+    public void testSwapLeastSkipsPinnedElements() {
+        TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(2);
+        insert(buffer, 10);
+        insert(buffer, 20);
+
+        assertNotNull(buffer.tryPin(10));
+        assertTrue(insert(buffer, 30));
+        assertEquals(Collections.singletonList(20L), mSwappedOut);
+        assertNotNull(buffer.tryGetPinned(10));
+
+        buffer.release(10);
+        assertTrue(insert(buffer, 40));
+        assertEquals(10L, (long) mSwappedOut.get(1));
+    }
+
+    public void testPinAndRelease() {
+        TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(3);
+        insert(buffer, 10);
+        insert(buffer, 20);
+        insert(buffer, 30);
+
+        Pair<Long, Long> pinned = buffer.tryPin(20);
+        assertEquals(20L, (long) pinned.first);
+        assertEquals(20L, (long) pinned.second);
+        // The same element may be pinned more than once.
+        assertNotNull(buffer.tryPin(20));
+        assertNull(buffer.tryPin(25));
+
+        buffer.release(20);
+        assertNotNull(buffer.tryGetPinned(20));
+        buffer.release(20);
+        assertNull(buffer.tryGetPinned(20));
+
+        try {
+            buffer.release(20);
+            fail("Releasing an unpinned element must throw.");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testPinKeepsOneElementUnpinned() {
+        TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(3);
+        insert(buffer, 10);
+        insert(buffer, 20);
+        insert(buffer, 30);
+
+        assertNotNull(buffer.tryPin(10));
+        assertNotNull(buffer.tryPin(20));
+        assertNull(buffer.tryPin(30));
+
+        buffer.release(10);
+        assertNotNull(buffer.tryPin(30));
+    }
+
+    public void testCloseRunsTaskOnEveryElement() throws InterruptedException {
+        TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(3);
+        insert(buffer, 10);
+        insert(buffer, 20);
+
+        final List<Long> closed = new ArrayList<Long>();
+        buffer.close(new Task<Long>() {
+            @Override
+            public void run(Long element) {
+                closed.add(element);
+            }
+        });
+        Collections.sort(closed);
+        assertEquals(2, closed.size());
+        assertEquals(10L, (long) closed.get(0));
+        assertEquals(20L, (long) closed.get(1));
+
+        assertNull(buffer.tryPin(10));
+        assertNull(buffer.tryPinGreatest());
+        assertFalse(insert(buffer, 30));
+    }
+
+    public void testCloseWaitsForRelease() throws InterruptedException {
+        final TimestampRingBuffer<Long> buffer = new TimestampRingBuffer<Long>(2);
+        insert(buffer, 10);
+        insert(buffer, 20);
+        assertNotNull(buffer.tryPin(20));
+
+        final List<Long> closed = Collections.synchronizedList(new ArrayList<Long>());
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.close(new Task<Long>() {
+                        @Override
+                        public void run(Long element) {
+                            closed.add(element);
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        closer.start();
+        closer.join(200);
+        assertTrue(closer.isAlive());
+        assertTrue(closed.isEmpty());
+
+        buffer.release(20);
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+        assertEquals(2, closed.size());
+    }
+}